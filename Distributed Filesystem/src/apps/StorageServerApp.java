@@ -14,7 +14,9 @@ import storage.StorageServer;
     <p>
     The storage server application expects three arguments: in order, the
     local hostname, the hostname of the remote naming server, and the directory
-    that the storage server will use as its local storage for files.
+    that the storage server will use as its local storage for files. An
+    optional fourth argument names a Unix domain socket file, through which
+    clients on the same host reach the server without going through TCP.
 
     <p>
     The directory can be given as an absolute or a relative path. The current
@@ -36,6 +38,9 @@ public class StorageServerApp extends ServerApplication
 {
     /** The storage server itself. */
     private static StoppingStorageServer    server;
+    /** Milliseconds to let calls in progress finish when stopping, which
+        leaves time within the termination timeout to close down. */
+    private static final long               DRAIN_TIMEOUT = 3000;
 
     /** Storage server application entry point. */
     public static void main(String[] arguments)
@@ -53,8 +58,8 @@ public class StorageServerApp extends ServerApplication
     /** Starts the storage server.
 
         @param arguments The command line arguments.
-        @throws BadUsageException If there are not three arguments on the
-                                  command line.
+        @throws BadUsageException If there are not three or four arguments on
+                                  the command line.
         @throws UnknownHostException If a storage server stub cannot be created
                                      due to an unassigned address.
         @throws FileNotFoundException If the directory in which the storage
@@ -72,26 +77,29 @@ public class StorageServerApp extends ServerApplication
                RMIException
     {
         // Check the command line arguments.
-        if(arguments.length != 3)
+        if(arguments.length != 3 && arguments.length != 4)
         {
             throw new BadUsageException("usage: storage local_hostname " +
-                                        "naming_server directory");
+                                        "naming_server directory " +
+                                        "[local_socket]");
         }
 
         // Create the storage server object using the absolute version of the
         // given path.
         File            local_root = new File(arguments[2]).getAbsoluteFile();
         server = new StoppingStorageServer(local_root);
+        if(arguments.length == 4)
+            server.setLocalSocket(new File(arguments[3]).getAbsoluteFile());
 
         // Start and register the storage server.
         server.start(arguments[0], NamingStubs.registration(arguments[1]));
     }
 
-    /** Stops the storage server. */
+    /** Stops the storage server, letting calls in progress finish. */
     @Override
     protected void stopServer()
     {
-        server.stop();
+        server.stop(DRAIN_TIMEOUT);
     }
 
     /** Application storage server. */
@@ -112,6 +120,14 @@ public class StorageServerApp extends ServerApplication
             super.stop();
         }
 
+        /** Schedules a timeout before draining the server. */
+        @Override
+        public DrainReport stop(long timeout)
+        {
+            startTerminationTimer();
+            return super.stop(timeout);
+        }
+
         /** Calls <code>serverStopped</code>. */
         @Override
         protected synchronized void stopped(Throwable cause)
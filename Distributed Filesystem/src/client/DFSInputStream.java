@@ -40,6 +40,14 @@ public class DFSInputStream extends InputStream
     /** Total file length. */
     private final long      length;
 
+    /** Milliseconds to wait for the storage server to answer each request,
+        so that a wedged storage server fails the stream instead of hanging
+        it. */
+    static final long       STORAGE_TIMEOUT = 30000;
+    /** Retries for reads from the storage server, which are idempotent, so
+        that a dropped connection does not fail the stream. */
+    static final RetryPolicy STORAGE_RETRIES = new RetryPolicy(4, 20, 1000);
+
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
@@ -65,7 +73,10 @@ public class DFSInputStream extends InputStream
         // Retrieve a stub for the storage server hosting the file.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            storage_server = Stub.withTimeouts(Storage.class,
+                Stub.withRetries(Storage.class, naming_server.getStorage(file),
+                                 STORAGE_RETRIES),
+                0, STORAGE_TIMEOUT);
         }
         catch(RMIException e)
         {
@@ -34,6 +34,10 @@ public class DFSOutputStream extends OutputStream
     /** Current write offset in the file. */
     private long            offset = 0;
 
+    /** Milliseconds to wait for the storage server to acknowledge each
+        write. */
+    static final long       STORAGE_TIMEOUT = 30000;
+
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
@@ -59,7 +63,8 @@ public class DFSOutputStream extends OutputStream
         // Retrieve a stub for the storage server hosting the file.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            storage_server = Stub.withTimeouts(Storage.class,
+                naming_server.getStorage(file), 0, STORAGE_TIMEOUT);
         }
         catch(RMIException e)
         {
@@ -12,10 +12,29 @@ import test.*;
     <li>{@link conformance.rmi.StubTest}</li>
     <li>{@link conformance.rmi.ConnectionTest}</li>
     <li>{@link conformance.rmi.ThreadTest}</li>
+    <li>{@link conformance.rmi.SelectorTransportTest}</li>
+    <li>{@link conformance.rmi.CodecTest}</li>
+    <li>{@link conformance.rmi.BulkTransferTest}</li>
+    <li>{@link conformance.rmi.AsyncStubTest}</li>
+    <li>{@link conformance.rmi.BatchTest}</li>
+    <li>{@link conformance.rmi.CompressionTest}</li>
+    <li>{@link conformance.rmi.MetricsTest}</li>
+    <li>{@link conformance.rmi.AdmissionTest}</li>
+    <li>{@link conformance.rmi.LaneTest}</li>
+    <li>{@link conformance.rmi.DeadlineTest}</li>
+    <li>{@link conformance.rmi.CallbackTest}</li>
+    <li>{@link conformance.rmi.LoopbackTest}</li>
+    <li>{@link conformance.rmi.LocalSocketTest}</li>
+    <li>{@link conformance.rmi.ExportTest}</li>
+    <li>{@link conformance.rmi.SingleFlightTest}</li>
+    <li>{@link conformance.rmi.RetryTest}</li>
+    <li>{@link conformance.rmi.DrainTest}</li>
     <li>{@link conformance.storage.RegistrationTest}</li>
     <li>{@link conformance.storage.AccessTest}</li>
     <li>{@link conformance.storage.DirectoryTest}</li>
     <li>{@link conformance.storage.ReplicationTest}</li>
+    <li>{@link conformance.naming.ChildrenTest}</li>
+    <li>{@link conformance.naming.ResolveTest}</li>
     <li>{@link conformance.naming.ContactTest}</li>
     <li>{@link conformance.naming.RegistrationTest}</li>
     <li>{@link conformance.naming.ListingTest}</li>
@@ -23,6 +42,7 @@ import test.*;
     <li>{@link conformance.naming.StubRetrievalTest}</li>
     <li>{@link conformance.naming.LockTest}</li>
     <li>{@link conformance.naming.QueueTest}</li>
+    <li>{@link conformance.naming.HandoffTest}</li>
     <li>{@link conformance.naming.ReplicationTest}</li>
     <li>{@link conformance.naming.DeletionTest}</li>
     </ul>
@@ -43,10 +63,29 @@ public class ConformanceTests
                          conformance.rmi.StubTest.class,
                          conformance.rmi.ConnectionTest.class,
                          conformance.rmi.ThreadTest.class,
+                         conformance.rmi.SelectorTransportTest.class,
+                         conformance.rmi.CodecTest.class,
+                         conformance.rmi.BulkTransferTest.class,
+                         conformance.rmi.AsyncStubTest.class,
+                         conformance.rmi.BatchTest.class,
+                         conformance.rmi.CompressionTest.class,
+                         conformance.rmi.MetricsTest.class,
+                         conformance.rmi.AdmissionTest.class,
+                         conformance.rmi.LaneTest.class,
+                         conformance.rmi.DeadlineTest.class,
+                         conformance.rmi.CallbackTest.class,
+                         conformance.rmi.LoopbackTest.class,
+                         conformance.rmi.LocalSocketTest.class,
+                         conformance.rmi.ExportTest.class,
+                         conformance.rmi.SingleFlightTest.class,
+                         conformance.rmi.RetryTest.class,
+                         conformance.rmi.DrainTest.class,
                          conformance.storage.RegistrationTest.class,
                          conformance.storage.AccessTest.class,
                          conformance.storage.DirectoryTest.class,
                          conformance.storage.ReplicationTest.class,
+                         conformance.naming.ChildrenTest.class,
+                         conformance.naming.ResolveTest.class,
                          conformance.naming.ContactTest.class,
                          conformance.naming.RegistrationTest.class,
                          conformance.naming.ListingTest.class,
@@ -54,6 +93,7 @@ public class ConformanceTests
                          conformance.naming.StubRetrievalTest.class,
                          conformance.naming.LockTest.class,
                          conformance.naming.QueueTest.class,
+                         conformance.naming.HandoffTest.class,
                          conformance.naming.ReplicationTest.class,
                          conformance.naming.DeletionTest.class
                          };
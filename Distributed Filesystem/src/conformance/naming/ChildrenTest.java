@@ -0,0 +1,122 @@
+package conformance.naming;
+
+import test.*;
+import common.*;
+import naming.*;
+import java.util.*;
+
+/** Tests the index of directory children in the naming server's tree.
+
+    <p>
+    Children are added to a directory until it outgrows the small array and
+    is moved to a hash table, and then removed until it shrinks back. At each
+    step, the test checks that:
+    <ul>
+    <li>Every child is found by name, and removed children are not.</li>
+    <li>Children with names already taken are not added.</li>
+    <li>The snapshot of names lists exactly the children present.</li>
+    </ul>
+ */
+public class ChildrenTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server directory index";
+
+    /** Number of children added. */
+    private static final int    COUNT = 1000;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Children                children = new Children();
+        Set<String>             present = new HashSet<String>();
+
+        task("adding children");
+
+        for(int index = 0; index < COUNT; ++index)
+        {
+            String              name = "file" + index;
+
+            if(!children.add(leaf(name)))
+                throw new TestFailed("unable to add child " + name);
+
+            present.add(name);
+
+            if(index < 20 || index % 100 == 0)
+                check(children, present);
+        }
+
+        if(children.add(leaf("file7")))
+            throw new TestFailed("child added under a name already taken");
+
+        check(children, present);
+
+        task("removing children");
+
+        Tree                    other = leaf("file1");
+
+        if(children.remove(other))
+            throw new TestFailed("removed a child that was not added");
+
+        for(int index = 0; index < COUNT; ++index)
+        {
+            String              name = "file" + index;
+
+            if(!children.remove(name))
+                throw new TestFailed("unable to remove child " + name);
+
+            present.remove(name);
+
+            if(children.remove(name))
+                throw new TestFailed("removed child " + name + " twice");
+
+            if(COUNT - index < 20 || index % 100 == 0)
+                check(children, present);
+        }
+
+        task();
+    }
+
+    /** Checks that a directory holds exactly the given children.
+
+        @param children The children of the directory.
+        @param present Names of the children expected.
+        @throws TestFailed If the directory holds other children.
+     */
+    private void check(Children children, Set<String> present)
+        throws TestFailed
+    {
+        if(children.size() != present.size())
+            throw new TestFailed("directory has wrong number of children");
+
+        for(String name : present)
+        {
+            Tree                child = children.get(name);
+
+            if(child == null || !child.getName().equals(name))
+                throw new TestFailed("child " + name + " not found");
+        }
+
+        if(children.get("missing") != null)
+            throw new TestFailed("found child that was never added");
+
+        String[]                names = children.names();
+
+        if(!new HashSet<String>(Arrays.asList(names)).equals(present) ||
+           names.length != present.size())
+        {
+            throw new TestFailed("snapshot of names is incorrect");
+        }
+    }
+
+    /** Returns a file with the given name in the root directory. */
+    private Tree leaf(String name)
+    {
+        return new Leaf(name, new Path(new Path(), name), null, null);
+    }
+}
@@ -0,0 +1,155 @@
+package conformance.naming;
+
+import test.*;
+import common.*;
+
+/** Tests that a released lock passes promptly to the user waiting for it.
+
+    <p>
+    The test thread repeatedly locks the root directory for exclusive access,
+    starts a second thread that waits for the same lock, and then releases it.
+    The test checks that:
+    <ul>
+    <li>The waiting thread does not take the lock before it is released.</li>
+    <li>On average, the waiting thread takes the lock within
+        <code>HANDOFF_LIMIT</code> milliseconds of its release, so waiters are
+        woken when the lock is released rather than when they next check.</li>
+    </ul>
+ */
+public class HandoffTest extends NamingTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server lock handoff";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = new Class[] {QueueTest.class};
+
+    /** Path to the root directory. */
+    private final Path          root = new Path("/");
+
+    /** Number of times the lock is handed over. */
+    private static final int    ROUNDS = 20;
+    /** Time given to the waiting thread to queue, in milliseconds. */
+    private static final int    DELAY = 20;
+    /** Greatest average handoff time allowed, in milliseconds. */
+    private static final long   HANDOFF_LIMIT = 25;
+
+    /** Time at which the waiting thread took the lock, in nanoseconds. */
+    private long                taken;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        long                    total = 0;
+
+        task("handing over the lock on the root directory");
+
+        for(int round = 0; round < ROUNDS; ++round)
+        {
+            lock();
+
+            Thread              waiter = new Thread(new Waiter());
+            waiter.start();
+
+            try
+            {
+                Thread.sleep(DELAY);
+            }
+            catch(InterruptedException e) { }
+
+            long                released = System.nanoTime();
+
+            synchronized(this)
+            {
+                if(taken != 0)
+                    throw new TestFailed("lock taken while held for " +
+                                         "exclusive access");
+            }
+
+            unlock();
+
+            try
+            {
+                waiter.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for thread", e);
+            }
+
+            synchronized(this)
+            {
+                if(taken == 0)
+                    return;
+
+                total += taken - released;
+                taken = 0;
+            }
+        }
+
+        long                    average = total / ROUNDS / 1000000;
+
+        if(average > HANDOFF_LIMIT)
+        {
+            throw new TestFailed("lock handed over in " + average + " ms on " +
+                                 "average");
+        }
+
+        task();
+    }
+
+    /** Locks the root directory for exclusive access. */
+    private void lock() throws TestFailed
+    {
+        try
+        {
+            service_stub.lock(root, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock root", t);
+        }
+    }
+
+    /** Unlocks the root directory after exclusive access. */
+    private void unlock() throws TestFailed
+    {
+        try
+        {
+            service_stub.unlock(root, true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unlock root", t);
+        }
+    }
+
+    /** Thread waiting for the lock on the root directory. */
+    private class Waiter implements Runnable
+    {
+        /** Takes the lock, notes the time, and releases it. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                lock();
+
+                synchronized(HandoffTest.this)
+                {
+                    taken = System.nanoTime();
+                }
+
+                unlock();
+            }
+            catch(TestFailed e)
+            {
+                failure(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package conformance.naming;
+
+import test.*;
+import common.*;
+import naming.*;
+import java.io.FileNotFoundException;
+
+/** Tests path resolution in the naming server's tree.
+
+    <p>
+    A small tree is built under a root that caches resolved paths. The test
+    checks that:
+    <ul>
+    <li>Resolving a path gives every node from the root to the file, in
+        order, and each node added by a registration has its own path.</li>
+    <li>Paths that do not exist, or that pass through a file, are not
+        resolved.</li>
+    <li>Paths removed from the tree are no longer resolved once invalidated,
+        even if they were cached.</li>
+    <li>Lookups stay correct when more paths are resolved than the cache
+        holds.</li>
+    </ul>
+ */
+public class ResolveTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server path resolution";
+
+    /** Number of paths the root caches. */
+    private static final int    CACHE_SIZE = 4;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Node                    root = new Node("/", new Path(), CACHE_SIZE);
+
+        for(String file : new String[] {"/a/b/c", "/a/d", "/e"})
+            root.addRegistration(new Path(file), null, null);
+
+        task("resolving paths");
+
+        // Resolve twice so that the second lookup is served from the cache.
+        for(int round = 0; round < 2; ++round)
+        {
+            Tree[]              chain = resolve(root, "/a/b/c");
+
+            if(chain.length != 4 || chain[0] != root)
+                throw new TestFailed("chain for /a/b/c has wrong length");
+
+            String[]            names = {"/", "a", "b", "c"};
+
+            for(int index = 0; index < names.length; ++index)
+            {
+                if(!chain[index].getName().equals(names[index]))
+                    throw new TestFailed("chain for /a/b/c has wrong nodes");
+            }
+
+            if(chain[3].isDirectory() || !chain[2].isDirectory())
+                throw new TestFailed("chain for /a/b/c has wrong kinds of " +
+                                     "nodes");
+
+            String[]            paths = {"/", "/a", "/a/b", "/a/b/c"};
+
+            for(int index = 0; index < paths.length; ++index)
+            {
+                if(!chain[index].getPath().equals(new Path(paths[index])))
+                    throw new TestFailed("chain for /a/b/c has wrong paths");
+            }
+        }
+
+        if(resolve(root, "/").length != 1)
+            throw new TestFailed("root resolved to more than one node");
+
+        missing(root, "/a/x");
+        missing(root, "/a/b/c/x");
+        missing(root, "/e/x");
+
+        task("resolving deleted paths");
+
+        Node                    a = (Node)resolve(root, "/a")[1];
+
+        a.files.remove("b");
+        root.invalidate(new Path("/a/b"));
+
+        missing(root, "/a/b/c");
+        missing(root, "/a/b");
+
+        if(resolve(root, "/a/d").length != 3)
+            throw new TestFailed("sibling of deleted directory not resolved");
+
+        task("resolving more paths than are cached");
+
+        for(int index = 0; index < 4 * CACHE_SIZE; ++index)
+            root.addRegistration(new Path("/f/file" + index), null, null);
+
+        for(int round = 0; round < 2; ++round)
+        {
+            for(int index = 0; index < 4 * CACHE_SIZE; ++index)
+            {
+                String          file = "/f/file" + index;
+
+                if(!resolve(root, file)[2].getName().equals("file" + index))
+                    throw new TestFailed("wrong node for " + file);
+            }
+        }
+
+        task();
+    }
+
+    /** Resolves a path, failing the test if it does not exist. */
+    private Tree[] resolve(Node root, String path) throws TestFailed
+    {
+        try
+        {
+            return root.resolve(new Path(path));
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to resolve " + path, e);
+        }
+    }
+
+    /** Checks that a path does not resolve. */
+    private void missing(Node root, String path) throws TestFailed
+    {
+        try
+        {
+            root.resolve(new Path(path));
+        }
+        catch(FileNotFoundException e)
+        {
+            return;
+        }
+
+        throw new TestFailed("resolved " + path + ", which does not exist");
+    }
+}
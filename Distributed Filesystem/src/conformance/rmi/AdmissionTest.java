@@ -0,0 +1,241 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+
+/** Tests admission control in skeletons.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Calls over the limit wait in the queue and run once there is room.</li>
+    <li>Calls that find the queue full are refused at once with an
+        <code>OverloadedException</code>.</li>
+    <li>Calls that wait in the queue too long are refused.</li>
+    <li>A limit on one method does not hold up calls to other methods.</li>
+    </ul>
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton admission control";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {AsyncStubTest.class};
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Gate>      skeleton = null;
+    /** Server object of the running skeleton. */
+    private GateServer          server = null;
+
+    /** Remote interface with a method that waits to be released. */
+    public interface Gate
+    {
+        /** Returns once the gate is opened. */
+        public void pass() throws RMIException;
+
+        /** Returns at once. */
+        public int quick() throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class GateServer implements Gate
+    {
+        /** Calls to <code>pass</code> in progress. */
+        private final Semaphore     entered = new Semaphore(0);
+        /** Opened to let calls to <code>pass</code> return. */
+        private final CountDownLatch    open = new CountDownLatch(1);
+
+        @Override
+        public void pass()
+        {
+            entered.release();
+
+            try
+            {
+                open.await();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public int quick()
+        {
+            return 1;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("queueing and refusing calls over the overall limit");
+
+        AsyncStub<Gate>     stub = start(1, 1, 0, null);
+
+        CompletableFuture<Object>   first = stub.call(s -> { s.pass();
+                                                             return null; });
+        awaitEntered(1);
+
+        CompletableFuture<Object>   second = stub.call(s -> s.quick());
+        CompletableFuture<Object>   third = stub.call(s -> s.quick());
+
+        expectOverloaded(third);
+
+        if(second.isDone())
+            throw new TestFailed("queued call ran over the limit");
+
+        server.open.countDown();
+
+        try
+        {
+            first.get(5, TimeUnit.SECONDS);
+
+            if(!second.get(5, TimeUnit.SECONDS).equals(1))
+                throw new TestFailed("queued call returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("admitted call failed", t);
+        }
+
+        stop();
+
+        task("refusing calls that wait too long");
+
+        stub = start(1, 1, 100, null);
+
+        stub.call(s -> { s.pass(); return null; });
+        awaitEntered(1);
+
+        expectOverloaded(stub.call(s -> s.quick()));
+
+        server.open.countDown();
+        stop();
+
+        task("limiting calls to one method");
+
+        stub = start(0, 0, 0, "pass");
+
+        stub.call(s -> { s.pass(); return null; });
+        awaitEntered(1);
+
+        expectOverloaded(stub.call(s -> { s.pass(); return null; }));
+
+        try
+        {
+            if(!stub.call(s -> s.quick()).get(5, TimeUnit.SECONDS).equals(1))
+                throw new TestFailed("call returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call to unlimited method failed", t);
+        }
+
+        server.open.countDown();
+        stop();
+
+        task();
+    }
+
+    /** Starts a skeleton with the given limits.
+
+        @param maxCalls Overall limit on calls.
+        @param queueLength Length of the admission queue.
+        @param queueTimeout Milliseconds a call may wait in the queue.
+        @param limited Method limited to one call at once, or
+                       <code>null</code>.
+        @return An asynchronous stub for the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private AsyncStub<Gate> start(int maxCalls, int queueLength,
+                                  long queueTimeout, String limited)
+        throws TestFailed
+    {
+        server = new GateServer();
+        skeleton = new Skeleton<Gate>(Gate.class, server);
+        skeleton.setCallLimit(maxCalls, queueLength, queueTimeout);
+
+        if(limited != null)
+            skeleton.setMethodLimit(limited, 1);
+
+        try
+        {
+            skeleton.start();
+
+            return Stub.async(Gate.class, Stub.create(Gate.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Waits for calls to <code>pass</code> to be in progress.
+
+        @param calls Number of calls to wait for.
+        @throws TestFailed If the calls do not arrive.
+     */
+    private void awaitEntered(int calls) throws TestFailed
+    {
+        try
+        {
+            if(!server.entered.tryAcquire(calls, 5, TimeUnit.SECONDS))
+                throw new TestFailed("call did not reach the server");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Checks that a call is refused as overloaded.
+
+        @param call The call.
+        @throws TestFailed If the call is not refused.
+     */
+    private void expectOverloaded(CompletableFuture<Object> call)
+        throws TestFailed
+    {
+        try
+        {
+            call.get(5, TimeUnit.SECONDS);
+            throw new TestFailed("call over the limit not refused");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof OverloadedException))
+            {
+                throw new TestFailed("call over the limit failed with the " +
+                                     "wrong exception", e.getCause());
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call over the limit not refused", t);
+        }
+    }
+
+    /** Stops the running skeleton. */
+    private void stop()
+    {
+        server.open.countDown();
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            stop();
+    }
+}
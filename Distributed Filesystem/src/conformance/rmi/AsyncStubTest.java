@@ -0,0 +1,150 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.net.*;
+import java.io.FileNotFoundException;
+import java.util.concurrent.*;
+
+/** Tests asynchronous stubs.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Results and remote exceptions are delivered through the returned
+        futures.</li>
+    <li>Two calls started from one thread can be in progress at the same time,
+        and neither blocks the thread that started them.</li>
+    <li>Calls that do not apply exactly one remote method are rejected.</li>
+    </ul>
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class, ThreadTest.class};
+
+    /** Address at which the test skeleton will run. */
+    private InetSocketAddress   address;
+    /** Server object used in the test. */
+    private TestServer          server;
+    /** Skeleton object used in the test. */
+    private Skeleton<TestInterface> skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress(7000);
+        server = new TestServer();
+        skeleton = new Skeleton<TestInterface>(TestInterface.class, server,
+                                               address)
+        {
+            @Override
+            protected void stopped(Throwable cause)
+            {
+                server.wake();
+            }
+        };
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        AsyncStub<TestInterface>    stub =
+            Stub.createAsync(TestInterface.class, address);
+
+        task("receiving a result");
+
+        try
+        {
+            if(stub.call(s -> s.method(false)).get() != null)
+                throw new TestFailed("incorrect result from stub");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when using stub", t);
+        }
+
+        task("receiving a remote exception");
+
+        try
+        {
+            stub.call(s -> s.method(true)).get();
+            throw new TestFailed("exception expected but not received from " +
+                                 "stub");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+            {
+                throw new TestFailed("unexpected exception when using stub",
+                                     e.getCause());
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when using stub", t);
+        }
+
+        task("making two calls at the same time from one thread");
+
+        try
+        {
+            CompletableFuture<Object>   first =
+                stub.call(s -> { s.rendezvous(); return null; });
+            CompletableFuture<Object>   second =
+                stub.call(s -> { s.rendezvous(); return null; });
+
+            first.get();
+            second.get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to rendezvous", t);
+        }
+
+        task("rejecting calls that do not apply one remote method");
+
+        try
+        {
+            stub.call(s -> null);
+            throw new TestFailed("call applying no method accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            stub.call(s -> s.method(false) == s.method(false));
+            throw new TestFailed("call applying two methods accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        task();
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+}
@@ -0,0 +1,150 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.net.*;
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Tests batches of calls.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Each call in a batch receives its own result or remote exception, and a
+        call that throws does not prevent the calls after it from running.</li>
+    <li>An empty batch can be sent.</li>
+    <li>A batch cannot be sent twice.</li>
+    </ul>
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batches of RMI calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {AsyncStubTest.class};
+
+    /** Address at which the test skeleton will run. */
+    private InetSocketAddress   address;
+    /** Skeleton object used in the test. */
+    private Skeleton<TestInterface> skeleton;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress(7000);
+        skeleton = new Skeleton<TestInterface>(TestInterface.class,
+                                               new TestServer(), address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Batch<TestInterface>    batch =
+            Stub.createAsync(TestInterface.class, address).batch();
+
+        task("sending a batch of calls");
+
+        List<CompletableFuture<Object>> results =
+            new ArrayList<CompletableFuture<Object>>();
+
+        for(int call = 0; call < 50; ++call)
+        {
+            final boolean   throw_exception = call % 3 == 1;
+            results.add(batch.add(s -> s.method(throw_exception)));
+        }
+
+        if(batch.size() != 50)
+            throw new TestFailed("batch has wrong number of calls");
+
+        try
+        {
+            batch.send().get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send batch", t);
+        }
+
+        for(int call = 0; call < 50; ++call)
+        {
+            CompletableFuture<Object>   result = results.get(call);
+
+            if(!result.isDone())
+                throw new TestFailed("call not complete after batch");
+
+            try
+            {
+                if(result.get() != null)
+                    throw new TestFailed("incorrect result from batch");
+
+                if(call % 3 == 1)
+                {
+                    throw new TestFailed("exception expected but not " +
+                                         "received from batch");
+                }
+            }
+            catch(TestFailed e) { throw e; }
+            catch(ExecutionException e)
+            {
+                if(call % 3 != 1 ||
+                   !(e.getCause() instanceof FileNotFoundException))
+                {
+                    throw new TestFailed("unexpected exception from batch",
+                                         e.getCause());
+                }
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception from batch", t);
+            }
+        }
+
+        task("sending a batch twice");
+
+        try
+        {
+            batch.send();
+            throw new TestFailed("batch sent twice");
+        }
+        catch(IllegalStateException e) { }
+
+        task("sending an empty batch");
+
+        try
+        {
+            Stub.createAsync(TestInterface.class, address).batch().send()
+                .get();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send empty batch", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+}
@@ -0,0 +1,173 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Tests transmission of byte arrays and byte buffers of various sizes.
+
+    <p>
+    Large byte arrays and all byte buffers are sent between stubs and skeletons
+    as raw bulk frames. This test echoes arrays and buffers, both below and
+    above the bulk threshold, through a skeleton using each transport, and
+    checks that the contents come back unchanged.
+ */
+public class BulkTransferTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking transmission of large byte arrays and buffers";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class, SelectorTransportTest.class};
+
+    /** Sizes of the arrays and buffers sent. */
+    private static final int[]  sizes =
+        new int[] {0, 100, 8 * 1024 - 1, 8 * 1024, 1024 * 1024 + 3};
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Echo>      skeleton = null;
+
+    /** Remote interface returning its arguments. */
+    public interface Echo
+    {
+        /** Returns <code>data</code>. */
+        public byte[] echo(byte[] data) throws RMIException;
+
+        /** Returns the remaining bytes of <code>data</code> with
+            <code>prefix</code> bytes of value 7 before them. */
+        public ByteBuffer echo(int prefix, ByteBuffer data)
+            throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public ByteBuffer echo(int prefix, ByteBuffer data)
+        {
+            ByteBuffer  result = ByteBuffer.allocate(prefix + data.remaining());
+
+            for(int index = 0; index < prefix; ++index)
+                result.put((byte)7);
+
+            result.put(data);
+            result.flip();
+
+            return result;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Transport transport : Transport.values())
+        {
+            task("echoing data through the " + transport + " transport");
+
+            skeleton = new Skeleton<Echo>(Echo.class, new EchoServer());
+            skeleton.setTransport(transport);
+            skeleton.setLoopback(false);
+
+            try
+            {
+                skeleton.start();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start skeleton", t);
+            }
+
+            Echo        stub;
+
+            try
+            {
+                stub = Stub.create(Echo.class, skeleton);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to create stub", t);
+            }
+
+            for(int size : sizes)
+                check(stub, size);
+
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        task();
+    }
+
+    /** Echoes an array and a buffer of the given size.
+
+        @param stub The stub to call.
+        @param size Number of bytes to send.
+        @throws TestFailed If the data does not come back unchanged.
+     */
+    private void check(Echo stub, int size) throws TestFailed
+    {
+        byte[]      data = new byte[size];
+        new Random(size).nextBytes(data);
+
+        try
+        {
+            if(!Arrays.equals(stub.echo(data), data))
+                throw new TestFailed("array of " + size + " bytes changed");
+
+            // Send only part of a larger buffer.
+            ByteBuffer  buffer = ByteBuffer.allocateDirect(size + 20);
+            buffer.position(10);
+            buffer.put(data);
+            buffer.flip();
+            buffer.position(10);
+
+            ByteBuffer  result = stub.echo(3, buffer);
+
+            if(result.remaining() != size + 3)
+            {
+                throw new TestFailed("buffer of " + size + " bytes returned " +
+                                     "with wrong length");
+            }
+
+            for(int index = 0; index < 3; ++index)
+            {
+                if(result.get() != 7)
+                    throw new TestFailed("buffer returned incorrectly");
+            }
+
+            byte[]  returned = new byte[size];
+            result.get(returned);
+
+            if(!Arrays.equals(returned, data))
+                throw new TestFailed("buffer of " + size + " bytes changed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to echo " + size + " bytes", t);
+        }
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Tests callbacks pushed from skeletons to listeners exported by clients.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A listener passed to a skeleton receives the calls the skeleton pushes
+        to it, in order, with each transport.</li>
+    <li>A listener that has been unexported receives no further calls.</li>
+    <li>Listener interfaces with methods returning values are rejected.</li>
+    </ul>
+ */
+public class CallbackTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking callbacks";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class, SelectorTransportTest.class};
+
+    /** Number of events published. */
+    private static final int    EVENTS = 100;
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Publisher> skeleton = null;
+
+    /** Listener interface. */
+    public interface Listener
+    {
+        /** Receives one event. */
+        public void event(int number, String text) throws RMIException;
+    }
+
+    /** Listener interface with a method returning a value. */
+    public interface BadListener
+    {
+        /** Returns a value, which callbacks cannot. */
+        public int event() throws RMIException;
+    }
+
+    /** Remote interface of a server publishing events. */
+    public interface Publisher
+    {
+        /** Adds a listener. */
+        public void subscribe(Listener listener) throws RMIException;
+
+        /** Calls every listener with the given number of events. */
+        public void publish(int count) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class PublisherServer implements Publisher
+    {
+        /** Listeners subscribed. */
+        private final List<Listener>    listeners =
+            new CopyOnWriteArrayList<Listener>();
+
+        @Override
+        public void subscribe(Listener listener)
+        {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void publish(int count) throws RMIException
+        {
+            for(int number = 0; number < count; ++number)
+            {
+                for(Listener listener : listeners)
+                    listener.event(number, "event " + number);
+            }
+        }
+    }
+
+    /** Listener recording the events it receives. */
+    private static class Recorder implements Listener
+    {
+        /** Numbers of the events received. */
+        final BlockingQueue<Integer>    received =
+            new LinkedBlockingQueue<Integer>();
+
+        @Override
+        public void event(int number, String text)
+        {
+            if(text.equals("event " + number))
+                received.add(number);
+            else
+                received.add(-1);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Transport transport : Transport.values())
+        {
+            task("pushing events through the " + transport + " transport");
+
+            skeleton = new Skeleton<Publisher>(Publisher.class,
+                                               new PublisherServer());
+            skeleton.setTransport(transport);
+            skeleton.setLoopback(false);
+
+            Recorder    recorder = new Recorder();
+            Listener    callback = Stub.export(Listener.class, recorder);
+
+            try
+            {
+                skeleton.start();
+
+                Publisher   stub = Stub.create(Publisher.class, skeleton);
+                stub.subscribe(callback);
+                stub.publish(EVENTS);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to publish events", t);
+            }
+
+            for(int number = 0; number < EVENTS; ++number)
+            {
+                Integer     received;
+
+                try
+                {
+                    received = recorder.received.poll(5, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e)
+                {
+                    throw new TestFailed("interrupted", e);
+                }
+
+                if(received == null)
+                    throw new TestFailed("event " + number + " not received");
+
+                if(received != number)
+                {
+                    throw new TestFailed("event " + number + " received out " +
+                                         "of order or garbled");
+                }
+            }
+
+            task("unexporting the listener");
+
+            if(!Stub.unexport(callback))
+                throw new TestFailed("exported listener not unexported");
+
+            try
+            {
+                Stub.create(Publisher.class, skeleton).publish(1);
+                Thread.sleep(100);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to publish events", t);
+            }
+
+            if(!recorder.received.isEmpty())
+                throw new TestFailed("unexported listener received event");
+
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        task("rejecting listener methods that return values");
+
+        try
+        {
+            Stub.export(BadListener.class, new BadListener()
+            {
+                @Override
+                public int event()
+                {
+                    return 0;
+                }
+            });
+
+            throw new TestFailed("listener returning values exported");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Error e) { }
+
+        task();
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
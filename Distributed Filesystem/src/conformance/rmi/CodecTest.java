@@ -0,0 +1,177 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import common.Path;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Tests the codecs used to encode values sent between stubs and skeletons.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>The built-in <code>"binary"</code> and <code>"java"</code> codecs are
+        registered.</li>
+    <li>Values of each kind handled directly by the binary codec - booleans,
+        numbers, strings, byte arrays, paths, arrays and stubs - are decoded
+        equal to the values encoded, with the same classes.</li>
+    <li>Other serializable values are still transmitted.</li>
+    <li>Byte arrays, strings and paths whose encoded length exceeds the
+        bytes that follow are rejected without allocating for that
+        length.</li>
+    </ul>
+ */
+public class CodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking RMI codecs";
+
+    /** Performs the test.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Codec   binary = Codecs.get("binary");
+
+        if(binary == null)
+            throw new TestFailed("binary codec is not registered");
+
+        if(Codecs.get("java") == null)
+            throw new TestFailed("java serialization codec is not registered");
+
+        TestInterface   stub =
+            Stub.create(TestInterface.class, new InetSocketAddress(7000));
+
+        Object[]        values =
+            new Object[] {null, true, false, (byte)-3, (short)1000, 'x', 42,
+                          -7L, 1.5f, 2.25, "\u00e9t\u00e9",
+                          new byte[] {1, 2},
+                          new Path("/directory/file"),
+                          new String[] {"a", null, "b"},
+                          new Path[] {new Path("/"), new Path("/a")}, stub,
+                          new FileNotFoundException("missing"),
+                          new ArrayList<String>(Arrays.asList("list"))};
+
+        Object[]        decoded = roundTrip(binary, values);
+
+        for(int index = 0; index < values.length; ++index)
+        {
+            Object      value = values[index];
+            Object      result = decoded[index];
+
+            if(value == null)
+            {
+                if(result != null)
+                    throw new TestFailed("null decoded as " + result);
+                continue;
+            }
+
+            if(result == null || result.getClass() != value.getClass() &&
+               !(value == stub && result instanceof TestInterface))
+            {
+                throw new TestFailed(value.getClass().getName() +
+                                     " decoded with the wrong class");
+            }
+
+            if(value instanceof Throwable)
+            {
+                if(!((Throwable)value).getMessage().equals(
+                        ((Throwable)result).getMessage()))
+                {
+                    throw new TestFailed("exception decoded incorrectly");
+                }
+            }
+            else if(!Arrays.deepEquals(new Object[] {value},
+                                       new Object[] {result}))
+            {
+                throw new TestFailed(value.getClass().getName() +
+                                     " decoded incorrectly");
+            }
+        }
+
+        task("decoding values with corrupt lengths");
+
+        for(Object value : new Object[] {new byte[] {1, 2}, "abc",
+                                         new Path("/a")})
+        {
+            corruptLength(binary, value);
+        }
+
+        task();
+    }
+
+    /** Checks that a value whose length is overwritten with a huge one is
+        rejected.
+
+        <p>
+        Each of the values checked is written as a one byte tag followed by
+        its length, so the length is found at offset <code>1</code>.
+
+        @param codec The codec to use.
+        @param value The value.
+        @throws TestFailed If the corrupt value is decoded, or if decoding fails
+                           other than with an <code>IOException</code>.
+     */
+    private void corruptLength(Codec codec, Object value) throws TestFailed
+    {
+        byte[]      bytes;
+
+        try
+        {
+            ByteArrayOutputStream   out = new ByteArrayOutputStream();
+            codec.write(out, value);
+            bytes = out.toByteArray();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode value", t);
+        }
+
+        bytes[1] = (byte)0x7f;
+        bytes[2] = bytes[3] = bytes[4] = (byte)0xff;
+
+        try
+        {
+            codec.read(new ByteArrayInputStream(bytes), 1);
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("corrupt " + value.getClass().getName() +
+                                 " length rejected incorrectly", t);
+        }
+
+        throw new TestFailed("corrupt " + value.getClass().getName() +
+                             " length accepted");
+    }
+
+    /** Encodes and decodes a sequence of values.
+
+        @param codec The codec to use.
+        @param values The values.
+        @return The decoded values.
+        @throws TestFailed If the values cannot be encoded or decoded.
+     */
+    private Object[] roundTrip(Codec codec, Object[] values) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            codec.write(bytes, values);
+
+            return codec.read(new ByteArrayInputStream(bytes.toByteArray()),
+                              values.length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode and decode values", t);
+        }
+    }
+}
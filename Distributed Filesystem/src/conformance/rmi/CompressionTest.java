@@ -0,0 +1,238 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Tests compression of frames between stubs and skeletons.
+
+    <p>
+    A skeleton with compression enabled agrees to compress frames with every
+    stub connecting to it. This test echoes compressible, incompressible and
+    small arrays through such a skeleton using each transport, checks that the
+    contents come back unchanged, and checks that only the frames worth
+    compressing were compressed. It also sends each skeleton, on a raw
+    connection, a compressed frame whose zlib header asks for a preset
+    dictionary, and checks that the skeleton closes that connection instead of
+    waiting for a dictionary that never comes.
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking compression of frames";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {BulkTransferTest.class};
+
+    /** First word of a hello frame. */
+    private static final int    MAGIC = 0x524d4906;
+    /** Marks the length prefix of a compressed frame. */
+    private static final int    COMPRESSED = 0x80000000;
+    /** Start of a zlib stream with the preset dictionary flag set, followed
+        by a dictionary identifier and the start of the compressed data. The
+        data must follow for the inflater to report that it needs no more
+        input. */
+    private static final byte[] DICTIONARY_STREAM =
+        new byte[] {0x78, (byte)0xbb, 0, 0, 0, 1, 3, 0};
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<BulkTransferTest.Echo> skeleton = null;
+
+    /** Implementation of the remote interface. */
+    private static class EchoServer implements BulkTransferTest.Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public java.nio.ByteBuffer echo(int prefix, java.nio.ByteBuffer data)
+        {
+            return data;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Transport transport : Transport.values())
+        {
+            task("echoing data through the " + transport + " transport");
+
+            skeleton = new Skeleton<BulkTransferTest.Echo>(
+                BulkTransferTest.Echo.class, new EchoServer());
+            skeleton.setTransport(transport);
+            skeleton.setLoopback(false);
+            skeleton.setCompression(true);
+
+            try
+            {
+                skeleton.start();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start skeleton", t);
+            }
+
+            BulkTransferTest.Echo   stub;
+
+            try
+            {
+                stub = Stub.create(BulkTransferTest.Echo.class, skeleton);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to create stub", t);
+            }
+
+            CompressionStats    stats = skeleton.getCompressionStats();
+
+            // Small frames are never compressed.
+            check(stub, new byte[100]);
+
+            if(stats.framesCompressed() != 0)
+                throw new TestFailed("small frame compressed");
+
+            // Random data does not shrink, so it is sent as it is.
+            byte[]      random = new byte[100 * 1024];
+            new Random(1).nextBytes(random);
+            check(stub, random);
+
+            if(stats.framesCompressed() != 0)
+                throw new TestFailed("incompressible frame compressed");
+
+            if(stats.framesSkipped() == 0)
+                throw new TestFailed("incompressible frame not counted");
+
+            // Repetitive data shrinks well.
+            byte[]      text = new byte[100 * 1024];
+            for(int index = 0; index < text.length; ++index)
+                text[index] = (byte)('a' + index % 7);
+            check(stub, text);
+
+            if(stats.framesCompressed() == 0)
+                throw new TestFailed("compressible frame not compressed");
+
+            if(stats.bytesAfterCompression() >= stats.bytesBeforeCompression())
+                throw new TestFailed("compression did not reduce frame size");
+
+            task("sending a frame that needs a preset dictionary through " +
+                 "the " + transport + " transport");
+
+            sendDictionaryFrame();
+            check(stub, text);
+
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        task();
+    }
+
+    /** Echoes an array and checks that it comes back unchanged.
+
+        @param stub The stub to call.
+        @param data The array to send.
+        @throws TestFailed If the data does not come back unchanged.
+     */
+    private void check(BulkTransferTest.Echo stub, byte[] data)
+        throws TestFailed
+    {
+        try
+        {
+            if(!Arrays.equals(stub.echo(data), data))
+            {
+                throw new TestFailed("array of " + data.length +
+                                     " bytes changed");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to echo " + data.length + " bytes",
+                                 t);
+        }
+    }
+
+    /** Sends the running skeleton a compressed frame that needs a preset
+        dictionary, and checks that the connection is closed.
+
+        @throws TestFailed If the skeleton keeps the connection open.
+     */
+    private void sendDictionaryFrame() throws TestFailed
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", skeleton.getAddress().getPort());
+
+        try(Socket socket = new Socket())
+        {
+            socket.connect(address);
+            socket.setSoTimeout(5000);
+
+            DataOutputStream    out =
+                new DataOutputStream(socket.getOutputStream());
+            DataInputStream     in =
+                new DataInputStream(socket.getInputStream());
+
+            // Hello offering the binary codec and compression.
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        hello = new DataOutputStream(bytes);
+            hello.writeInt(0);
+            hello.writeInt(MAGIC);
+            hello.writeInt(1);
+            hello.writeUTF("binary");
+            hello.writeBoolean(true);
+
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+
+            in.readFully(new byte[in.readInt()]);
+
+            // The contents claim to inflate to 100 bytes.
+            out.writeInt(COMPRESSED | (4 + DICTIONARY_STREAM.length));
+            out.writeInt(100);
+            out.write(DICTIONARY_STREAM);
+            out.flush();
+
+            if(in.read() != -1)
+                throw new TestFailed("skeleton answered frame needing a " +
+                                     "dictionary");
+        }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("skeleton kept connection with frame " +
+                                 "needing a dictionary open");
+        }
+        catch(SocketException e)
+        {
+            // A reset connection is closed as well
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send frame needing a dictionary",
+                                 t);
+        }
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class ConnectionTest extends Test
     {
         address = new InetSocketAddress(7000);
         skeleton = new TestSkeleton();
+        skeleton.setLoopback(false);
 
         try
         {
@@ -0,0 +1,220 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Tests call deadlines.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Calls through a stub with a call timeout fail with a
+        <code>DeadlineExceededException</code> once the timeout passes.</li>
+    <li>Calls inside a <code>Deadline</code> block fail the same way.</li>
+    <li>The stub's connection can still be used after a call times out.</li>
+    <li>Calls sent over a connection, rather than to the skeleton in memory,
+        time out and can be made again the same way.</li>
+    <li>Skeletons do not start calls whose deadline has passed.</li>
+    </ul>
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {AdmissionTest.class};
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Sleeper>   skeleton = null;
+
+    /** Remote interface with a method that takes a given time. */
+    public interface Sleeper
+    {
+        /** Returns <code>millis</code> after that many milliseconds. */
+        public long sleep(long millis) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class SleeperServer implements Sleeper
+    {
+        /** Number of calls started. */
+        final AtomicInteger     started = new AtomicInteger();
+
+        @Override
+        public long sleep(long millis)
+        {
+            started.incrementAndGet();
+
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e) { }
+
+            return millis;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        SleeperServer       server = new SleeperServer();
+        Sleeper             stub = start(server, 0, true);
+
+        task("timing out a call through a stub with a call timeout");
+
+        Sleeper             timed = Stub.withTimeouts(Sleeper.class, stub, 0,
+                                                      100);
+        expectTimeout(timed, 2000);
+
+        task("timing out a call inside a deadline block");
+
+        try(Deadline deadline = Deadline.after(100))
+        {
+            expectTimeout(stub, 2000);
+        }
+
+        task("calling again after a timeout");
+
+        try
+        {
+            if(timed.sleep(0) != 0)
+                throw new TestFailed("call returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call after timeout failed", t);
+        }
+
+        task("timing out a call over a connection");
+
+        skeleton.stop();
+        server = new SleeperServer();
+        stub = start(server, 0, false);
+        timed = Stub.withTimeouts(Sleeper.class, stub, 0, 100);
+        expectTimeout(timed, 2000);
+
+        try
+        {
+            if(timed.sleep(0) != 0)
+                throw new TestFailed("call returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call over connection after timeout failed",
+                                 t);
+        }
+
+        task("dropping calls whose deadline passes before they start");
+
+        // Allow only one call to run at once, and keep it busy.
+        skeleton.stop();
+        server = new SleeperServer();
+        stub = start(server, 1, true);
+        timed = Stub.withTimeouts(Sleeper.class, stub, 0, 100);
+
+        AsyncStub<Sleeper>  async = Stub.async(Sleeper.class, stub);
+        CompletableFuture<Long> busy = async.call(s -> s.sleep(1000));
+
+        long                start = System.currentTimeMillis();
+        while(server.started.get() < 1)
+        {
+            if(System.currentTimeMillis() - start > 5000)
+                throw new TestFailed("call did not reach the server");
+
+            Thread.yield();
+        }
+
+        expectTimeout(timed, 2000);
+
+        try
+        {
+            busy.get(5, TimeUnit.SECONDS);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("long call failed", t);
+        }
+
+        if(server.started.get() != 1)
+            throw new TestFailed("skeleton ran a call after its deadline");
+
+        task();
+    }
+
+    /** Starts a skeleton.
+
+        @param server The server object.
+        @param maxCalls Limit on calls running at once, or zero for none.
+        @param loopback Whether stubs in this JVM may call the skeleton in
+                        memory, rather than over a connection.
+        @return A stub for the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private Sleeper start(SleeperServer server, int maxCalls,
+                          boolean loopback)
+        throws TestFailed
+    {
+        skeleton = new Skeleton<Sleeper>(Sleeper.class, server);
+        skeleton.setCallLimit(maxCalls, 10, 0);
+        skeleton.setLoopback(loopback);
+
+        try
+        {
+            skeleton.start();
+            return Stub.create(Sleeper.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Checks that a call times out.
+
+        @param stub The stub to call.
+        @param millis How long the call would take.
+        @throws TestFailed If the call does not fail with a
+                           <code>DeadlineExceededException</code> well before
+                           it would complete.
+     */
+    private void expectTimeout(Sleeper stub, long millis) throws TestFailed
+    {
+        long        start = System.currentTimeMillis();
+
+        try
+        {
+            stub.sleep(millis);
+            throw new TestFailed("call did not time out");
+        }
+        catch(DeadlineExceededException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed with the wrong exception", t);
+        }
+
+        if(System.currentTimeMillis() - start >= millis)
+            throw new TestFailed("call timed out too late");
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
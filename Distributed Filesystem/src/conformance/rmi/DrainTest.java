@@ -0,0 +1,222 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Tests draining of calls when a skeleton is stopped.
+
+    <p>
+    This test checks that:
+    <ul>
+    <li>A call in progress when <code>stop(long)</code> is called is allowed to
+        finish, and its caller gets the result.</li>
+    <li>A call still running when the drain times out is cut off, and its
+        caller gets a <code>TransportException</code>.</li>
+    <li>The skeleton reports how many calls were drained and cut off.</li>
+    </ul>
+ */
+public class DrainTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking draining of calls on skeleton stop";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class};
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Slow>      skeleton = null;
+    /** Server object. */
+    private SlowServer          server = null;
+
+    /** Remote interface whose method waits for the test to release it. */
+    public interface Slow
+    {
+        /** Returns <code>value</code> once released. */
+        public int hold(int value) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class SlowServer implements Slow
+    {
+        /** Counted down when a call has started. */
+        volatile CountDownLatch started = new CountDownLatch(1);
+        /** Released by the test to let calls return. */
+        volatile CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public int hold(int value)
+        {
+            started.countDown();
+
+            try
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e) { }
+
+            return value;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        server = new SlowServer();
+
+        task("draining a call in progress");
+
+        Caller                  caller = startCall();
+
+        // Let the call return shortly after the skeleton starts draining.
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch(InterruptedException e) { }
+
+                server.release.countDown();
+            }
+        }).start();
+
+        DrainReport             report = skeleton.stop(5000);
+        skeleton = null;
+        caller.await();
+
+        if(caller.failure != null)
+            throw new TestFailed("drained call failed", caller.failure);
+
+        if(caller.result != 1)
+            throw new TestFailed("drained call returned wrong result");
+
+        if(report.drained() != 1 || report.cutOff() != 0)
+            throw new TestFailed("unexpected drain report: " + report);
+
+        task("cutting off a call at the drain timeout");
+
+        server.release = new CountDownLatch(1);
+        caller = startCall();
+
+        report = skeleton.stop(200);
+        skeleton = null;
+        caller.await();
+        server.release.countDown();
+
+        if(!(caller.failure instanceof TransportException))
+            throw new TestFailed("cut off call did not fail in transport",
+                                 caller.failure);
+
+        if(report.drained() != 0 || report.cutOff() != 1)
+            throw new TestFailed("unexpected drain report: " + report);
+
+        task();
+    }
+
+    /** Starts a skeleton and makes a call to it from another thread, waiting
+        until the call has reached the server.
+
+        @return The thread making the call.
+        @throws TestFailed If the skeleton cannot be started, or the call does
+                           not reach the server.
+     */
+    private Caller startCall() throws TestFailed
+    {
+        Slow                    stub;
+
+        skeleton = new Skeleton<Slow>(Slow.class, server);
+        skeleton.setLoopback(false);
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Slow.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        server.started = new CountDownLatch(1);
+        Caller                  caller = new Caller(stub);
+        caller.start();
+
+        try
+        {
+            if(!server.started.await(10, TimeUnit.SECONDS))
+                throw new TestFailed("call did not reach the server");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for call");
+        }
+
+        return caller;
+    }
+
+    /** Thread making one call. */
+    private static class Caller extends Thread
+    {
+        private final Slow      stub;
+        int                     result = 0;
+        Throwable               failure = null;
+
+        Caller(Slow stub)
+        {
+            this.stub = stub;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                result = stub.hold(1);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+
+        /** Waits for the call to complete.
+
+            @throws TestFailed If the call does not complete.
+         */
+        void await() throws TestFailed
+        {
+            try
+            {
+                join(10000);
+            }
+            catch(InterruptedException e) { }
+
+            if(isAlive())
+                throw new TestFailed("call did not complete");
+        }
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.countDown();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
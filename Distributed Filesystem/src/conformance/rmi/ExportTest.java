@@ -0,0 +1,207 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.lang.reflect.Proxy;
+
+/** Tests skeletons exported on the listener of another skeleton.
+
+    <p>
+    This test starts one skeleton with its own listener and a second one on
+    that listener, and checks that stubs for both share the address and a
+    single connection, that calls reach the right server, that calls for an
+    object that is not exported are refused, and that stopping the skeletons
+    withdraws them.
+ */
+public class ExportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking skeletons sharing a listener";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class};
+
+    /** Skeleton owning the listener. */
+    private Skeleton<Counter>   host = null;
+    /** Skeleton exported on its listener. */
+    private Skeleton<Namer>     guest = null;
+
+    /** Remote interface of the first server. */
+    public interface Counter
+    {
+        /** Returns how many times this method has been called. */
+        public int next() throws RMIException;
+    }
+
+    /** Remote interface of the second server. */
+    public interface Namer
+    {
+        /** Returns a fixed name. */
+        public String name() throws RMIException;
+    }
+
+    /** Implementation of <code>Counter</code>. */
+    private static class CounterServer implements Counter
+    {
+        private int     count = 0;
+
+        @Override
+        public synchronized int next()
+        {
+            return ++count;
+        }
+    }
+
+    /** Implementation of <code>Namer</code>. */
+    private static class NamerServer implements Namer
+    {
+        @Override
+        public String name()
+        {
+            return "namer";
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("starting a skeleton on another skeleton's listener");
+
+        host = new Skeleton<Counter>(Counter.class, new CounterServer());
+        host.setLoopback(false);
+        guest = new Skeleton<Namer>(Namer.class, new NamerServer());
+
+        Counter                 counter;
+        Namer                   namer;
+
+        try
+        {
+            host.start();
+            guest.startOn(host);
+            counter = Stub.create(Counter.class, host);
+            namer = Stub.create(Namer.class, guest);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+
+        if(!guest.getAddress().equals(host.getAddress()))
+            throw new TestFailed("exported skeleton has its own address");
+
+        task("calling both skeletons");
+
+        try
+        {
+            for(int call = 1; call <= 3; ++call)
+            {
+                if(counter.next() != call)
+                    throw new TestFailed("wrong result from first skeleton");
+
+                if(!"namer".equals(namer.name()))
+                    throw new TestFailed("wrong result from second skeleton");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to make call", t);
+        }
+
+        if(host.getMetrics().activeConnections() != 1)
+            throw new TestFailed("skeletons do not share one connection");
+
+        if(guest.getMetrics().method("name").calls() != 3)
+            throw new TestFailed("calls not counted by their skeleton");
+
+        task("calling an object that is not exported");
+
+        Namer                   missing = Stub.create(Namer.class,
+                                                      host.getAddress());
+        ((ProxyHandler)Proxy.getInvocationHandler(missing)).object = 1000;
+
+        expectFailure(missing);
+
+        task("stopping the exported skeleton");
+
+        guest.stop();
+        expectFailure(namer);
+
+        try
+        {
+            counter.next();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("first skeleton stopped with the second", t);
+        }
+
+        task("stopping the skeleton owning the listener");
+
+        try
+        {
+            guest.startOn(host);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to restart exported skeleton", t);
+        }
+
+        host.stop();
+        host = null;
+
+        try
+        {
+            guest.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("exported skeleton not stopped with the " +
+                                 "skeleton owning the listener", t);
+        }
+
+        task();
+    }
+
+    /** Checks that a call through a stub fails.
+
+        @param stub The stub.
+        @throws TestFailed If the call succeeds.
+     */
+    private void expectFailure(Namer stub) throws TestFailed
+    {
+        try
+        {
+            stub.name();
+            throw new TestFailed("call to missing object succeeded");
+        }
+        catch(RMIException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Stops the skeletons, if they are running. */
+    @Override
+    protected void clean()
+    {
+        if(guest != null)
+        {
+            guest.stop();
+            guest = null;
+        }
+
+        if(host != null)
+        {
+            host.stop();
+            host = null;
+        }
+    }
+}
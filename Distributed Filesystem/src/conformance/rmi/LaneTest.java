@@ -0,0 +1,322 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.*;
+
+/** Tests lanes in skeletons.
+
+    <p>
+    A skeleton is started with a <code>"bulk"</code> lane limited to one call
+    at once, and with a separate executor for each of the lane and the
+    default lane. The test checks that:
+    <ul>
+    <li>Calls to a method marked with <code>@Lane("bulk")</code> run on the
+        lane's executor, and calls to other methods on the skeleton's
+        executor.</li>
+    <li>While the bulk lane is full and a further bulk call is waiting for
+        it, calls in the default lane are still answered.</li>
+    <li>The waiting bulk call runs, in the lane, once the lane has room.</li>
+    <li>A batch holding a call in the bulk lane is refused without running
+        any of its calls, since it would get around the lane's limit, while
+        a batch of calls in the default lane runs.</li>
+    </ul>
+ */
+public class LaneTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton lanes";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {AdmissionTest.class};
+
+    /** Name of the threads of the bulk lane's executor. */
+    private static final String BULK_THREAD = "bulk-lane";
+    /** Name of the threads of the skeleton's executor. */
+    private static final String DEFAULT_THREAD = "default-lane";
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Store>     skeleton = null;
+    /** Server object of the running skeleton. */
+    private StoreServer         server = null;
+    /** Executor of the bulk lane. */
+    private ExecutorService     bulk = null;
+    /** Executor of the default lane. */
+    private ExecutorService     common = null;
+
+    /** Remote interface with a slow method in the bulk lane, and a quick
+        method in the default lane. */
+    public interface Store
+    {
+        /** Returns once the test lets transfers finish. */
+        @Lane("bulk")
+        public void transfer() throws RMIException;
+
+        /** Returns at once. */
+        public int size() throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class StoreServer implements Store
+    {
+        /** Calls to <code>transfer</code> in progress. */
+        private final Semaphore         entered = new Semaphore(0);
+        /** Opened to let calls to <code>transfer</code> return. */
+        private final CountDownLatch    open = new CountDownLatch(1);
+        /** Name of the thread the last call to <code>transfer</code> ran
+            on. */
+        private volatile String         transferThread = null;
+        /** Name of the thread the last call to <code>size</code> ran on. */
+        private volatile String         sizeThread = null;
+
+        @Override
+        public void transfer()
+        {
+            transferThread = Thread.currentThread().getName();
+            entered.release();
+
+            try
+            {
+                open.await();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public int size()
+        {
+            sizeThread = Thread.currentThread().getName();
+            return 1;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        AsyncStub<Store>    stub = start();
+
+        task("running calls in a lane on the lane's executor");
+
+        CompletableFuture<Object>   first =
+            stub.call(s -> { s.transfer(); return null; });
+        awaitEntered();
+
+        if(!BULK_THREAD.equals(server.transferThread))
+            throw new TestFailed("call in bulk lane not run on its executor");
+
+        task("answering calls while the bulk lane is full");
+
+        CompletableFuture<Object>   waiting =
+            stub.call(s -> { s.transfer(); return null; });
+
+        for(int call = 0; call < 3; ++call)
+        {
+            try
+            {
+                if(!stub.call(s -> s.size()).get(5, TimeUnit.SECONDS)
+                        .equals(1))
+                {
+                    throw new TestFailed("call returned wrong result");
+                }
+            }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("call outside full lane failed", t);
+            }
+        }
+
+        if(!DEFAULT_THREAD.equals(server.sizeThread))
+        {
+            throw new TestFailed("call in default lane not run on the " +
+                                 "skeleton's executor");
+        }
+
+        if(waiting.isDone())
+            throw new TestFailed("waiting call ran over the lane limit");
+
+        task("running the waiting call once the lane has room");
+
+        server.transferThread = null;
+        server.open.countDown();
+
+        try
+        {
+            first.get(5, TimeUnit.SECONDS);
+            waiting.get(5, TimeUnit.SECONDS);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call in bulk lane failed", t);
+        }
+
+        if(!BULK_THREAD.equals(server.transferThread))
+            throw new TestFailed("call in bulk lane not run on its executor");
+
+        task("batching calls in the bulk lane");
+
+        server.entered.drainPermits();
+
+        Batch<Store>                mixed = stub.batch();
+        CompletableFuture<Integer>  size = mixed.add(s -> s.size());
+        CompletableFuture<Object>   transfer =
+            mixed.add(s -> { s.transfer(); return null; });
+
+        sendBatch(mixed);
+        expectRefused(size);
+        expectRefused(transfer);
+
+        if(server.entered.availablePermits() != 0)
+            throw new TestFailed("call in bulk lane run in a batch");
+
+        Batch<Store>                plain = stub.batch();
+        size = plain.add(s -> s.size());
+
+        sendBatch(plain);
+
+        try
+        {
+            if(size.get() != 1)
+                throw new TestFailed("batched call returned wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("batch of calls in default lane failed", t);
+        }
+
+        task();
+    }
+
+    /** Sends a batch and waits for its reply.
+
+        @param batch The batch.
+        @throws TestFailed If no reply comes.
+     */
+    private void sendBatch(Batch<Store> batch) throws TestFailed
+    {
+        try
+        {
+            batch.send().get(5, TimeUnit.SECONDS);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("batch not answered", t);
+        }
+    }
+
+    /** Checks that a batched call was refused with an
+        <code>RMIException</code>.
+
+        @param call The call.
+        @throws TestFailed If the call was not refused.
+     */
+    private void expectRefused(CompletableFuture<?> call) throws TestFailed
+    {
+        try
+        {
+            call.get();
+            throw new TestFailed("batched call in bulk lane not refused");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof RMIException))
+            {
+                throw new TestFailed("batched call failed with the wrong " +
+                                     "exception", e.getCause());
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("batched call in bulk lane not refused", t);
+        }
+    }
+
+    /** Starts a skeleton with a bulk lane limited to one call, and an
+        executor for each lane.
+
+        @return An asynchronous stub for the skeleton.
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    private AsyncStub<Store> start() throws TestFailed
+    {
+        bulk = Executors.newCachedThreadPool(named(BULK_THREAD));
+        common = Executors.newCachedThreadPool(named(DEFAULT_THREAD));
+
+        server = new StoreServer();
+        skeleton = new Skeleton<Store>(Store.class, server);
+        skeleton.setExecutor(CallExecutor.of(common));
+        skeleton.setCallLimit(1, 4, 0);
+        skeleton.setLane("bulk", 1, CallExecutor.of(bulk));
+
+        try
+        {
+            skeleton.start();
+
+            return Stub.async(Store.class,
+                              Stub.create(Store.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Returns a factory of daemon threads with the given name.
+
+        @param name The name of the threads.
+        @return The thread factory.
+     */
+    private static ThreadFactory named(String name)
+    {
+        return r -> { Thread t = new Thread(r, name);
+                      t.setDaemon(true);
+                      return t; };
+    }
+
+    /** Waits for a call to <code>transfer</code> to be in progress.
+
+        @throws TestFailed If the call does not arrive.
+     */
+    private void awaitEntered() throws TestFailed
+    {
+        try
+        {
+            if(!server.entered.tryAcquire(5, TimeUnit.SECONDS))
+                throw new TestFailed("call did not reach the server");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Stops the skeleton and its executors, if they are running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            server.open.countDown();
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(bulk != null)
+        {
+            bulk.shutdown();
+            bulk = null;
+        }
+
+        if(common != null)
+        {
+            common.shutdown();
+            common = null;
+        }
+    }
+}
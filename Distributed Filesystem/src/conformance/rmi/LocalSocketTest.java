@@ -0,0 +1,156 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Tests skeletons listening on Unix domain sockets.
+
+    <p>
+    This test starts a skeleton with a local socket file under each transport,
+    and echoes a large array through a stub created from it. The stub is then
+    pointed at a TCP port nobody listens on, so that its calls only succeed if
+    they go through the socket file. Finally, the test checks that the socket
+    file is removed when the skeleton stops.
+ */
+public class LocalSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking calls through Unix domain sockets";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {BulkTransferTest.class};
+
+    /** Number of bytes echoed. */
+    private static final int    SIZE = 1024 * 1024;
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<BulkTransferTest.Echo> skeleton = null;
+    /** Socket file used by the skeleton. */
+    private File                socket = null;
+
+    /** Implementation of the remote interface. */
+    private static class EchoServer implements BulkTransferTest.Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public ByteBuffer echo(int prefix, ByteBuffer data)
+        {
+            return data;
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Transport transport : Transport.values())
+        {
+            task("echoing data through a socket file with the " + transport +
+                 " transport");
+
+            socket = new File(System.getProperty("java.io.tmpdir"),
+                              "rmi-test-" + transport + "-" +
+                              System.nanoTime() + ".sock");
+
+            skeleton = new Skeleton<BulkTransferTest.Echo>(
+                BulkTransferTest.Echo.class, new EchoServer());
+            skeleton.setTransport(transport);
+            skeleton.setLoopback(false);
+            skeleton.setLocalSocket(socket.toPath());
+
+            BulkTransferTest.Echo   stub;
+
+            try
+            {
+                skeleton.start();
+                stub = Stub.create(BulkTransferTest.Echo.class, skeleton);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start skeleton", t);
+            }
+
+            if(!socket.exists())
+                throw new TestFailed("socket file not created");
+
+            check(stub);
+
+            // Leave the stub nothing to reach over TCP.
+            try
+            {
+                ServerSocket    unused = new ServerSocket(0);
+                int             port = unused.getLocalPort();
+                unused.close();
+
+                ProxyHandler    handler =
+                    (ProxyHandler)Proxy.getInvocationHandler(stub);
+                handler.address = new InetSocketAddress("127.0.0.1", port);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to redirect stub", t);
+            }
+
+            check(stub);
+
+            skeleton.stop();
+            skeleton = null;
+
+            if(socket.exists())
+                throw new TestFailed("socket file not removed");
+        }
+
+        task();
+    }
+
+    /** Echoes a large array.
+
+        @param stub The stub to call.
+        @throws TestFailed If the data does not come back unchanged.
+     */
+    private void check(BulkTransferTest.Echo stub) throws TestFailed
+    {
+        byte[]      data = new byte[SIZE];
+        new Random(SIZE).nextBytes(data);
+
+        try
+        {
+            if(!Arrays.equals(stub.echo(data), data))
+                throw new TestFailed("array changed");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to echo array", t);
+        }
+    }
+
+    /** Stops the skeleton, if it is running, and removes the socket file. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(socket != null)
+            socket.delete();
+    }
+}
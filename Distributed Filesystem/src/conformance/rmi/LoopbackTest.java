@@ -0,0 +1,171 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+
+/** Tests calls from stubs to skeletons in the same JVM.
+
+    <p>
+    Such calls are passed to the skeleton in memory rather than over a
+    connection. This test checks that they still behave as remote calls:
+    arguments and results are copied, remote exceptions are thrown to the
+    caller, and calls fail once the skeleton has stopped.
+ */
+public class LoopbackTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking in-memory calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {MetricsTest.class};
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Holder>    skeleton = null;
+
+    /** Remote interface that keeps an array. */
+    public interface Holder
+    {
+        /** Keeps <code>values</code>. */
+        public void store(int[] values) throws RMIException;
+
+        /** Returns the array last kept. */
+        public int[] stored() throws RMIException;
+
+        /** Always throws. */
+        public void fail() throws RMIException, TestFailed;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class HolderServer implements Holder
+    {
+        private int[]   values = null;
+
+        @Override
+        public synchronized void store(int[] values)
+        {
+            this.values = values;
+        }
+
+        @Override
+        public synchronized int[] stored()
+        {
+            return values;
+        }
+
+        @Override
+        public void fail() throws TestFailed
+        {
+            throw new TestFailed("expected");
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        skeleton = new Skeleton<Holder>(Holder.class, new HolderServer());
+
+        Holder                  stub;
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Holder.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task("checking that arguments and results are copied");
+
+        int[]                   values = new int[] {1, 2, 3};
+
+        try
+        {
+            stub.store(values);
+            values[0] = 100;
+
+            int[]               stored = stub.stored();
+            if(stored == values || stored[0] != 1)
+                throw new TestFailed("server shares the argument array");
+
+            stored[1] = 200;
+            if(stub.stored()[1] != 2)
+                throw new TestFailed("caller shares the result array");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to make call", t);
+        }
+
+        task("checking remote exceptions");
+
+        try
+        {
+            stub.fail();
+            throw new TestFailed("remote exception not thrown");
+        }
+        catch(TestFailed e)
+        {
+            if(!e.getMessage().equals("expected"))
+                throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task("checking that no connection was made");
+
+        MetricsSnapshot         metrics = skeleton.getMetrics();
+
+        if(metrics.activeConnections() != 0)
+            throw new TestFailed("stub connected to the skeleton");
+
+        if(metrics.calls() != 4)
+            throw new TestFailed("skeleton did not serve every call");
+
+        task("calling a stopped skeleton");
+
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            stub.stored();
+            throw new TestFailed("call to stopped skeleton succeeded");
+        }
+        catch(RMIException e)
+        {
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+
+/** Tests the call metrics kept by skeletons and stubs.
+
+    <p>
+    This test makes calls that succeed, calls that throw, and calls that take a
+    known time, and checks that the skeleton and the stubs count them, time
+    them and count their bytes.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class};
+
+    /** Milliseconds the slow method takes. */
+    private static final int    DELAY = 20;
+    /** Number of calls made to each method. */
+    private static final int    CALLS = 10;
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Measured>  skeleton = null;
+
+    /** Remote interface with methods of known behaviour. */
+    public interface Measured
+    {
+        /** Returns <code>data</code>. */
+        public byte[] echo(byte[] data) throws RMIException;
+
+        /** Returns after <code>DELAY</code> milliseconds. */
+        public void slow() throws RMIException;
+
+        /** Always throws. */
+        public void fail() throws RMIException, TestFailed;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class MeasuredServer implements Measured
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public void slow()
+        {
+            try
+            {
+                Thread.sleep(DELAY);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public void fail() throws TestFailed
+        {
+            throw new TestFailed("expected");
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        skeleton = new Skeleton<Measured>(Measured.class, new MeasuredServer());
+        skeleton.setLoopback(false);
+
+        Measured                stub;
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Measured.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task("making calls");
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            try
+            {
+                stub.echo(new byte[1000]);
+                stub.slow();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to make call", t);
+            }
+
+            try
+            {
+                stub.fail();
+                throw new TestFailed("remote exception not thrown");
+            }
+            catch(TestFailed e)
+            {
+                if(!e.getMessage().equals("expected"))
+                    throw e;
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception", t);
+            }
+        }
+
+        task("checking skeleton metrics");
+        check(skeleton.getMetrics(), "skeleton");
+
+        if(skeleton.getMetrics().activeConnections() < 1)
+            throw new TestFailed("skeleton counted no connections");
+
+        task("checking stub metrics");
+        check(Stub.metrics(Measured.class), "stubs");
+
+        task();
+    }
+
+    /** Checks the metrics seen from one side.
+
+        @param metrics The metrics.
+        @param side Name of the side, for messages.
+        @throws TestFailed If the metrics do not match the calls made.
+     */
+    private void check(MetricsSnapshot metrics, String side)
+        throws TestFailed
+    {
+        MetricsSnapshot.MethodMetrics   echo = metrics.method("echo");
+        MetricsSnapshot.MethodMetrics   slow = metrics.method("slow()");
+        MetricsSnapshot.MethodMetrics   fail = metrics.method("fail");
+
+        if(echo == null || slow == null || fail == null)
+            throw new TestFailed(side + " do not report every method");
+
+        if(echo.calls() != CALLS || slow.calls() != CALLS ||
+           fail.calls() != CALLS)
+        {
+            throw new TestFailed(side + " counted the wrong number of calls");
+        }
+
+        if(echo.errors() != 0 || fail.errors() != CALLS)
+            throw new TestFailed(side + " counted the wrong number of errors");
+
+        if(echo.bytesIn() < CALLS * 1000 || echo.bytesOut() < CALLS * 1000)
+            throw new TestFailed(side + " counted too few bytes");
+
+        if(slow.invoke().count() != CALLS || slow.total().count() != CALLS)
+            throw new TestFailed(side + " timed the wrong number of calls");
+
+        // The slow method takes at least DELAY milliseconds, and the
+        // percentile is never below the true value.
+        if(slow.invoke().percentile(50) < DELAY * 1000000L ||
+           slow.total().max() < DELAY * 1000000L)
+        {
+            throw new TestFailed(side + " timed the slow method too short");
+        }
+
+        if(slow.invoke().percentile(50) > slow.invoke().max())
+            throw new TestFailed(side + " report percentile above maximum");
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
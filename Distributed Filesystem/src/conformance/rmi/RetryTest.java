@@ -0,0 +1,577 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests retries and failover of idempotent calls.
+
+    <p>
+    This test checks that:
+    <ul>
+    <li>A stub with a retry policy makes an idempotent call to an address
+        nothing listens on the allowed number of times, and then throws a
+        <code>TransportException</code>.</li>
+    <li>The call timeout of such a stub bounds the whole call, and not each
+        attempt: the stub gives up once the timeout has passed, even though
+        its policy would allow many more attempts.</li>
+    <li>A failover stub whose first replica is unreachable makes idempotent
+        calls on the second one, and keeps using it.</li>
+    <li>Calls to methods not marked idempotent are not failed over.</li>
+    <li>A call not marked idempotent is not sent again when the connection it
+        was sent on is lost while the server runs it, even if the connection
+        had carried earlier calls.</li>
+    <li>A connection left idle and then silently dropped by the network is
+        not used for the next call: the call is made on a new connection
+        instead of waiting for a reply that cannot come.</li>
+    </ul>
+ */
+public class RetryTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking retries and failover";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class};
+
+    /** Policy used by the test, with short backoffs. */
+    private static final RetryPolicy    POLICY = new RetryPolicy(3, 10, 50);
+    /** Policy whose attempts and backoffs take far longer than
+        <code>SHORT_TIMEOUT</code>. */
+    private static final RetryPolicy    PATIENT = new RetryPolicy(10, 300, 300);
+    /** Call timeout, in milliseconds, of the stub retried under
+        <code>PATIENT</code>. */
+    private static final long           SHORT_TIMEOUT = 100;
+    /** Milliseconds a connection is left idle before it is dropped; long
+        enough for the stub to check it before reusing it. */
+    private static final long           IDLE = 1500;
+    /** Milliseconds to wait for the reply to the call made after the
+        connection is dropped. */
+    private static final long           CALL_TIMEOUT = 5000;
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Counter>   skeleton = null;
+    /** Skeleton whose connection is lost, if running. */
+    private Skeleton<Counter>   dropping = null;
+    /** Skeleton reached through <code>relay</code>, if running. */
+    private Skeleton<Counter>   relayed = null;
+    /** Relay whose connections are dropped, if running. */
+    private Relay               relay = null;
+
+    /** Remote interface counting the calls made to it. */
+    public interface Counter
+    {
+        /** Returns the number of calls made so far, this one included. */
+        @Idempotent
+        public int count() throws RMIException;
+
+        /** Same as <code>count</code>, without being marked idempotent. */
+        public int countUnmarked() throws RMIException;
+
+        /** Same as <code>countUnmarked</code>, but returns only once the test
+            releases it. */
+        public int hold() throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class CounterServer implements Counter
+    {
+        final AtomicInteger     calls = new AtomicInteger();
+
+        @Override
+        public int count()
+        {
+            return calls.incrementAndGet();
+        }
+
+        @Override
+        public int countUnmarked()
+        {
+            return calls.incrementAndGet();
+        }
+
+        /** Counted down when a call to <code>hold</code> has started. */
+        final CountDownLatch    started = new CountDownLatch(1);
+        /** Released by the test to let calls to <code>hold</code> return. */
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public int hold()
+        {
+            int                 count = calls.incrementAndGet();
+
+            started.countDown();
+
+            try
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e) { }
+
+            return count;
+        }
+    }
+
+    /** Executor running each task on a new thread, which can be told to
+        refuse the next task. A skeleton closes a connection when a call
+        arriving on it is refused. */
+    private static class RefusingExecutor implements Executor
+    {
+        volatile boolean        refuseNext = false;
+
+        @Override
+        public void execute(Runnable task)
+        {
+            if(refuseNext)
+            {
+                refuseNext = false;
+                throw new RejectedExecutionException("refused by test");
+            }
+
+            Thread              thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Relay of TCP connections to a skeleton. Once silenced, the
+        connections made so far discard everything sent on them without
+        closing, as connections dropped by the network would; later
+        connections are relayed as usual. */
+    private static class Relay implements Runnable
+    {
+        /** Socket accepting connections to relay. */
+        final ServerSocket              listener;
+        /** Address of the skeleton. */
+        final InetSocketAddress         target;
+        /** Silencing flag of each connection made so far. */
+        final ArrayList<AtomicBoolean>  links = new ArrayList<AtomicBoolean>();
+
+        Relay(InetSocketAddress target) throws IOException
+        {
+            this.target = target;
+            listener = new ServerSocket(0);
+
+            Thread              thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Returns the address stubs connect to. */
+        InetSocketAddress address()
+        {
+            return new InetSocketAddress("127.0.0.1", listener.getLocalPort());
+        }
+
+        /** Silences the connections made so far. */
+        synchronized void silence()
+        {
+            for(AtomicBoolean silenced : links)
+                silenced.set(true);
+        }
+
+        /** Stops accepting connections. */
+        void close()
+        {
+            try
+            {
+                listener.close();
+            }
+            catch(IOException e) { }
+        }
+
+        /** Accepts connections and relays each one to the skeleton. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    Socket          client = listener.accept();
+                    Socket          server = new Socket();
+                    AtomicBoolean   silenced = new AtomicBoolean();
+
+                    try
+                    {
+                        server.connect(target);
+                    }
+                    catch(IOException e)
+                    {
+                        client.close();
+                        continue;
+                    }
+
+                    synchronized(this)
+                    {
+                        links.add(silenced);
+                    }
+
+                    pump(client, server, silenced);
+                    pump(server, client, silenced);
+                }
+            }
+            catch(IOException e) { }
+        }
+
+        /** Starts a thread copying bytes from one socket to another until
+            either closes. Both are then closed. */
+        private void pump(final Socket from, final Socket to,
+                          final AtomicBoolean silenced)
+        {
+            Thread              thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    byte[]      buffer = new byte[8192];
+
+                    try
+                    {
+                        InputStream     in = from.getInputStream();
+                        OutputStream    out = to.getOutputStream();
+                        int             read;
+
+                        while((read = in.read(buffer)) >= 0)
+                        {
+                            if(!silenced.get())
+                                out.write(buffer, 0, read);
+                        }
+                    }
+                    catch(IOException e) { }
+                    finally
+                    {
+                        try
+                        {
+                            from.close();
+                            to.close();
+                        }
+                        catch(IOException e) { }
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        CounterServer           server = new CounterServer();
+        skeleton = new Skeleton<Counter>(Counter.class, server);
+
+        Counter                 live;
+
+        try
+        {
+            skeleton.start();
+            live = Stub.create(Counter.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Counter                 dead =
+            Stub.create(Counter.class, new InetSocketAddress("127.0.0.1",
+                                                             unusedPort()));
+
+        task("retrying an idempotent call to an unreachable address");
+
+        try
+        {
+            Stub.withRetries(Counter.class, dead, POLICY).count();
+            throw new TestFailed("call to unreachable address succeeded");
+        }
+        catch(TransportException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from retried call", t);
+        }
+
+        task("bounding retries by the call timeout");
+
+        Counter                 patient =
+            Stub.withTimeouts(Counter.class,
+                              Stub.withRetries(Counter.class, dead, PATIENT),
+                              0, SHORT_TIMEOUT);
+        long                    start = System.currentTimeMillis();
+
+        try
+        {
+            patient.count();
+            throw new TestFailed("call to unreachable address succeeded");
+        }
+        catch(TransportException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from retried call", t);
+        }
+
+        if(System.currentTimeMillis() - start > SHORT_TIMEOUT * 5)
+            throw new TestFailed("retries ran past the call timeout");
+
+        task("failing over idempotent calls to a live replica");
+
+        Counter                 failover =
+            Stub.failover(Counter.class, Arrays.asList(dead, live), POLICY);
+
+        try
+        {
+            if(failover.count() != 1 || failover.count() != 2)
+                throw new TestFailed("failover stub gave wrong results");
+
+            // The live replica is now current, so this call reaches it.
+            if(failover.countUnmarked() != 3)
+                throw new TestFailed("failover stub gave wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call through failover stub", t);
+        }
+
+        task("calling a method not marked idempotent on a dead replica");
+
+        failover =
+            Stub.failover(Counter.class, Arrays.asList(dead, live), POLICY);
+
+        try
+        {
+            failover.countUnmarked();
+            throw new TestFailed("call not marked idempotent failed over");
+        }
+        catch(TransportException e) { }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from failover stub",
+                                 t);
+        }
+
+        if(server.calls.get() != 3)
+            throw new TestFailed("server ran " + server.calls.get() +
+                                 " calls instead of 3");
+
+        task("losing a connection with a call in progress");
+
+        lostConnection();
+
+        task("reusing a connection dropped by the network");
+
+        droppedConnection();
+
+        task();
+    }
+
+    /** Checks that a call is not sent on an idle connection that has since
+        been dropped without being closed.
+
+        @throws TestFailed If the call is sent on the dropped connection, or
+                           fails.
+     */
+    private void droppedConnection() throws TestFailed
+    {
+        CounterServer           server = new CounterServer();
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1", unusedPort());
+        Counter                 stub;
+
+        relayed = new Skeleton<Counter>(Counter.class, server, address);
+
+        try
+        {
+            relayed.start();
+            relay = new Relay(address);
+            stub = Stub.withTimeouts(Counter.class,
+                Stub.create(Counter.class, relay.address()), 0, CALL_TIMEOUT);
+
+            stub.countUnmarked();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        try
+        {
+            Thread.sleep(IDLE);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while connection was idle");
+        }
+
+        relay.silence();
+
+        try
+        {
+            if(stub.countUnmarked() != 2)
+                throw new TestFailed("call after dropped connection gave " +
+                                     "wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(DeadlineExceededException e)
+        {
+            throw new TestFailed("call sent on dropped connection", e);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call after dropped connection failed", t);
+        }
+    }
+
+    /** Checks that a call not marked idempotent is not sent again when the
+        connection it was sent on closes while the server is running it.
+
+        @throws TestFailed If the call is run twice, or does not fail.
+     */
+    private void lostConnection() throws TestFailed
+    {
+        final CounterServer     server = new CounterServer();
+        RefusingExecutor        executor = new RefusingExecutor();
+        final Counter           stub;
+
+        dropping = new Skeleton<Counter>(Counter.class, server);
+        dropping.setLoopback(false);
+        dropping.setExecutor(CallExecutor.of(executor));
+
+        try
+        {
+            dropping.start();
+            stub = Stub.create(Counter.class, dropping);
+
+            // Warm the connection up, so that it counts as reused.
+            stub.countUnmarked();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        final Throwable[]       failure = new Throwable[1];
+        Thread                  holder = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.hold();
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        });
+        holder.start();
+
+        try
+        {
+            if(!server.started.await(10, TimeUnit.SECONDS))
+                throw new TestFailed("call did not reach the server");
+
+            // The skeleton closes the connection, with the held call on it,
+            // when it refuses this call.
+            executor.refuseNext = true;
+
+            try
+            {
+                stub.countUnmarked();
+            }
+            catch(RMIException e) { }
+
+            holder.join(10000);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for call");
+        }
+        finally
+        {
+            server.release.countDown();
+        }
+
+        if(holder.isAlive())
+            throw new TestFailed("call did not fail when its connection " +
+                                 "closed");
+
+        if(!(failure[0] instanceof TransportException))
+        {
+            throw new TestFailed("call on lost connection did not fail in " +
+                                 "transport", failure[0]);
+        }
+
+        if(server.calls.get() != 2)
+        {
+            throw new TestFailed("server ran " + server.calls.get() +
+                                 " calls instead of 2");
+        }
+    }
+
+    /** Returns a port on the local host that nothing is listening on.
+
+        @throws TestFailed If no port can be found.
+     */
+    private int unusedPort() throws TestFailed
+    {
+        try(ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unable to find an unused port", e);
+        }
+    }
+
+    /** Stops the skeletons and the relay, if they are running. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(dropping != null)
+        {
+            dropping.stop();
+            dropping = null;
+        }
+
+        if(relay != null)
+        {
+            relay.close();
+            relay = null;
+        }
+
+        if(relayed != null)
+        {
+            relayed.stop();
+            relayed = null;
+        }
+    }
+}
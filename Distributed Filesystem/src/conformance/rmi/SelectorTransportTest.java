@@ -0,0 +1,215 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.net.*;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+
+/** Tests stubs against a skeleton using the selector transport.
+
+    <p>
+    This test starts a skeleton with {@link rmi.Transport#SELECTOR}. It then
+    checks that results and remote exceptions are transmitted correctly, that
+    many calls can be made one after another, and that two calls can be in
+    progress at the same time. Finally, it checks that a connection announcing
+    a frame longer than the skeleton accepts is closed, and that the skeleton
+    goes on serving other connections.
+ */
+public class SelectorTransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking selector transport for skeletons";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class, ThreadTest.class};
+
+    /** Address at which the test skeleton will run. */
+    private InetSocketAddress   address;
+    /** Server object used in the test. */
+    private TestServer          server;
+    /** Skeleton object used in the test. */
+    private TestSkeleton        skeleton;
+    /** Stub through which communication with the server occurs. */
+    private TestInterface       stub;
+
+    /** Initializes the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        address = new InetSocketAddress(7000);
+        server = new TestServer();
+        skeleton = new TestSkeleton();
+        skeleton.setTransport(Transport.SELECTOR);
+        skeleton.setLoopback(false);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        stub = Stub.create(TestInterface.class, address);
+
+        task("calling the skeleton repeatedly");
+
+        for(int call = 0; call < 100; ++call)
+        {
+            try
+            {
+                if(stub.method(false) != null)
+                    throw new TestFailed("incorrect result from stub");
+            }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception when using stub",
+                                     t);
+            }
+        }
+
+        task("receiving a remote exception");
+
+        try
+        {
+            stub.method(true);
+            throw new TestFailed("exception expected but not received from " +
+                                 "stub");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(FileNotFoundException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when using stub", t);
+        }
+
+        task("making two calls at the same time");
+
+        new Thread(new SecondThread()).start();
+
+        try
+        {
+            stub.rendezvous();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to rendezvous in first thread", t);
+        }
+
+        task("announcing an oversized frame");
+
+        try(Socket socket = new Socket())
+        {
+            socket.connect(address);
+            socket.setSoTimeout(5000);
+
+            DataOutputStream    out =
+                new DataOutputStream(socket.getOutputStream());
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(new byte[16]);
+            out.flush();
+
+            if(socket.getInputStream().read() != -1)
+                throw new TestFailed("skeleton answered oversized frame");
+        }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("skeleton kept connection with oversized " +
+                                 "frame open");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            // A reset connection is closed as well
+        }
+
+        try
+        {
+            if(stub.method(false) != null)
+                throw new TestFailed("incorrect result from stub");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("skeleton stopped serving after oversized " +
+                                 "frame", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton server. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Wakes the other thread, which is waiting for the reply from the
+        server. */
+    private class SecondThread implements Runnable
+    {
+        /** Calls the <code>wake</code> method on the remote server. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                stub.rendezvous();
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to rendezvous in second " +
+                                       "thread", t));
+            }
+        }
+    }
+
+    /** Test skeleton class that fails the test when an exception is received in
+        one of the skeleton's threads. */
+    private class TestSkeleton extends Skeleton<TestInterface>
+    {
+        /** Creates a <code>TestSkeleton</code> at the appropriate address, with
+            the test server object. */
+        TestSkeleton()
+        {
+            super(TestInterface.class, server, address);
+        }
+
+        /** Wakes any threads blocked in the server. */
+        @Override
+        protected void stopped(Throwable cause)
+        {
+            server.wake();
+        }
+
+        /** Fails the test upon an error in the listening thread. */
+        @Override
+        protected boolean listen_error(Exception e)
+        {
+            failure(new TestFailed("exception in listening thread", e));
+
+            return false;
+        }
+
+        /** Fails the test upon an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            failure(new TestFailed("exception in service thread", e));
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package conformance.rmi;
+
+import test.*;
+import rmi.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests merging of identical calls to idempotent methods.
+
+    <p>
+    This test makes several identical calls at once to a method marked
+    <code>Idempotent</code> while the server holds the first one, and checks
+    that the server runs it only once and every caller gets the result. It
+    then checks that calls with different arguments, and calls to methods
+    that are not marked, are not merged, and that each caller of a merged
+    call is held to its own deadline only: a caller joining a call made
+    without a deadline fails at its own deadline, and a caller without a
+    deadline joining a call made with a short one still gets the result.
+ */
+public class SingleFlightTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking merging of idempotent calls";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {ConnectionTest.class};
+
+    /** Number of callers making the same call at once. */
+    private static final int    CALLERS = 4;
+
+    /** Skeleton currently running, if any. */
+    private Skeleton<Lookup>    skeleton = null;
+    /** Server object. */
+    private LookupServer        server = null;
+
+    /** Remote interface whose methods wait for the test to release them. */
+    public interface Lookup
+    {
+        /** Returns an array holding <code>key</code>. */
+        @Idempotent
+        public String[] find(String key) throws RMIException;
+
+        /** Returns an array holding <code>key</code>, without being marked
+            idempotent. */
+        public String[] findUnmarked(String key) throws RMIException;
+    }
+
+    /** Implementation of the remote interface. */
+    private static class LookupServer implements Lookup
+    {
+        /** Number of calls run by the server. */
+        final AtomicInteger     calls = new AtomicInteger();
+        /** Released by the test to let calls return. */
+        volatile CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String[] find(String key)
+        {
+            return findUnmarked(key);
+        }
+
+        @Override
+        public String[] findUnmarked(String key)
+        {
+            calls.incrementAndGet();
+
+            try
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e) { }
+
+            return new String[] {key};
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        server = new LookupServer();
+        skeleton = new Skeleton<Lookup>(Lookup.class, server);
+
+        Lookup                  stub;
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Lookup.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        task("making identical idempotent calls at once");
+
+        String[][]              results = call(stub, true, "a", "a", "a", "a");
+
+        if(server.calls.get() != 1)
+        {
+            throw new TestFailed("server ran " + server.calls.get() +
+                                 " identical calls");
+        }
+
+        for(int index = 0; index < CALLERS; ++index)
+        {
+            if(results[index] == null || results[index].length != 1 ||
+               !"a".equals(results[index][0]))
+            {
+                throw new TestFailed("caller did not get the result");
+            }
+
+            for(int other = 0; other < index; ++other)
+            {
+                if(results[index] == results[other])
+                    throw new TestFailed("callers share the result array");
+            }
+        }
+
+        task("making idempotent calls with different arguments");
+
+        call(stub, true, "a", "b");
+
+        if(server.calls.get() != 2)
+            throw new TestFailed("calls with different arguments merged");
+
+        task("making identical calls to a method not marked idempotent");
+
+        call(stub, false, "a", "a");
+
+        if(server.calls.get() != 2)
+            throw new TestFailed("calls to unmarked method merged");
+
+        task("joining a call with a deadline of its own");
+
+        joinWithDeadline(stub);
+
+        task("joining a call with a shorter deadline than its own");
+
+        joinWithoutDeadline(stub);
+
+        task();
+    }
+
+    /** Joins a call made with a short deadline with a call that has none,
+        and checks that only the first fails at the deadline.
+
+        @param stub The stub to call.
+        @throws TestFailed If the joining call does not get the result.
+     */
+    private void joinWithoutDeadline(final Lookup stub) throws TestFailed
+    {
+        server.calls.set(0);
+        server.release = new CountDownLatch(1);
+
+        final Throwable[]       failure = new Throwable[1];
+        final Thread            leader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try(Deadline deadline = Deadline.after(300))
+                {
+                    stub.find("e");
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        });
+        leader.start();
+
+        // Let the joining call return well after the first has given up.
+        Thread                  releaser = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    leader.join(10000);
+                    Thread.sleep(200);
+                }
+                catch(InterruptedException e) { }
+                finally
+                {
+                    server.release.countDown();
+                }
+            }
+        });
+
+        try
+        {
+            Thread.sleep(100);
+            releaser.start();
+
+            String[]            result = stub.find("e");
+
+            if(result == null || result.length != 1 || !"e".equals(result[0]))
+                throw new TestFailed("joining call gave wrong result");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(DeadlineExceededException e)
+        {
+            throw new TestFailed("joining call failed at the deadline of " +
+                                 "the call it joined", e);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception from joining call", t);
+        }
+        finally
+        {
+            server.release.countDown();
+        }
+
+        if(!(failure[0] instanceof DeadlineExceededException))
+        {
+            throw new TestFailed("call with a deadline did not fail at it",
+                                 failure[0]);
+        }
+
+        if(server.calls.get() != 1)
+            throw new TestFailed("call without a deadline was not joined");
+    }
+
+    /** Joins a call made without a deadline with a call that has one, and
+        checks that the joining call fails at its deadline while the first is
+        still held by the server.
+
+        @param stub The stub to call.
+        @throws TestFailed If the joining call does not fail at its deadline.
+     */
+    private void joinWithDeadline(final Lookup stub) throws TestFailed
+    {
+        server.calls.set(0);
+        server.release = new CountDownLatch(1);
+
+        Thread                  leader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.find("d");
+                }
+                catch(Throwable t) { }
+            }
+        });
+        leader.start();
+
+        try
+        {
+            Thread.sleep(200);
+
+            try(Deadline deadline = Deadline.after(100))
+            {
+                stub.find("d");
+                throw new TestFailed("joined call outlived its deadline");
+            }
+            catch(DeadlineExceededException e) { }
+            catch(TestFailed e) { throw e; }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unexpected exception from joined call",
+                                     t);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for caller");
+        }
+        finally
+        {
+            server.release.countDown();
+        }
+
+        if(server.calls.get() != 1)
+            throw new TestFailed("call with a deadline was not joined");
+    }
+
+    /** Makes calls at once from several threads, and lets them return once
+        they have reached the server.
+
+        @param stub The stub to call.
+        @param marked Whether to call the idempotent method.
+        @param keys The argument of each call.
+        @return The result of each call.
+        @throws TestFailed If a call fails.
+     */
+    private String[][] call(final Lookup stub, final boolean marked,
+                            String... keys) throws TestFailed
+    {
+        server.calls.set(0);
+        server.release = new CountDownLatch(1);
+
+        final String[][]        results = new String[keys.length][];
+        final Throwable[]       failures = new Throwable[keys.length];
+        Thread[]                threads = new Thread[keys.length];
+
+        for(int index = 0; index < keys.length; ++index)
+        {
+            final int           caller = index;
+            final String        key = keys[index];
+
+            threads[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        results[caller] = marked ? stub.find(key)
+                                                 : stub.findUnmarked(key);
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[caller] = t;
+                    }
+                }
+            });
+            threads[index].start();
+        }
+
+        // Give every caller time to make its call before the server answers.
+        try
+        {
+            Thread.sleep(200);
+        }
+        catch(InterruptedException e) { }
+
+        server.release.countDown();
+
+        for(int index = 0; index < keys.length; ++index)
+        {
+            try
+            {
+                threads[index].join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted waiting for caller");
+            }
+
+            if(failures[index] != null)
+                throw new TestFailed("unable to make call", failures[index]);
+        }
+
+        return results;
+    }
+
+    /** Stops the skeleton, if it is running. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.countDown();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
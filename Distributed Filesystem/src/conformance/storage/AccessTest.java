@@ -24,6 +24,8 @@ import java.util.*;
     <li><code>read</code>, <code>write</code>, and <code>size</code> have
         correct behavior when given valid arguments.</li>
     <li><code>write</code> performs random access on files.</li>
+    <li><code>read</code> and <code>size</code> do not wait for the lock on
+        the storage server object, which creation and deletion hold.</li>
     </ul>
 
     <p>
@@ -76,6 +78,58 @@ public class AccessTest extends StorageTest
         testReadWrite();
         testReadWriteBounds();
         testAppend();
+        testUnlocked();
+    }
+
+    /** Checks that <code>read</code> and <code>size</code> are answered while
+        the storage server object is locked.
+
+        @throws TestFailed If the calls wait for the lock, or fail.
+     */
+    private void testUnlocked() throws TestFailed
+    {
+        final Throwable[]   failure = new Throwable[1];
+        Thread              accessor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    client_stub.size(read_write_file);
+                    client_stub.read(read_write_file, 0, write_data.length);
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        });
+
+        try
+        {
+            synchronized(server)
+            {
+                accessor.start();
+                accessor.join(1000);
+
+                if(accessor.isAlive())
+                {
+                    throw new TestFailed("file access waited for the lock " +
+                                         "on the storage server");
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted waiting for file access", e);
+        }
+
+        if(failure[0] != null)
+        {
+            throw new TestFailed("file access failed while the storage " +
+                                 "server was locked", failure[0]);
+        }
     }
 
     /** Tests the <code>write</code> method with valid arguments.
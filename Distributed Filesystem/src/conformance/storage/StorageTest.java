@@ -18,7 +18,7 @@ abstract class StorageTest extends Test
     /** Temporary directory served by the storage server. */
     protected TemporaryDirectory    directory = null;
     /** Storage server being tested. */
-    private StorageServer           server = null;
+    protected StorageServer         server = null;
     /** Stub for the storage server client service. */
     protected Storage               client_stub = null;
     /** Stub for the storage server command service. */
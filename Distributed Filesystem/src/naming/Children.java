@@ -0,0 +1,238 @@
+package naming;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * The children of a directory in the naming server's tree, indexed by name.
+ * 
+ * <p>
+ * A directory with few children keeps them in a small array, searched from
+ * the start, which is as fast as hashing for a handful of names and takes
+ * little memory; most directories stay this way. Once it has more than
+ * <code>SMALL</code> children, they are moved to an open-addressing hash
+ * table with linear probing, keyed by the names the children already carry,
+ * so that looking up, adding and removing a child takes constant time
+ * however large the directory grows. The table shrinks back to an array when
+ * the directory empties out again.
+ * 
+ * <p>
+ * The names of the children are kept as a snapshot that is built on first
+ * use and dropped on every change, so repeated listings of an unchanged
+ * directory cost nothing more than copying the array.
+ */
+public class Children implements Iterable<Tree> {
+	/** Largest number of children kept in a plain array. */
+	static final int SMALL = 8;
+	/** Fewest slots in a hash table. */
+	private static final int MIN_TABLE = 32;
+
+	/**
+	 * The children: the first <code>size</code> slots of a plain array, or a
+	 * hash table whose length is a power of two, with empty slots
+	 * <code>null</code>.
+	 */
+	private Tree[] slots = new Tree[SMALL];
+	private boolean hashed = false;
+	private int size = 0;
+	/** Snapshots of the children and their names, or <code>null</code>. */
+	private Tree[] entries = null;
+	private String[] names = null;
+
+	/** Returns the child with the given name, or <code>null</code>. */
+	public synchronized Tree get(String name) {
+		int i = find(name);
+		return i < 0 ? null : slots[i];
+	}
+
+	/**
+	 * Adds a child, unless the directory already has a child of the same
+	 * name.
+	 * 
+	 * @return <code>true</code> if the child was added.
+	 */
+	public synchronized boolean add(Tree child) {
+		if (find(child.getName()) >= 0) {
+			return false;
+		}
+		if (!hashed && size == SMALL) {
+			rehash(MIN_TABLE);
+		} else if (hashed && (size + 1) * 3 > slots.length * 2) {
+			rehash(slots.length * 2);
+		}
+		if (hashed) {
+			insert(slots, child);
+		} else {
+			slots[size] = child;
+		}
+		size++;
+		changed();
+		return true;
+	}
+
+	/**
+	 * Removes the child with the given name.
+	 * 
+	 * @return <code>true</code> if there was such a child.
+	 */
+	public synchronized boolean remove(String name) {
+		int i = find(name);
+		if (i < 0) {
+			return false;
+		}
+		removeAt(i);
+		return true;
+	}
+
+	/**
+	 * Removes a child, if it is still in the directory.
+	 * 
+	 * @return <code>true</code> if the child was removed.
+	 */
+	public synchronized boolean remove(Tree child) {
+		int i = find(child.getName());
+		if (i < 0 || slots[i] != child) {
+			return false;
+		}
+		removeAt(i);
+		return true;
+	}
+
+	/** Returns the number of children. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the names of the children, in no particular order. The array is
+	 * shared by all callers until the directory changes, and must not be
+	 * modified.
+	 */
+	public synchronized String[] names() {
+		if (names == null) {
+			Tree[] entries = entries();
+			String[] names = new String[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				names[i] = entries[i].getName();
+			}
+			this.names = names;
+		}
+		return names;
+	}
+
+	/**
+	 * Iterates over the children as they were when this was called. The
+	 * directory may be changed during the iteration.
+	 */
+	@Override
+	public Iterator<Tree> iterator() {
+		return Arrays.asList(entries()).iterator();
+	}
+
+	private synchronized Tree[] entries() {
+		if (entries == null) {
+			Tree[] entries = new Tree[size];
+			int n = 0;
+			for (int i = 0; i < (hashed ? slots.length : size); i++) {
+				if (slots[i] != null) {
+					entries[n++] = slots[i];
+				}
+			}
+			this.entries = entries;
+		}
+		return entries;
+	}
+
+	/** Returns the slot of the child with the given name, or -1. */
+	private int find(String name) {
+		if (!hashed) {
+			for (int i = 0; i < size; i++) {
+				if (slots[i].getName().equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		int mask = slots.length - 1;
+		for (int i = hash(name) & mask; slots[i] != null; i = (i + 1) & mask) {
+			if (slots[i].getName().equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void removeAt(int i) {
+		size--;
+		if (!hashed) {
+			// Keep the array packed
+			slots[i] = slots[size];
+			slots[size] = null;
+		} else {
+			// Move later children of the same probe run back into the gap,
+			// so that lookups need no tombstones
+			int mask = slots.length - 1;
+			slots[i] = null;
+			for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+				int home = hash(slots[j].getName()) & mask;
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					slots[i] = slots[j];
+					slots[j] = null;
+					i = j;
+				}
+			}
+			if (size <= SMALL / 2) {
+				rehash(0);
+			} else if (slots.length > MIN_TABLE && size * 8 < slots.length) {
+				rehash(slots.length / 2);
+			}
+		}
+		changed();
+	}
+
+	/**
+	 * Moves the children to a hash table of the given length, or to a plain
+	 * array if the length is zero.
+	 */
+	private void rehash(int length) {
+		Tree[] old = slots;
+		int used = hashed ? old.length : size;
+		if (length == 0) {
+			slots = new Tree[SMALL];
+			int n = 0;
+			for (int i = 0; i < used; i++) {
+				if (old[i] != null) {
+					slots[n++] = old[i];
+				}
+			}
+			hashed = false;
+			return;
+		}
+		slots = new Tree[length];
+		for (int i = 0; i < used; i++) {
+			if (old[i] != null) {
+				insert(slots, old[i]);
+			}
+		}
+		hashed = true;
+	}
+
+	private static void insert(Tree[] table, Tree child) {
+		int mask = table.length - 1;
+		int i = hash(child.getName()) & mask;
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = child;
+	}
+
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private void changed() {
+		entries = null;
+		names = null;
+	}
+}
@@ -9,6 +9,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import rmi.*;
 import common.*;
@@ -39,6 +40,16 @@ import storage.*;
  * <code>NamingStubs</code>.
  */
 public class NamingServer implements Service, Registration {
+	/**
+	 * Milliseconds a storage server is given to carry out a command, so that a
+	 * wedged storage server cannot hold up the naming server indefinitely.
+	 */
+	static final long COMMAND_TIMEOUT = 60000;
+	/** Most resolved paths kept by the directory tree's lookup cache. */
+	static final int PATH_CACHE_SIZE = 1024;
+	/** Reads after which a file being read is copied to another server. */
+	static final int REPLICATION_READS = 20;
+
 	Skeleton<Service> servSkeleton;
 	Skeleton<Registration> regSkeleton;
 	Node dirTree;
@@ -46,7 +57,8 @@ public class NamingServer implements Service, Registration {
 	public HashMap<Command, Storage> commandStorageMap;
 	public HashMap<Storage, Command> storageCommandMap;
 	public HashMap<Path, Set<Storage>> pathStorageSetMap;
-	public RequestQueue q;
+	/** Reads counted towards replication since the last copy was made. */
+	private final AtomicInteger numReads = new AtomicInteger();
 
 	/**
 	 * Creates the naming server object.
@@ -60,12 +72,11 @@ public class NamingServer implements Service, Registration {
 		InetSocketAddress regisAdd = new InetSocketAddress(
 				NamingStubs.REGISTRATION_PORT);
 
-		this.dirTree = new Node("/", new Path());
+		this.dirTree = new Node("/", new Path(), PATH_CACHE_SIZE);
 		this.commandStubList = new ArrayList<Command>();
 		this.commandStorageMap = new HashMap<Command, Storage>();
 		this.pathStorageSetMap = new HashMap<Path, Set<Storage>>();
 		this.storageCommandMap = new HashMap<Storage, Command>();
-		this.q = new RequestQueue();
 
 		servSkeleton = new Skeleton<Service>(Service.class, this, serviceAdd);
 		regSkeleton = new Skeleton<Registration>(Registration.class, this,
@@ -141,7 +152,7 @@ public class NamingServer implements Service, Registration {
 					"Given Path does not refer to a directory!");
 		}
 
-		ArrayList<Tree> f;
+		Children f;
 
 		if (directory.isRoot()) {
 			f = this.dirTree.files;
@@ -149,14 +160,8 @@ public class NamingServer implements Service, Registration {
 			f = ((Node) dirTree.extract(directory)).files;
 		}
 
-		String[] dummyArray = new String[0];
-		ArrayList<String> retArray = new ArrayList<String>();
-
-		for (Tree t : f) {
-			retArray.add(t.getName());
-		}
-
-		return retArray.toArray(dummyArray);
+		// The snapshot is shared; hand out a copy
+		return f.names().clone();
 	}
 
 	@Override
@@ -171,7 +176,7 @@ public class NamingServer implements Service, Registration {
 					"Parent Directory does not exist or is not a directory");
 		}
 
-		ArrayList<Tree> f;
+		Children f;
 
 		if (actualPath.isRoot()) {
 			f = this.dirTree.files;
@@ -179,10 +184,8 @@ public class NamingServer implements Service, Registration {
 			f = ((Node) dirTree.extract(actualPath)).files;
 		}
 
-		for (Tree t : f) {
-			if (t.getName().equals(file.last())) {
-				return false;
-			}
+		if (f.get(file.last()) != null) {
+			return false;
 		}
 
 		if (actualPath.isRoot()) {
@@ -232,7 +235,7 @@ public class NamingServer implements Service, Registration {
 					"Parent Directory does not exist or is not a directory");
 		}
 
-		ArrayList<Tree> f;
+		Children f;
 
 		if (actualPath.isRoot()) {
 			f = this.dirTree.files;
@@ -240,10 +243,8 @@ public class NamingServer implements Service, Registration {
 			f = ((Node) dirTree.extract(actualPath)).files;
 		}
 
-		for (Tree t : f) {
-			if (t.getName().equals(directory.last())) {
-				return false;
-			}
+		if (f.get(directory.last()) != null) {
+			return false;
 		}
 
 		if (actualPath.isRoot()) {
@@ -284,7 +285,9 @@ public class NamingServer implements Service, Registration {
 				Command cmd = storageCommandMap.get(s);
 				cmd.delete(path);
 			}
-			return ((Node) parent).removeLeaf(path);	
+			boolean removed = ((Node) parent).removeLeaf(path);
+			this.dirTree.invalidate(path);
+			return removed;
 		} else {
 			
 			Set<Storage> ss;
@@ -301,6 +304,7 @@ public class NamingServer implements Service, Registration {
 				cmd.delete(path);
 			}
 			((Node) parent).files.remove(toDelete);
+			this.dirTree.invalidate(path);
 		}
 		
 		return true;
@@ -331,7 +335,10 @@ public class NamingServer implements Service, Registration {
 
 		this.commandStubList.add(command_stub);
 		this.commandStorageMap.put(command_stub, client_stub);
-		this.storageCommandMap.put(client_stub, command_stub);
+		// Commands are sent with a timeout, so that a wedged storage server
+		// cannot hold up the naming server indefinitely
+		this.storageCommandMap.put(client_stub, Stub.withTimeouts(
+				Command.class, command_stub, 0, COMMAND_TIMEOUT));
 
 		ArrayList<Path> duplicatePaths = new ArrayList<Path>();
 		Path[] dummyArray = new Path[0];
@@ -365,94 +372,23 @@ public class NamingServer implements Service, Registration {
 		}
 
 		// This'll throw the FileNotFoundException if it doesn't find the file
-		this.dirTree.extract(path);
-
-		// Create a global list for the locks
-		ArrayList<DynamicBoolean> lockList = new ArrayList<DynamicBoolean>();
-
-		Tree currNode = this.dirTree;
-		// Based on the assumption that the last
-		// component is a leaf and the rest are nodes
-		String pathAcc = "";
-		int readers;
-		for (String pComp : path.pComps) {
-			// If no one is waiting with an exclusive lock to this Node,
-			// and this node is readable then add a lock to the global list
-
-			if (currNode.getPath().isRoot()) {
-				readers = this.q.numReaders;
-			} else {
-				readers = currNode.numReaders;
-			}
-
-			if (!this.q.writePending() && readers != -1) {
-				DynamicBoolean shallowLock = new DynamicBoolean(true);
-				lockList.add(shallowLock);
-				// Also add 1 to the number of readers :P
-				if (currNode.getPath().isRoot()) {
-					this.q.numReaders++;
-				} else {
-					currNode.numReaders++;
-				}
-			}
-			// Else no one can't read from the currNode, so we make a
-			// new lock and add it to the queue of locks
-			else {
-				Request r = new Request(exclusive, Thread.currentThread());
-				this.q.lockQueue.add(r);
-				lockList.add(r.hasAccess());
-			}
+		Tree[] chain = this.dirTree.resolve(path);
+		int last = chain.length - 1;
 
-			// Get next node
-			pathAcc += "/" + pComp;
-			Path currPath = new Path(pathAcc);
-			currNode = this.dirTree.extract(currPath);
-		}
-
-		if (currNode.getPath().isRoot()) {
-			readers = this.q.numReaders;
-		} else {
-			readers = currNode.numReaders;
-		}
-
-		// Now we need to handle the last component of the path.
-		// We need to make sure that the reads and the writes are done in order
-
-		// If NO write requests waiting AND lock IS exclusive AND numreaders is
-		// 0
-		if (readers == 0 && exclusive && !this.q.writePending()) {
-			if (currNode.getPath().isRoot()) {
-				this.q.numReaders--;
-			} else {
-				currNode.numReaders--;
-			}
-			DynamicBoolean shallowLock = new DynamicBoolean(true);
-			lockList.add(shallowLock);
-		}
-		// Else if NO write requests waiting AND lock is NOT exclusive AND
-		// numreaders is not -1
-		else if (readers != -1 && !exclusive && !this.q.writePending()) {
-			if (currNode.getPath().isRoot()) {
-				this.q.numReaders++;
-			} else {
-				currNode.numReaders++;
+		// Lock from the root down: every directory above the object is locked
+		// for shared access, and the object itself for the access requested
+		int held = 0;
+		try {
+			for (; held < last; held++) {
+				chain[held].lock.acquire(false);
 			}
-			DynamicBoolean shallowLock = new DynamicBoolean(true);
-			lockList.add(shallowLock);
-		} else {
-			Request r = new Request(exclusive, Thread.currentThread());
-			this.q.lockQueue.add(r);
-			lockList.add(r.hasAccess());
-		}
-
-		DynamicBoolean fReq = new DynamicBoolean(false);
-
-		// Here we check if we got any non-exclusive locks in our list
-		while (lockList.contains(fReq)) {
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
+			chain[last].lock.acquire(exclusive);
+		} catch (InterruptedException e) {
+			for (int i = held - 1; i >= 0; i--) {
+				chain[i].lock.release(false);
 			}
+			throw new IllegalStateException("Interrupted waiting to lock "
+					+ path);
 		}
 	}
 
@@ -464,91 +400,33 @@ public class NamingServer implements Service, Registration {
 		}
 
 		// This'll throw the FileNotFoundException if it doesn't find the file
+		Tree[] chain;
 		try {
-			this.dirTree.extract(path);
+			chain = this.dirTree.resolve(path);
 		} catch (FileNotFoundException e) {
 			throw new IllegalArgumentException("File not Found!!");
 		}
+		int last = chain.length - 1;
 
 		Set<Storage> storageSet = pathStorageSetMap.get(path);
 		Path fileCopy = null;
 		Storage chosenStorage = null;
 
-		Tree currNode = this.dirTree;
-		String pathAcc = "";
-		int readers;
-
-		for (String pComp : path.pComps) {
-
-			// Assuming all the locks on the nodes are non exclusive
-			// then treat them like non exclusive locks
-
-			// Subtract one reader from the current node
-			if (currNode.getPath().isRoot()) {
-				this.q.numReaders--;
-			} else {
-				currNode.numReaders--;
-			}
-
-			// Add One to the readers of this file; this is for replication
-			this.q.numReads++;
-
-			if (currNode.getPath().isRoot()) {
-				readers = this.q.numReaders;
-			} else {
-				readers = currNode.numReaders;
-			}
-
-			// If we reach a point when no one is reading from this node,
-			// then we should handle more requests
-			if (readers == 0) {
-				this.q.handleRequests();
-			}
-
-			// Get next Node
-			pathAcc += "/" + pComp;
-			Path currPath = new Path(pathAcc);
-
-			try {
-				currNode = this.dirTree.extract(currPath);
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			}
-		}
-
-		if (currNode.getPath().isRoot()) {
-			readers = this.q.numReaders;
-		} else {
-			readers = currNode.numReaders;
+		// Release the object first; this throws before anything is released
+		// if it was not locked
+		chain[last].lock.release(exclusive);
+		for (int i = last - 1; i >= 0; i--) {
+			chain[i].lock.release(false);
 		}
 
-		// Unlocking an exclusive lock, reset the number of readers
-		// and handle more requests
-		if (exclusive) {
-			if (currNode.getPath().isRoot()) {
-				this.q.numReaders = 0;
-			} else {
-				currNode.numReaders = 0;
-			}
-			this.q.handleRequests();
-		}
-		// Unlocking a non exclusive lock, then do the same thing we did
-		// for unlocking the nodes above...
-		else if (!exclusive) {
-			if (currNode.getPath().isRoot()) {
-				this.q.numReaders--;
-			} else {
-				currNode.numReaders--;
-			}
-			readers--;
-			this.q.numReads++;
-			if (readers == 0) {
-				this.q.handleRequests();
-			}
-		}
+		// Every directory above the object counts as read, and so does the
+		// object itself when it was locked for shared access; this is for
+		// replication
+		int reads = this.numReads.addAndGet(exclusive ? last : last + 1);
 
-		if (currNode.getPath() != null && this.q.numReads >= 20) {
-			this.q.numReads = 0;
+		Tree currNode = chain[last];
+		if (currNode.getPath() != null && reads >= REPLICATION_READS
+				&& this.numReads.compareAndSet(reads, 0)) {
 			fileCopy = currNode.getPath();
 		}
 
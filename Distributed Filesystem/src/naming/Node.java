@@ -2,7 +2,6 @@ package naming;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -12,106 +11,125 @@ import common.Path;
 
 public class Node extends Tree {
 
-	public ArrayList<Tree> files;
+	public final Children files;
+
+	/** Resolved paths below this directory, if it caches them. */
+	private final PathCache cache;
 
 	public Node(String name, Path p) {
+		this(name, p, 0);
+	}
+
+	/**
+	 * Creates a directory that caches up to <code>cacheSize</code> resolved
+	 * paths below it. The root of a tree that is looked up often should cache;
+	 * callers that change the tree must then call <code>invalidate</code>.
+	 */
+	public Node(String name, Path p, int cacheSize) {
 		super(name, p);
-		this.files = new ArrayList<Tree>();
+		this.files = new Children();
+		this.cache = cacheSize > 0 ? new PathCache(cacheSize) : null;
 	}
 
 	public Tree extract(Path p) throws FileNotFoundException {
-		Path dummyPath = new Path(p.pComps);
-		return extractRec(dummyPath);
+		Tree[] chain = resolve(p);
+		return chain[chain.length - 1];
 	}
 
-	public Tree extractRec(Path p) throws FileNotFoundException {
-		// Should not get here, if we're here then something went wrong
-		if (p.pComps.size() == 0) {
-			return this;
+	/**
+	 * Resolves a path relative to this directory in a single pass.
+	 *
+	 * @return The nodes along the path: element <code>0</code> is this
+	 *         directory and element <code>i</code> is the node named by the
+	 *         first <code>i</code> components, so the last element is the node
+	 *         the path refers to. The array may be shared and must not be
+	 *         modified.
+	 * @throws FileNotFoundException
+	 *             If the path does not refer to a file or directory.
+	 */
+	public Tree[] resolve(Path p) throws FileNotFoundException {
+		long generation = 0;
+		if (cache != null) {
+			Tree[] chain = cache.get(p);
+			if (chain != null) {
+				return chain;
+			}
+			generation = cache.generation();
 		}
 
-		String firstComp = p.pComps.get(0);
-
-		if (p.pComps.size() == 1) {
-			for (Tree t : files) {
-				if (t.getName().equals(firstComp)) {
-					return t;
-				}
+		ArrayList<String> comps = p.pComps;
+		int n = comps.size();
+		Tree[] chain = new Tree[n + 1];
+		chain[0] = this;
+		Node dir = this;
+		for (int i = 0; i < n; i++) {
+			Tree t = dir.files.get(comps.get(i));
+			if (t == null) {
+				// Did not find file/directory
+				throw new FileNotFoundException("Path does not refer to a file!");
 			}
-		} else {
-			for (Tree t : this.files) {
-				if (t.getName().equals(firstComp) && t.isDirectory()) {
-					p.pComps.remove(0);
-					return ((Node) t).extractRec(p);
-				} else if (t.getName().equals(firstComp) && !t.isDirectory()) {
+			chain[i + 1] = t;
+			if (i + 1 < n) {
+				if (!t.isDirectory()) {
 					throw new FileNotFoundException("Path is incorrect!");
 				}
+				dir = (Node) t;
 			}
 		}
-		// Did not find file/directory
-		throw new FileNotFoundException("Path does not refer to a file!");
-	}
 
-	public boolean addRegistration(Path p, Command commandStub,
-			Storage storageStub) {
-		if (p.isRoot()) {
-			return true;
+		if (cache != null) {
+			cache.put(p, chain, generation);
 		}
-		Path dummyPath = new Path(p.pComps);
-		return addRec(dummyPath, commandStub, storageStub, new Path());
+		return chain;
 	}
 
-	public boolean addRec(Path p, Command commandStub, Storage storageStub,
-			Path pathAcc) {
-
-		// If there is no more components in the path then we have added it in
-		// the previous stage
-		// and thus we return true
-		if (p.pComps.size() == 0) {
-			return true;
+	/**
+	 * Drops cached lookups of a path and of every path below it. Called after
+	 * the path is deleted. Nothing needs dropping when a path is created,
+	 * since lookups of paths that do not exist are not cached.
+	 */
+	public void invalidate(Path p) {
+		if (cache != null) {
+			cache.invalidate();
 		}
+	}
 
-		// Else we get the first component and add it to the accumulated path
-		String firstComp = p.pComps.get(0);
-		pathAcc.pComps.add(firstComp);
-
-		if (p.pComps.size() == 1) {
-			for (Tree t : files) {
-				if (t.getName().equals(firstComp)) {
-					return false;
-				}
-			}
-			this.files.add(new Leaf(firstComp, pathAcc, storageStub,
-					commandStub));
+	/**
+	 * Adds a file registered by a storage server, with any directories above
+	 * it that do not exist yet, in a single pass down the path.
+	 *
+	 * @return <code>false</code> if the file could not be added, because the
+	 *         path or one of the directories above it is taken by a file, or
+	 *         the path is taken by a directory.
+	 */
+	public boolean addRegistration(Path p, Command commandStub,
+			Storage storageStub) {
+		if (p.isRoot()) {
 			return true;
 		}
-
-		// Search in the array for a leaf/node with name == to firstComp
-		for (Tree t : files) {
-			// If it's a node then recurse
-			if (t.getName().equals(firstComp) && t.isDirectory()) {
-				// Remove the first component in the path components, add it
-				// to the accumulated path and then recurse
-				p.pComps.remove(0);
-				return ((Node) t).addRec(p, commandStub, storageStub, pathAcc);
-			}
-			// If it's a file, return false immediately, this is a duplicate
-			// file
-			else if (t.getName().equals(firstComp) && !(t.isDirectory())) {
+		ArrayList<String> comps = p.pComps;
+		int last = comps.size() - 1;
+		Node dir = this;
+		Path here = this.getPath();
+		for (int i = 0; i < last; i++) {
+			String comp = comps.get(i);
+			here = new Path(here, comp);
+			Tree t = dir.files.get(comp);
+			if (t == null) {
+				Node n = new Node(comp, here);
+				dir.files.add(n);
+				dir = n;
+			} else if (t.isDirectory()) {
+				dir = (Node) t;
+			} else {
+				// A file is in the way
 				return false;
 			}
 		}
-
-		// If it doesn't exist then you have to add it recursively and return
-		// true
-		// Case it's the last thing in the path, and is therefore a Leaf
-
-		// Else it's not the last thing, and is therefore a Node
-		Node n = new Node(firstComp, pathAcc);
-		this.files.add(n);
-		p.pComps.remove(0);
-
-		return n.addRec(p, commandStub, storageStub, pathAcc);
+		String name = comps.get(last);
+		// Not added if the name is taken
+		return dir.files.add(new Leaf(name, new Path(here, name), storageStub,
+				commandStub));
 	}
 
 	@Override
@@ -154,12 +172,6 @@ public class Node extends Tree {
 
 	public boolean removeLeaf(Path path) {
 		String f = path.pComps.get(path.pComps.size()-1);
-		for (Tree t : files) {
-			if (t.getName().equals(f)) {
-				files.remove(t);
-				return true;
-			}
-		}
-		return false;
+		return files.remove(f);
 	}
 }
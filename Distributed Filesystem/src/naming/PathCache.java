@@ -0,0 +1,96 @@
+package naming;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.Path;
+
+/**
+ * Bounded cache of resolved paths.
+ *
+ * <p>
+ * Maps a path to the chain of nodes from the root to the file or directory it
+ * refers to, so that repeated lookups of the same path do not walk the tree.
+ * Only paths that exist are cached. When the cache is full the path used least
+ * recently is dropped.
+ *
+ * <p>
+ * Each invalidation moves the cache to a new generation. Chains are kept with
+ * the generation they were resolved in, and a chain from an older generation
+ * is treated as missing and dropped when it is next looked up, so an
+ * invalidation does not have to go through the cached paths. The tree may
+ * also change while a path is being resolved; a chain resolved in an older
+ * generation is not stored, so a lookup that raced with a delete cannot bring
+ * a removed node back into the cache.
+ */
+class PathCache {
+	private final LinkedHashMap<Path, Entry> chains;
+	private long generation = 0;
+
+	/** A cached chain and the generation it was resolved in. */
+	private static class Entry {
+		final Tree[] chain;
+		final long generation;
+
+		Entry(Tree[] chain, long generation) {
+			this.chain = chain;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity
+	 *            The most paths the cache holds.
+	 */
+	PathCache(final int capacity) {
+		this.chains = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/** Returns the cached chain for a path, or <code>null</code>. */
+	synchronized Tree[] get(Path p) {
+		Entry e = chains.get(p);
+		if (e == null) {
+			return null;
+		}
+		if (e.generation != generation) {
+			chains.remove(p);
+			return null;
+		}
+		return e.chain;
+	}
+
+	/** Returns the current generation, to be passed back to <code>put</code>. */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Caches the chain for a path, unless the cache has been invalidated since
+	 * the given generation.
+	 */
+	synchronized void put(Path p, Tree[] chain, long resolvedIn) {
+		if (resolvedIn == generation) {
+			// Paths are mutable; keep a copy of the key
+			chains.put(new Path(p.pComps), new Entry(chain, generation));
+		}
+	}
+
+	/** Makes every chain cached so far miss. */
+	synchronized void invalidate() {
+		generation++;
+	}
+
+	/** Returns the number of cached paths, current or not. */
+	synchronized int size() {
+		return chains.size();
+	}
+}
@@ -2,6 +2,7 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -140,6 +141,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -157,6 +159,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -228,6 +231,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
 }
@@ -1,23 +1,17 @@
 package naming;
 
-import java.util.ArrayList;
-
 import common.Path;
 
 public abstract class Tree {
 	
 	private String name;
 	private Path pathToHere;
-	public int numReaders;
-	public int numReads;
-	public ArrayList<Request> lockQueue;
+	/** Lock taken on this file or directory by <code>Service.lock</code>. */
+	final TreeLock lock = new TreeLock();
 	
 	public Tree(String name, Path p) {
 		this.name = name;
 		this.pathToHere = p;
-		this.numReaders = 0;
-		this.numReads = 0;
-		lockQueue = new ArrayList<Request>();
 	}
 	
 	public String getName() {
@@ -0,0 +1,122 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shared/exclusive lock on one file or directory of the naming tree.
+ *
+ * <p>
+ * Requests that cannot be granted at once wait in a first-come first-served
+ * queue. When the lock becomes free, the request at the head of the queue is
+ * granted together with every shared request queued directly behind it, so
+ * that a run of readers takes the lock as one batch. A shared request is not
+ * granted ahead of the queue even while the lock is held for shared access:
+ * once a writer is waiting, later readers wait for it.
+ *
+ * <p>
+ * Waiting threads park. The thread releasing the lock marks each request it
+ * grants and unparks exactly that request's thread, so a waiter runs as soon
+ * as its turn comes and no thread polls.
+ */
+class TreeLock {
+	/** A request waiting in the queue. */
+	private static class Waiter {
+		final boolean exclusive;
+		final Thread thread;
+		volatile boolean granted = false;
+
+		Waiter(boolean exclusive, Thread thread) {
+			this.exclusive = exclusive;
+			this.thread = thread;
+		}
+	}
+
+	/** Number of shared holders, or <code>-1</code> while held exclusively. */
+	private int holders = 0;
+	private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+
+	/**
+	 * Takes the lock, waiting for earlier requests to be served first.
+	 *
+	 * @param exclusive
+	 *            Whether to take the lock for exclusive access.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting. The lock is not
+	 *             held when this is thrown.
+	 */
+	void acquire(boolean exclusive) throws InterruptedException {
+		Waiter w;
+		synchronized (this) {
+			if (queue.isEmpty() && (exclusive ? holders == 0 : holders >= 0)) {
+				holders = exclusive ? -1 : holders + 1;
+				return;
+			}
+			w = new Waiter(exclusive, Thread.currentThread());
+			queue.addLast(w);
+		}
+
+		while (!w.granted) {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				synchronized (this) {
+					if (!w.granted) {
+						// Leaving may let the requests behind this one in
+						queue.remove(w);
+						grant();
+						throw new InterruptedException();
+					}
+				}
+				// Granted just as the thread was interrupted; give it back
+				release(exclusive);
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock and grants it to the requests waiting next, if it is
+	 * now free.
+	 *
+	 * @param exclusive
+	 *            Whether the lock was taken for exclusive access.
+	 * @throws IllegalArgumentException
+	 *             If the lock is not held for that kind of access.
+	 */
+	synchronized void release(boolean exclusive) {
+		if (!held(exclusive)) {
+			throw new IllegalArgumentException("Not locked for "
+					+ (exclusive ? "exclusive" : "shared") + " access");
+		}
+		holders = exclusive ? 0 : holders - 1;
+		if (holders == 0) {
+			grant();
+		}
+	}
+
+	/** Returns whether the lock is held for the given kind of access. */
+	synchronized boolean held(boolean exclusive) {
+		return exclusive ? holders == -1 : holders > 0;
+	}
+
+	/** Grants the lock to the head of the queue, and to the run of readers. */
+	private void grant() {
+		while (!queue.isEmpty()) {
+			Waiter head = queue.peekFirst();
+			if (head.exclusive) {
+				if (holders != 0) {
+					return;
+				}
+				holders = -1;
+			} else {
+				if (holders < 0) {
+					return;
+				}
+				holders++;
+			}
+			queue.pollFirst();
+			head.granted = true;
+			LockSupport.unpark(head.thread);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package rmi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the calls of one running skeleton.
+ *
+ * <p>
+ * Calls are started on the skeleton's executor only while fewer than
+ * <code>maxCalls</code> calls are running, and fewer than the method's own
+ * limit of calls to the same method. Other calls wait in a queue of at most
+ * <code>queueLength</code> calls, and are started in order as running calls
+ * finish. A call that finds the queue full, or that waits longer than
+ * <code>queueTimeout</code> milliseconds, is refused: it is still handed to
+ * its task, but with <code>Frame.refused</code> set, so the skeleton answers
+ * it with an <code>OverloadedException</code> straight away without running
+ * the method. A call whose caller's deadline passes while it waits is refused
+ * at that point, with a <code>DeadlineExceededException</code>.
+ *
+ * <p>
+ * Methods may be put in lanes of their own (see <code>Skeleton.setLane</code>).
+ * Calls to the methods of a lane are limited by the lane's own limit instead
+ * of <code>maxCalls</code>, which then only applies to the methods left in
+ * the default lane, and are run on the lane's executor. A lane of slow calls
+ * that is full therefore holds up no calls outside it, whether for room to
+ * run or for threads. Calls of a full lane wait in the same queue as the
+ * others, and are passed over when calls to other lanes can start.
+ *
+ * <p>
+ * Without any limits, calls go straight to the executor of their lane.
+ *
+ * <p>
+ * Calls are counted from the moment they are handed to admission control
+ * until their tasks return, so that a skeleton being stopped can wait for
+ * them to drain.
+ */
+class Admission {
+	private final Metrics metrics;
+	private final boolean limited;
+	/** Limit on each slot of <code>metrics</code>; zero for none. */
+	private final int[] methodLimits;
+	/** Lane of each slot of <code>metrics</code>; zero for the default. */
+	private final int[] laneOf;
+	/** Limit and executor of each lane, the default lane first. */
+	private final int[] laneLimits;
+	private final CallExecutor[] executors;
+	private final int queueLength;
+	private final long queueTimeout;
+
+	private final int[] runningPerLane;
+	private final int[] runningPerMethod;
+	private final ArrayDeque<Waiting> queue = new ArrayDeque<Waiting>();
+	/** Calls whose tasks have not yet returned, waiting ones included. */
+	private final AtomicInteger unfinished = new AtomicInteger();
+	/** Calls whose tasks have returned. */
+	private final AtomicLong finished = new AtomicLong();
+
+	/** A call waiting to be admitted. */
+	private class Waiting implements Runnable {
+		final int slot;
+		final Frame request;
+		final Runnable task;
+		ScheduledFuture<?> expiry = null;
+		/** Whether the expiry is the caller's deadline. */
+		boolean deadline = false;
+
+		Waiting(int slot, Frame request, Runnable task) {
+			this.slot = slot;
+			this.request = request;
+			this.task = task;
+		}
+
+		/**
+		 * Takes the call out of the queue, if it is still waiting, and has it
+		 * refused on its lane's executor. This runs on the shared timer
+		 * thread, which must not be held up writing the refusal.
+		 */
+		@Override
+		public void run() {
+			synchronized (Admission.this) {
+				if (!queue.remove(this)) {
+					return;
+				}
+			}
+			final RMIException refusal = deadline
+					? new DeadlineExceededException(
+							"Deadline passed waiting to be admitted")
+					: new OverloadedException(
+							"Call waited too long to be admitted");
+			Runnable refuse = new Runnable() {
+				@Override
+				public void run() {
+					refuse(request, task, refusal);
+				}
+			};
+			try {
+				executors[lane(slot)].execute(refuse);
+			} catch (RejectedExecutionException e) {
+				// The executor is full or shut down; the caller still needs an
+				// answer
+				Thread thread = new Thread(refuse, "rmi-refusal");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Creates admission control for a skeleton.
+	 *
+	 * @param methodLimits
+	 *            Limit on calls to each method, indexed by metrics slot, with
+	 *            zero for none.
+	 * @param laneOf
+	 *            Lane of each method, indexed by metrics slot, with zero for
+	 *            the default lane.
+	 * @param laneLimits
+	 *            Limit on calls running at once in each lane, or zero for
+	 *            none. The limit of the default lane is first.
+	 * @param executors
+	 *            Executor of each lane, the skeleton's own first.
+	 */
+	Admission(Metrics metrics, int[] methodLimits, int[] laneOf,
+			int[] laneLimits, CallExecutor[] executors, int queueLength,
+			long queueTimeout) {
+		this.metrics = metrics;
+		this.methodLimits = methodLimits.clone();
+		this.laneOf = laneOf.clone();
+		this.laneLimits = laneLimits.clone();
+		this.executors = executors.clone();
+		this.queueLength = queueLength;
+		this.queueTimeout = queueTimeout;
+		this.runningPerLane = new int[laneLimits.length];
+		this.runningPerMethod = new int[methodLimits.length];
+		boolean limited = false;
+		for (int limit : laneLimits) {
+			limited |= limit > 0;
+		}
+		for (int limit : methodLimits) {
+			limited |= limit > 0;
+		}
+		this.limited = limited;
+	}
+
+	/**
+	 * Starts a call on the executor now, queues it, or refuses it.
+	 *
+	 * @param request
+	 *            The call.
+	 * @param task
+	 *            Serves the call and sends the reply.
+	 * @throws RejectedExecutionException
+	 *             If the executor does not accept the task.
+	 */
+	void execute(Frame request, Runnable task) {
+		task = counted(task);
+		unfinished.incrementAndGet();
+		try {
+			admit(request, task);
+		} catch (RejectedExecutionException e) {
+			unfinished.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private void admit(Frame request, Runnable task) {
+		if (!limited && executors.length == 1) {
+			executors[0].execute(task);
+			return;
+		}
+
+		int slot;
+		int budget;
+		try {
+			slot = metrics.slot(Frames.method(request.payload));
+			budget = Frames.budget(request.payload);
+		} catch (Exception e) {
+			// Malformed; let the task find out
+			slot = -1;
+			budget = 0;
+		}
+		if (!limited) {
+			executors[lane(slot)].execute(task);
+			return;
+		}
+		synchronized (this) {
+			if (!fits(slot)) {
+				if (queue.size() >= queueLength) {
+					slot = -2;
+				} else {
+					Waiting waiting = new Waiting(slot, request, task);
+					queue.add(waiting);
+					long timeout = queueTimeout;
+					if (budget > 0 && (timeout == 0 || budget < timeout)) {
+						timeout = budget;
+						waiting.deadline = true;
+					}
+					if (timeout > 0) {
+						waiting.expiry = Timeouts.schedule(waiting,
+								request.received + timeout * 1000000
+										- System.nanoTime());
+					}
+					return;
+				}
+			} else {
+				take(slot);
+			}
+		}
+		if (slot == -2) {
+			refuse(request, task, new OverloadedException(
+					"Too many calls waiting to be admitted"));
+			return;
+		}
+		try {
+			executors[lane(slot)].execute(admitted(slot, task));
+		} catch (RejectedExecutionException e) {
+			release(slot);
+			throw e;
+		}
+	}
+
+	/**
+	 * Refuses every call still waiting. Used when the skeleton stops.
+	 */
+	void refuseAll() {
+		ArrayList<Waiting> refused;
+		synchronized (this) {
+			refused = new ArrayList<Waiting>(queue);
+			queue.clear();
+		}
+		for (Waiting waiting : refused) {
+			if (waiting.expiry != null) {
+				waiting.expiry.cancel(false);
+			}
+			refuse(waiting.request, waiting.task, new OverloadedException(
+					"Skeleton is stopping"));
+		}
+	}
+
+	/** Returns the number of calls waiting to be admitted. */
+	synchronized int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of calls that have been handed to admission control
+	 * and not yet finished, whether running or waiting.
+	 */
+	int unfinished() {
+		return unfinished.get();
+	}
+
+	/** Returns the number of calls finished so far, refused ones included. */
+	long finished() {
+		return finished.get();
+	}
+
+	/** Wraps a task so that it is counted as finished when it returns. */
+	private Runnable counted(final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					unfinished.decrementAndGet();
+					finished.incrementAndGet();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns whether calls to a slot are held to limits of their own: those
+	 * in a lane other than the default, and those with a method limit. A batch
+	 * is admitted as one call in the default lane, so such calls are not run
+	 * in batches.
+	 */
+	boolean separate(int slot) {
+		return slot >= 0 && (laneOf[slot] != 0 || methodLimits[slot] > 0);
+	}
+
+	/** Returns the lane of a slot, sending calls to no method to the default. */
+	private int lane(int slot) {
+		return slot < 0 ? 0 : laneOf[slot];
+	}
+
+	private boolean fits(int slot) {
+		int lane = lane(slot);
+		if (laneLimits[lane] > 0 && runningPerLane[lane] >= laneLimits[lane]) {
+			return false;
+		}
+		return slot < 0 || methodLimits[slot] == 0
+				|| runningPerMethod[slot] < methodLimits[slot];
+	}
+
+	private void take(int slot) {
+		runningPerLane[lane(slot)]++;
+		if (slot >= 0) {
+			runningPerMethod[slot]++;
+		}
+	}
+
+	/** Wraps a task so that it makes room for waiting calls when done. */
+	private Runnable admitted(final int slot, final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					release(slot);
+				}
+			}
+		};
+	}
+
+	/** Ends a call and starts the waiting calls that now fit. */
+	private void release(int slot) {
+		ArrayList<Waiting> started = new ArrayList<Waiting>();
+		synchronized (this) {
+			runningPerLane[lane(slot)]--;
+			if (slot >= 0) {
+				runningPerMethod[slot]--;
+			}
+			// Calls to a method or lane at its limit are passed over, so that
+			// they do not hold up calls to other methods
+			Iterator<Waiting> it = queue.iterator();
+			while (it.hasNext()) {
+				Waiting waiting = it.next();
+				if (fits(waiting.slot)) {
+					it.remove();
+					take(waiting.slot);
+					started.add(waiting);
+				}
+			}
+		}
+		for (Waiting waiting : started) {
+			if (waiting.expiry != null) {
+				waiting.expiry.cancel(false);
+			}
+			try {
+				executors[lane(waiting.slot)].execute(admitted(waiting.slot,
+						waiting.task));
+			} catch (RejectedExecutionException e) {
+				release(waiting.slot);
+				refuse(waiting.request, waiting.task, new OverloadedException(
+						"Skeleton is stopping"));
+			}
+		}
+	}
+
+	/**
+	 * Answers a call with an error, on the current thread. Writing the answer
+	 * may block, so this is not called on the timer thread.
+	 */
+	private static void refuse(Frame request, Runnable task,
+			RMIException refusal) {
+		request.refused = refusal;
+		task.run();
+	}
+}
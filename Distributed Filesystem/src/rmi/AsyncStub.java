@@ -0,0 +1,138 @@
+package rmi;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous view of a remote object.
+ *
+ * <p>
+ * An asynchronous stub makes the same calls as an ordinary stub, over the same
+ * pooled connections, but does not wait for their replies. A call is written
+ * as a lambda applying one method of the remote interface:
+ *
+ * <pre>
+ * AsyncStub&lt;Service&gt; service = Stub.createAsync(Service.class, address);
+ * CompletableFuture&lt;Boolean&gt; directory = service.call(s -&gt; s.isDirectory(path));
+ * </pre>
+ *
+ * <p>
+ * The lambda is run once, on the calling thread, against a stand-in object that
+ * only records which method was applied and with which arguments; the value it
+ * returns is ignored. The call is then sent, and the returned future completes
+ * with the result of the remote method. If the remote method throws an
+ * exception, the future completes exceptionally with that exception; if the
+ * call cannot be completed, with an <code>RMIException</code>. Many calls can
+ * thus be in progress at once without a thread for each.
+ *
+ * <p>
+ * Futures are completed on a shared pool of daemon threads, so dependent
+ * actions attached to them may make further remote calls, including blocking
+ * ones.
+ */
+public final class AsyncStub<T> {
+	/**
+	 * Completes the futures returned to callers. Also runs other work of the
+	 * library that must not hold up the thread that triggered it, such as
+	 * retries scheduled on the timer.
+	 */
+	static final Executor completions = new ThreadPoolExecutor(0,
+			Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "rmi-async-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Class<T> c;
+	private final ProxyHandler handler;
+	private final Recorder<T> recorder;
+
+	/**
+	 * A call to make on a remote object.
+	 *
+	 * @param <T>
+	 *            The remote interface.
+	 * @param <R>
+	 *            The result of the call.
+	 */
+	public interface Call<T, R> {
+		/**
+		 * Applies one method of the remote interface to <code>stub</code>.
+		 */
+		R apply(T stub) throws Exception;
+	}
+
+	AsyncStub(Class<T> c, ProxyHandler handler) {
+		this.c = c;
+		this.handler = handler;
+		this.recorder = new Recorder<T>(c);
+	}
+
+	/**
+	 * Starts a call on the remote object.
+	 *
+	 * @param call
+	 *            A function applying exactly one method of the remote interface
+	 *            to its argument.
+	 * @return A future for the result of the remote method.
+	 * @throws NullPointerException
+	 *             If <code>call</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>call</code> does not apply exactly one method of the
+	 *             remote interface.
+	 */
+	public <R> CompletableFuture<R> call(Call<? super T, R> call) {
+		Recorder.Recorded made = recorder.record(call);
+		return complete(handler.submit(made.method, made.args));
+	}
+
+	/**
+	 * Returns a new, empty batch of calls to the same remote object. The
+	 * calls in a batch are sent together in one frame; see
+	 * <code>Batch</code>.
+	 */
+	public Batch<T> batch() {
+		return new Batch<T>(handler, recorder);
+	}
+
+	/**
+	 * Returns a future completed with the outcome of a call, on the completion
+	 * pool rather than the thread that received the reply.
+	 */
+	static <R> CompletableFuture<R> complete(CompletableFuture<Object> call) {
+		final CompletableFuture<R> result = new CompletableFuture<R>();
+		call.whenCompleteAsync(
+				new BiConsumer<Object, Throwable>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					public void accept(Object value, Throwable failure) {
+						if (failure != null) {
+							result.completeExceptionally(failure);
+						} else {
+							result.complete((R) value);
+						}
+					}
+				}, completions);
+		return result;
+	}
+
+	/** Returns an ordinary, blocking stub for the same remote object. */
+	public T stub() {
+		return c.cast(Proxy.newProxyInstance(c.getClassLoader(),
+				new Class[] { c }, handler));
+	}
+}
@@ -0,0 +1,144 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Batch of calls to one remote object, sent together.
+ *
+ * <p>
+ * Calls are added to the batch as lambdas applying one method of the remote
+ * interface, as with <code>AsyncStub.call</code>, and nothing is sent until
+ * <code>send</code> is called. The whole batch then travels to the skeleton in
+ * one frame, the skeleton runs the calls one after another in the order they
+ * were added, and all the results come back in one reply. A client making many
+ * small calls, such as checking <code>isDirectory</code> on every entry of a
+ * directory, therefore pays for one round trip instead of one per call.
+ *
+ * <p>
+ * Each call has its own future, completed with the call's result or with the
+ * exception it threw; a call that throws does not stop the calls after it. If
+ * the batch cannot be delivered, every call fails with the same
+ * <code>RMIException</code>.
+ *
+ * <p>
+ * The skeleton admits a batch as one call. If the batch holds a call to a
+ * method that the skeleton has put in a lane of its own, or given a limit of
+ * its own (see <code>Skeleton.setLane</code> and
+ * <code>Skeleton.setMethodLimit</code>), none of the calls are run, and each
+ * fails with an <code>RMIException</code>.
+ *
+ * <p>
+ * A batch is not thread-safe, and can only be sent once.
+ */
+public final class Batch<T> {
+	private final ProxyHandler handler;
+	private final Recorder<T> recorder;
+	private final ArrayList<Method> methods = new ArrayList<Method>();
+	private final ArrayList<Object[]> args = new ArrayList<Object[]>();
+	private final ArrayList<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+	/** The futures handed to the caller, completed after <code>results</code>. */
+	private final ArrayList<CompletableFuture<?>> returned = new ArrayList<CompletableFuture<?>>();
+	private boolean sent = false;
+
+	Batch(ProxyHandler handler, Recorder<T> recorder) {
+		this.handler = handler;
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Adds a call to the batch.
+	 *
+	 * @param call
+	 *            A function applying exactly one method of the remote interface
+	 *            to its argument.
+	 * @return A future for the result of the call, completed once the batch
+	 *         has been sent and answered.
+	 * @throws NullPointerException
+	 *             If <code>call</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>call</code> does not apply exactly one method of the
+	 *             remote interface.
+	 * @throws IllegalStateException
+	 *             If the batch has already been sent.
+	 */
+	public <R> CompletableFuture<R> add(AsyncStub.Call<? super T, R> call) {
+		if (sent) {
+			throw new IllegalStateException("Batch already sent");
+		}
+		Recorder.Recorded made = recorder.record(call);
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		CompletableFuture<R> completed = AsyncStub.complete(result);
+		methods.add(made.method);
+		args.add(made.args);
+		results.add(result);
+		returned.add(completed);
+		return completed;
+	}
+
+	/** Returns the number of calls in the batch. */
+	public int size() {
+		return methods.size();
+	}
+
+	/**
+	 * Sends the batch.
+	 *
+	 * @return A future completed once every call in the batch has completed,
+	 *         successfully or not.
+	 * @throws IllegalStateException
+	 *             If the batch has already been sent.
+	 */
+	public CompletableFuture<Void> send() {
+		if (sent) {
+			throw new IllegalStateException("Batch already sent");
+		}
+		sent = true;
+
+		if (methods.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		handler.submitBatch(methods.toArray(new Method[0]),
+				args.toArray(new Object[0][])).whenComplete(
+				new BiConsumer<Object, Throwable>() {
+					@Override
+					public void accept(Object value, Throwable failure) {
+						complete(value, failure);
+					}
+				});
+		return CompletableFuture.allOf(
+				returned.toArray(new CompletableFuture<?>[0])).handle(
+				new BiFunction<Void, Throwable, Void>() {
+					@Override
+					public Void apply(Void value, Throwable failure) {
+						return null;
+					}
+				});
+	}
+
+	/** Completes each call with its part of the reply to the batch. */
+	private void complete(Object reply, Throwable failure) {
+		Object[] outcomes = null;
+		if (failure == null) {
+			if (reply instanceof Object[]
+					&& ((Object[]) reply).length == 2 * results.size()) {
+				outcomes = (Object[]) reply;
+			} else {
+				failure = new RMIException("Malformed batch reply");
+			}
+		}
+		for (int i = 0; i < results.size(); i++) {
+			CompletableFuture<Object> result = results.get(i);
+			if (failure != null) {
+				result.completeExceptionally(failure);
+			} else if ((Boolean) outcomes[2 * i]) {
+				result.complete(outcomes[2 * i + 1]);
+			} else {
+				result.completeExceptionally((Throwable) outcomes[2 * i + 1]);
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Path;
+
+/**
+ * Compact binary codec.
+ *
+ * <p>
+ * Each value is written as a one byte tag followed by its contents. Boxed
+ * primitives, strings, byte arrays, paths, arrays of objects and stubs are
+ * written directly, without class descriptors. Any other value is written with
+ * Java serialization, so everything that could be sent before can still be
+ * sent.
+ */
+class BinaryCodec implements Codec {
+	static final String NAME = "binary";
+
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int BYTE = 3;
+	private static final int SHORT = 4;
+	private static final int CHAR = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int STRING = 10;
+	private static final int BYTES = 11;
+	private static final int PATH = 12;
+	private static final int ARRAY = 13;
+	private static final int STUB = 14;
+	private static final int SERIALIZED = 15;
+
+	/** Classes named in arrays and stubs, by name. */
+	private final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public void write(OutputStream out, Object... values) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		for (Object value : values) {
+			writeValue(data, value);
+		}
+		data.flush();
+	}
+
+	@Override
+	public Object[] read(InputStream in, int count) throws IOException,
+			ClassNotFoundException {
+		DataInputStream data = new DataInputStream(in);
+		Object[] values = new Object[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = readValue(data);
+		}
+		return values;
+	}
+
+	private void writeValue(DataOutputStream out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (value instanceof Path) {
+			ArrayList<String> components = ((Path) value).getPathComponents();
+			out.writeByte(PATH);
+			out.writeInt(components.size());
+			for (String component : components) {
+				writeString(out, component);
+			}
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			out.writeByte(ARRAY);
+			writeString(out, array.getClass().getComponentType().getName());
+			out.writeInt(array.length);
+			for (Object element : array) {
+				writeValue(out, element);
+			}
+		} else if (isStub(value)) {
+			ProxyHandler handler = (ProxyHandler) Proxy
+					.getInvocationHandler(value);
+			out.writeByte(STUB);
+			writeString(out, handler.c.getName());
+			writeAddress(out, handler.address);
+			out.writeInt(handler.object);
+			out.writeBoolean(handler.localSocket != null);
+			if (handler.localSocket != null) {
+				writeString(out, handler.localSocket);
+			}
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objects = new ObjectOutputStream(bytes);
+			objects.writeObject(value);
+			objects.close();
+			out.writeByte(SERIALIZED);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	private Object readValue(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		case BYTES: {
+			byte[] bytes = new byte[readLength(in, 1)];
+			in.readFully(bytes);
+			return bytes;
+		}
+		case PATH: {
+			// Each component takes at least its four byte length
+			int count = readLength(in, 4);
+			ArrayList<String> components = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				components.add(readString(in));
+			}
+			return new Path(components);
+		}
+		case ARRAY: {
+			Class<?> component = classFor(readString(in));
+			// Each element takes at least its tag
+			int length = readLength(in, 1);
+			Object[] array = (Object[]) Array.newInstance(component, length);
+			for (int i = 0; i < length; i++) {
+				array[i] = readValue(in);
+			}
+			return array;
+		}
+		case STUB: {
+			Class<?> c = classFor(readString(in));
+			if (!c.isInterface()) {
+				throw new InvalidClassException(c.getName(),
+						"Stub class is not an interface");
+			}
+			InetSocketAddress address = readAddress(in);
+			ProxyHandler handler = new ProxyHandler(address, c);
+			handler.object = in.readInt();
+			if (in.readBoolean()) {
+				handler.localSocket = readString(in);
+			}
+			return Proxy.newProxyInstance(c.getClassLoader(),
+					new Class[] { c }, handler);
+		}
+		case SERIALIZED: {
+			byte[] bytes = new byte[readLength(in, 1)];
+			in.readFully(bytes);
+			ObjectInputStream objects = new ObjectInputStream(
+					new ByteArrayInputStream(bytes));
+			return objects.readObject();
+		}
+		default:
+			throw new StreamCorruptedException("Unknown value tag " + tag);
+		}
+	}
+
+	private static boolean isStub(Object value) {
+		if (!Proxy.isProxyClass(value.getClass())) {
+			return false;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(value);
+		return handler instanceof ProxyHandler;
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readLength(in, 1)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a socket address so that the address read back is equal to it:
+	 * the host name, the raw IP address if it was resolved, and the port.
+	 */
+	private static void writeAddress(DataOutputStream out,
+			InetSocketAddress address) throws IOException {
+		writeString(out, address.getHostString());
+		InetAddress ip = address.getAddress();
+		byte[] raw = ip == null ? new byte[0] : ip.getAddress();
+		out.writeByte(raw.length);
+		out.write(raw);
+		out.writeInt(address.getPort());
+	}
+
+	private static InetSocketAddress readAddress(DataInputStream in)
+			throws IOException {
+		String host = readString(in);
+		byte[] raw = new byte[in.readUnsignedByte()];
+		in.readFully(raw);
+		int port = in.readInt();
+		if (raw.length == 0) {
+			return InetSocketAddress.createUnresolved(host, port);
+		}
+		return new InetSocketAddress(InetAddress.getByAddress(host, raw), port);
+	}
+
+	/**
+	 * Reads the length of a string, array or path, and checks that the bytes
+	 * left in the frame can hold that many elements of at least
+	 * <code>size</code> bytes each before anything is allocated for them.
+	 * Values are always read from a frame held in memory, so
+	 * <code>available</code> is the number of bytes left in it.
+	 */
+	private static int readLength(DataInputStream in, int size)
+			throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new StreamCorruptedException("Negative length");
+		}
+		if (length > in.available() / size) {
+			throw new StreamCorruptedException("Length " + length
+					+ " exceeds the rest of the frame");
+		}
+		return length;
+	}
+
+	private Class<?> classFor(String name) throws ClassNotFoundException {
+		Class<?> c = classes.get(name);
+		if (c == null) {
+			c = Class.forName(name, false, BinaryCodec.class.getClassLoader());
+			classes.put(name, c);
+		}
+		return c;
+	}
+}
@@ -0,0 +1,176 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor on which a skeleton runs the work of serving its clients.
+ *
+ * <p>
+ * A <code>Skeleton</code> hands every call it receives to its
+ * <code>CallExecutor</code> instead of creating a thread for it. Three strategies are provided: a thread per task, using virtual threads
+ * where the Java runtime supports them (the default), a bounded pool of
+ * platform threads, and any executor supplied by the caller.
+ *
+ * <p>
+ * The executor keeps count of the tasks that are running and of those that
+ * have been submitted but not yet started, so that a server can report how
+ * busy it is.
+ */
+public class CallExecutor implements Executor {
+	private final Executor executor;
+	private final boolean owned;
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private CallExecutor(Executor executor, boolean owned) {
+		this.executor = executor;
+		this.owned = owned;
+	}
+
+	/**
+	 * Creates an executor that runs each task on its own new thread.
+	 *
+	 * <p>
+	 * Virtual threads are used if the Java runtime provides them. Otherwise,
+	 * each task runs on a daemon platform thread; idle platform threads are
+	 * kept for a short time and reused.
+	 *
+	 * @return The executor.
+	 */
+	public static CallExecutor threadPerTask() {
+		try {
+			Method m = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return new CallExecutor((ExecutorService) m.invoke(null), true);
+		} catch (Exception e) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(0,
+					Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new DaemonFactory());
+			return new CallExecutor(pool, true);
+		}
+	}
+
+	/**
+	 * Creates an executor backed by a bounded pool of platform threads.
+	 *
+	 * <p>
+	 * Tasks beyond <code>threads</code> wait in a queue of the given capacity.
+	 * When the queue is full, further tasks are rejected, and the skeleton
+	 * closes the connections whose calls it could not serve.
+	 *
+	 * @param threads
+	 *            Maximum number of tasks running at once.
+	 * @param queueCapacity
+	 *            Maximum number of tasks waiting to run.
+	 * @return The executor.
+	 * @throws IllegalArgumentException
+	 *             If <code>threads</code> is not positive or
+	 *             <code>queueCapacity</code> is negative.
+	 */
+	public static CallExecutor boundedPool(int threads, int queueCapacity) {
+		if (threads <= 0 || queueCapacity < 0) {
+			throw new IllegalArgumentException("Invalid pool bounds");
+		}
+		ThreadPoolExecutor pool;
+		if (queueCapacity == 0) {
+			pool = new ThreadPoolExecutor(threads, threads, 60,
+					TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new DaemonFactory());
+		} else {
+			pool = new ThreadPoolExecutor(threads, threads, 60,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+							queueCapacity), new DaemonFactory());
+		}
+		pool.allowCoreThreadTimeOut(true);
+		return new CallExecutor(pool, true);
+	}
+
+	/**
+	 * Wraps an executor supplied by the caller.
+	 *
+	 * <p>
+	 * The skeleton never shuts down an executor it did not create.
+	 *
+	 * @param executor
+	 *            The executor to run tasks on.
+	 * @return The executor.
+	 * @throws NullPointerException
+	 *             If <code>executor</code> is <code>null</code>.
+	 */
+	public static CallExecutor of(Executor executor) {
+		if (executor == null) {
+			throw new NullPointerException("Executor is null");
+		}
+		return new CallExecutor(executor, false);
+	}
+
+	/**
+	 * Runs a task on the executor.
+	 *
+	 * @throws RejectedExecutionException
+	 *             If the underlying executor cannot accept the task.
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		queued.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					queued.decrementAndGet();
+					active.incrementAndGet();
+					try {
+						task.run();
+					} finally {
+						active.decrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			queued.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/** Returns the number of tasks currently running. */
+	public int activeCount() {
+		return active.get();
+	}
+
+	/** Returns the number of tasks waiting to start. */
+	public int queuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * Stops accepting new tasks, if the executor was created by this class.
+	 * Running and queued tasks are allowed to finish. Executors supplied by
+	 * the caller are left running.
+	 */
+	public void shutdown() {
+		if (owned && executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	private static class DaemonFactory implements ThreadFactory {
+		private static final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "rmi-service-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Invocation handler of callbacks exported by <code>Stub.export</code>.
+ *
+ * <p>
+ * In the exporting JVM the handler calls the listener directly. When the
+ * callback is sent to a skeleton as an argument, only the interface and the
+ * callback number travel, and the copy the skeleton decodes is bound to the
+ * connection the call came on: calling it there pushes the call back to the
+ * exporting JVM, without waiting for it to run.
+ */
+class CallbackHandler implements InvocationHandler, Serializable {
+	final Class<?> c;
+	final int id;
+	/** The listener, in the exporting JVM. */
+	transient Object target;
+	/** The connection back to the exporting JVM, in a skeleton. */
+	private transient Channel channel;
+	/** Numbering of the methods of <code>c</code>. */
+	private transient MethodTable methods;
+
+	CallbackHandler(Class<?> c, int id, Object target) {
+		this.c = c;
+		this.id = id;
+		this.target = target;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeObject(proxy, method, args);
+		}
+		if (target != null) {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+		if (channel == null) {
+			throw new RMIException("Callback is not bound to a connection");
+		}
+		if (methods == null) {
+			methods = MethodTable.of(c);
+		}
+		try {
+			channel.push(Frames.encodePush(channel.codec(), id,
+					methods.id(method), args));
+		} catch (IOException e) {
+			throw new RMIException("Unable to push to callback", e);
+		}
+		return null;
+	}
+
+	private Object invokeObject(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			Object other = args[0];
+			if (other == null || !Proxy.isProxyClass(other.getClass())) {
+				return false;
+			}
+			Object handler = Proxy.getInvocationHandler(other);
+			return handler instanceof CallbackHandler
+					&& ((CallbackHandler) handler).c == c
+					&& ((CallbackHandler) handler).id == id;
+		} else if (name.equals("hashCode")) {
+			return c.hashCode() * 31 + id;
+		} else {
+			return "Callback " + c.getName() + " #" + id;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		this.channel = Callbacks.decoding.get();
+		if (this.channel != null) {
+			this.channel.pin();
+		} else {
+			// Back in the exporting JVM
+			this.target = Callbacks.target(id, c);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package rmi;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Callbacks exported by this JVM, and delivery of the calls pushed to them.
+ *
+ * <p>
+ * Pushed calls are run on a shared pool of daemon threads, never on the thread
+ * reading the connection, so a slow listener does not hold up replies. Calls
+ * to one listener are run one at a time, in the order they arrived.
+ */
+class Callbacks {
+	/** The connection whose call is being decoded on this thread, if any. */
+	static final ThreadLocal<Channel> decoding = new ThreadLocal<Channel>();
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+	private static final ConcurrentHashMap<Integer, Exported> exported = new ConcurrentHashMap<Integer, Exported>();
+	private static final Executor delivery = new ThreadPoolExecutor(0,
+			Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "rmi-callback-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** A listener and the pushed calls waiting to be run on it. */
+	private static class Exported implements Runnable {
+		final Class<?> c;
+		final Object listener;
+		/** Method numbers and arguments of the calls pushed. */
+		final ConcurrentLinkedQueue<Object[]> pushed = new ConcurrentLinkedQueue<Object[]>();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		Exported(Class<?> c, Object listener) {
+			this.c = c;
+			this.listener = listener;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Object[] push;
+				while ((push = pushed.poll()) != null) {
+					try {
+						MethodTable.of(c).invoke((Integer) push[0], listener,
+								(Object[]) push[1]);
+					} catch (Throwable t) {
+						// Nobody is waiting for the outcome of a pushed call
+					}
+				}
+				scheduled.set(false);
+				// A push may have arrived after the queue was found empty
+				if (pushed.isEmpty() || !scheduled.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+	}
+
+	private Callbacks() {
+	}
+
+	/** Exports a listener and returns its callback object. */
+	static <L> L export(Class<L> c, L listener) {
+		int id = nextId.incrementAndGet();
+		exported.put(id, new Exported(c, listener));
+		return c.cast(Proxy.newProxyInstance(c.getClassLoader(),
+				new Class[] { c }, new CallbackHandler(c, id, listener)));
+	}
+
+	/**
+	 * Stops delivering pushed calls to a callback exported by this JVM.
+	 *
+	 * @return Whether the callback was exported.
+	 */
+	static boolean unexport(Object callback) {
+		CallbackHandler handler = handler(callback);
+		return handler != null && handler.target != null
+				&& exported.remove(handler.id) != null;
+	}
+
+	/**
+	 * Returns the listener exported under the given number, or
+	 * <code>null</code>.
+	 */
+	static Object target(int id, Class<?> c) {
+		Exported e = exported.get(id);
+		return e == null || e.c != c ? null : e.listener;
+	}
+
+	/** Returns whether any of the given values is an exported callback. */
+	static boolean any(Object[] values) {
+		if (values == null || exported.isEmpty()) {
+			return false;
+		}
+		for (Object value : values) {
+			if (handler(value) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes a push frame and queues the call for delivery to its listener.
+	 * Pushes to callbacks that are no longer exported are dropped.
+	 */
+	static void deliver(Codec codec, Frame push) {
+		Exported e;
+		Object[] call;
+		try {
+			e = exported.get(Frames.pushCallback(push.payload));
+			if (e == null) {
+				return;
+			}
+			call = new Object[] { Frames.pushMethod(push.payload),
+					Frames.decodeArgs(codec, push) };
+		} catch (Exception ex) {
+			return;
+		}
+		e.pushed.add(call);
+		if (e.scheduled.compareAndSet(false, true)) {
+			delivery.execute(e);
+		}
+	}
+
+	private static CallbackHandler handler(Object value) {
+		if (value == null || !Proxy.isProxyClass(value.getClass())) {
+			return null;
+		}
+		Object handler = Proxy.getInvocationHandler(value);
+		return handler instanceof CallbackHandler ? (CallbackHandler) handler
+				: null;
+	}
+}
@@ -0,0 +1,30 @@
+package rmi;
+
+import java.io.IOException;
+
+/**
+ * The skeleton's end of one connection, as seen by callbacks.
+ *
+ * <p>
+ * Callbacks decoded from the arguments of a call are bound to the connection
+ * the call arrived on, and push their calls back to the stub over it. Both
+ * transports implement this for their connections.
+ */
+interface Channel {
+	/** Returns the codec agreed on for the connection. */
+	Codec codec();
+
+	/**
+	 * Writes a push frame to the connection.
+	 *
+	 * @throws IOException
+	 *             If the connection is closed or cannot be written to.
+	 */
+	void push(Message push) throws IOException;
+
+	/**
+	 * Keeps the connection open while it is idle, because a callback bound to
+	 * it may still be called.
+	 */
+	void pin();
+}
@@ -0,0 +1,54 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding of the values carried by RMI frames.
+ *
+ * <p>
+ * A codec turns the arguments of a call, and the success flag and result of a
+ * reply, into bytes and back. When a stub opens a connection, it offers the
+ * names of the codecs registered with <code>Codecs</code> and the skeleton
+ * picks the first one it also knows; every frame on the connection then uses
+ * that codec. New codecs can be added with <code>Codecs.register</code>.
+ *
+ * <p>
+ * Implementations must be thread-safe: one codec is used by all connections at
+ * once.
+ */
+public interface Codec {
+	/**
+	 * Returns the name by which stubs and skeletons agree on this codec.
+	 */
+	String name();
+
+	/**
+	 * Writes a sequence of values.
+	 *
+	 * @param out
+	 *            The stream to write to. The stream is not closed.
+	 * @param values
+	 *            The values. Any may be <code>null</code>.
+	 * @throws IOException
+	 *             If a value cannot be encoded.
+	 */
+	void write(OutputStream out, Object... values) throws IOException;
+
+	/**
+	 * Reads a sequence of values written by <code>write</code>.
+	 *
+	 * @param in
+	 *            The stream to read from.
+	 * @param count
+	 *            The number of values to read.
+	 * @return The values.
+	 * @throws IOException
+	 *             If the bytes cannot be decoded.
+	 * @throws ClassNotFoundException
+	 *             If a value is of a class that cannot be found.
+	 */
+	Object[] read(InputStream in, int count) throws IOException,
+			ClassNotFoundException;
+}
@@ -0,0 +1,68 @@
+package rmi;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the codecs stubs and skeletons can use.
+ *
+ * <p>
+ * The binary codec, named <code>"binary"</code>, and a codec using Java
+ * serialization for everything, named <code>"java"</code>, are always
+ * registered. Stubs offer the registered codecs in order of preference, most
+ * recently registered first and the built-in binary codec before Java
+ * serialization, and skeletons accept the first one offered that they know.
+ */
+public final class Codecs {
+	private static final CopyOnWriteArrayList<Codec> codecs = new CopyOnWriteArrayList<Codec>();
+
+	static {
+		codecs.add(new BinaryCodec());
+		codecs.add(new SerializationCodec());
+	}
+
+	private Codecs() {
+	}
+
+	/**
+	 * Registers a codec, in preference to all codecs registered before it. A
+	 * codec registered earlier under the same name is replaced.
+	 *
+	 * @param codec
+	 *            The codec.
+	 * @throws NullPointerException
+	 *             If <code>codec</code> or its name is <code>null</code>.
+	 */
+	public static synchronized void register(Codec codec) {
+		if (codec == null || codec.name() == null) {
+			throw new NullPointerException("Codec or codec name is null");
+		}
+		Codec old = get(codec.name());
+		if (old != null) {
+			codecs.remove(old);
+		}
+		codecs.add(0, codec);
+	}
+
+	/**
+	 * Returns the codec registered under a name, or <code>null</code> if
+	 * there is none.
+	 */
+	public static Codec get(String name) {
+		for (Codec codec : codecs) {
+			if (codec.name().equals(name)) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/** Returns the names of the registered codecs, in order of preference. */
+	static String[] names() {
+		Codec[] all = codecs.toArray(new Codec[0]);
+		String[] names = new String[all.length];
+		for (int i = 0; i < all.length; i++) {
+			names[i] = all[i].name();
+		}
+		return names;
+	}
+}
@@ -0,0 +1,102 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the compression of frames.
+ *
+ * <p>
+ * A skeleton keeps one set of counters for all its connections, and all stubs
+ * in a JVM share another, returned by <code>client</code>. Comparing the
+ * ratio with the time spent shows whether compression pays off for the
+ * traffic of a given skeleton.
+ *
+ * <p>
+ * Only frames of at least <code>Compressor.THRESHOLD</code> bytes on
+ * connections where compression was agreed are counted. Times are measured
+ * on the thread doing the work, with <code>System.nanoTime</code>.
+ */
+public class CompressionStats {
+	private static final CompressionStats client = new CompressionStats();
+
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong bytesBefore = new AtomicLong();
+	private final AtomicLong bytesAfter = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+	private final AtomicLong decompressed = new AtomicLong();
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	/** Returns the counters shared by all stubs in this JVM. */
+	public static CompressionStats client() {
+		return client;
+	}
+
+	/** Returns the number of frames sent compressed. */
+	public long framesCompressed() {
+		return compressed.get();
+	}
+
+	/**
+	 * Returns the number of frames that were large enough to compress, but were
+	 * sent as they were because compression did not make them smaller.
+	 */
+	public long framesSkipped() {
+		return skipped.get();
+	}
+
+	/** Returns the number of bytes given to the compressor. */
+	public long bytesBeforeCompression() {
+		return bytesBefore.get();
+	}
+
+	/**
+	 * Returns the number of bytes sent for the frames given to the compressor.
+	 */
+	public long bytesAfterCompression() {
+		return bytesAfter.get();
+	}
+
+	/**
+	 * Returns the ratio of bytes sent to bytes given to the compressor, or
+	 * <code>1</code> if nothing has been compressed yet.
+	 */
+	public double ratio() {
+		long before = bytesBefore.get();
+		return before == 0 ? 1.0 : (double) bytesAfter.get() / before;
+	}
+
+	/** Returns the nanoseconds spent compressing. */
+	public long compressionNanos() {
+		return compressNanos.get();
+	}
+
+	/** Returns the number of bytes produced by decompressing received frames. */
+	public long bytesDecompressed() {
+		return decompressed.get();
+	}
+
+	/** Returns the nanoseconds spent decompressing. */
+	public long decompressionNanos() {
+		return decompressNanos.get();
+	}
+
+	void compressed(int before, int after, long nanos) {
+		compressed.incrementAndGet();
+		bytesBefore.addAndGet(before);
+		bytesAfter.addAndGet(after);
+		compressNanos.addAndGet(nanos);
+	}
+
+	void skipped(int before, long nanos) {
+		skipped.incrementAndGet();
+		bytesBefore.addAndGet(before);
+		bytesAfter.addAndGet(before);
+		compressNanos.addAndGet(nanos);
+	}
+
+	void decompressed(int bytes, long nanos) {
+		decompressed.addAndGet(bytes);
+		decompressNanos.addAndGet(nanos);
+	}
+}
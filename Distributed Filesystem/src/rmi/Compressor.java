@@ -0,0 +1,130 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frames of one connection.
+ *
+ * <p>
+ * Frames shorter than <code>THRESHOLD</code> bytes, which includes nearly all
+ * calls other than reads and writes of file data, are never compressed. Larger
+ * frames are deflated, and sent compressed only if that makes them smaller. A
+ * compressed frame is marked by the top bit of its length prefix, and starts
+ * with the length of the original contents.
+ */
+class Compressor {
+	/** Frames with fewer bytes than this are not compressed. */
+	static final int THRESHOLD = 1024;
+	/** Marks the length prefix of a compressed frame. */
+	static final int COMPRESSED = 0x80000000;
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private final CompressionStats stats;
+
+	Compressor(CompressionStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Compresses frame contents.
+	 *
+	 * @return The compressed frame, length prefix included, or
+	 *         <code>null</code> if the contents should be sent as they are.
+	 */
+	byte[] compress(byte[] contents, int offset, int length) {
+		if (length < THRESHOLD) {
+			return null;
+		}
+		long start = System.nanoTime();
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(contents, offset, length);
+		deflater.finish();
+
+		// Give up as soon as the output would not be smaller
+		int limit = Frames.HEADER + 4 + length - 1;
+		byte[] frame = new byte[limit];
+		int size = Frames.HEADER + 4;
+		while (!deflater.finished() && size < limit) {
+			size += deflater.deflate(frame, size, limit - size);
+		}
+		if (!deflater.finished()) {
+			stats.skipped(length, System.nanoTime() - start);
+			return null;
+		}
+		putInt(frame, 0, COMPRESSED | (size - Frames.HEADER));
+		putInt(frame, Frames.HEADER, length);
+		stats.compressed(length, size, System.nanoTime() - start);
+
+		byte[] trimmed = new byte[size];
+		System.arraycopy(frame, 0, trimmed, 0, size);
+		return trimmed;
+	}
+
+	/**
+	 * Restores the contents of a compressed frame.
+	 *
+	 * @param packed
+	 *            The frame contents following the length prefix.
+	 * @throws StreamCorruptedException
+	 *             If the data cannot be decompressed, ends before the original
+	 *             length, needs a preset dictionary, or would be longer than
+	 *             <code>Frames.MAX_FRAME</code>.
+	 */
+	byte[] decompress(byte[] packed) throws IOException {
+		long start = System.nanoTime();
+		if (packed.length < 4) {
+			throw new StreamCorruptedException("Truncated compressed frame");
+		}
+		int length = ((packed[0] & 0xff) << 24) | ((packed[1] & 0xff) << 16)
+				| ((packed[2] & 0xff) << 8) | (packed[3] & 0xff);
+		if (length < 0 || length > Frames.MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length");
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(packed, 4, packed.length - 4);
+		byte[] contents = new byte[length];
+		try {
+			int size = 0;
+			while (size < length) {
+				int n = inflater.inflate(contents, size, length - size);
+				if (n == 0) {
+					// All of the input is given and there is room for output,
+					// so no progress means the stream ended early or wants a
+					// preset dictionary, which frames never use
+					throw new StreamCorruptedException(
+							"Truncated compressed frame");
+				}
+				size += n;
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Corrupt compressed frame");
+		}
+		stats.decompressed(length, System.nanoTime() - start);
+		return contents;
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
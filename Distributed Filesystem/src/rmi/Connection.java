@@ -0,0 +1,403 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent, multiplexed connection from stubs to a skeleton.
+ *
+ * <p>
+ * Any number of threads may send calls on one connection at the same time.
+ * Each call frame is tagged with an identifier (see <code>Frames</code>), and a
+ * reader thread matches incoming reply frames to the calls that are waiting
+ * for them, so replies may arrive in any order. The skeleton keeps serving
+ * calls on the connection until either side closes it. Connections are shared
+ * out by <code>ConnectionPool</code>.
+ *
+ * <p>
+ * The reader thread also hands push frames, sent by the skeleton to callbacks
+ * exported by this JVM, to <code>Callbacks</code>.
+ */
+class Connection {
+	/** Milliseconds to wait for the skeleton to answer the hello frame. */
+	static final int HANDSHAKE_TIMEOUT = 10000;
+
+	final InetSocketAddress address;
+	/** The socket of a TCP connection, or the channel of a local one. */
+	private final Closeable endpoint;
+	/** The codec agreed on with the skeleton. */
+	final Codec codec;
+	/** Compresses frames, if the skeleton agreed to compression. */
+	final Compressor compressor;
+	private final OutputStream out;
+	private final DataInputStream in;
+	private final ConcurrentHashMap<Integer, Reply> pending = new ConcurrentHashMap<Integer, Reply>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private volatile boolean closed = false;
+	/** Time at which the last outstanding call on the connection completed. */
+	volatile long lastUsed;
+	/** Number of replies received on the connection so far. */
+	volatile long replies = 0;
+	/**
+	 * Whether a callback has been sent on the connection, in which case it is
+	 * kept open while idle so that the skeleton can push calls to it.
+	 */
+	volatile boolean pinned = false;
+
+	/**
+	 * Opens a new connection to the given address, agrees on a codec with the
+	 * skeleton, and starts the reader thread.
+	 *
+	 * @param address
+	 *            The address of the skeleton.
+	 * @param localSocket
+	 *            The Unix domain socket file of the skeleton, or
+	 *            <code>null</code>. It is used instead of TCP if the skeleton
+	 *            is on this host (see <code>LocalSockets</code>).
+	 * @param timeout
+	 *            Milliseconds to wait for the connection to be opened and the
+	 *            skeleton to answer the hello, or zero for the default.
+	 * @throws IOException
+	 *             If the connection cannot be established, or the skeleton
+	 *             accepts none of the registered codecs.
+	 */
+	Connection(InetSocketAddress address, String localSocket, int timeout)
+			throws IOException {
+		this.address = address;
+		final SocketChannel channel = LocalSockets.connect(address,
+				localSocket);
+		Socket socket = null;
+		OutputStream out = null;
+		DataInputStream in = null;
+		ScheduledFuture<?> handshake = null;
+		int wait = timeout > 0 ? Math.min(timeout, HANDSHAKE_TIMEOUT)
+				: HANDSHAKE_TIMEOUT;
+		if (channel != null) {
+			this.endpoint = channel;
+			out = LocalSockets.output(channel);
+			in = new DataInputStream(new BufferedInputStream(
+					LocalSockets.input(channel)));
+		} else {
+			socket = new Socket();
+			this.endpoint = socket;
+		}
+		try {
+			if (channel != null) {
+				// Channels have no read timeout, so the handshake is cut off
+				// by closing the channel
+				handshake = Timeouts.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							channel.close();
+						} catch (IOException e) {
+						}
+					}
+				}, wait * 1000000L);
+			} else {
+				socket.connect(address, timeout);
+				socket.setTcpNoDelay(true);
+				out = socket.getOutputStream();
+				in = new DataInputStream(new BufferedInputStream(
+						socket.getInputStream()));
+				socket.setSoTimeout(wait);
+			}
+
+			Frames.write(out, Frames.hello(Codecs.names(), true));
+			byte[] welcome = Frames.read(in);
+			if (handshake != null && !handshake.cancel(false)) {
+				throw new SocketTimeoutException("Handshake timed out");
+			}
+			if (socket != null) {
+				socket.setSoTimeout(0);
+			}
+			String name = Frames.welcomeCodec(welcome);
+			this.compressor = Frames.welcomeCompression(welcome) ? new Compressor(
+					CompressionStats.client()) : null;
+			this.codec = Codecs.get(name);
+			if (this.codec == null) {
+				throw new StreamCorruptedException("Unknown codec " + name);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		this.out = out;
+		this.in = in;
+		this.lastUsed = System.currentTimeMillis();
+
+		Thread reader = new Thread(new Reader(), "rmi-connection-" + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends an encoded call on this connection.
+	 *
+	 * <p>
+	 * The call is given a fresh call identifier before it is written. The
+	 * returned future completes with the reply, or exceptionally if the
+	 * connection fails before the reply arrives.
+	 *
+	 * @throws IOException
+	 *             If the frame cannot be written. The connection is then
+	 *             closed, and the skeleton has not received the whole frame,
+	 *             so it will not run the call. A failure reported through the
+	 *             returned future instead means the call may have been run.
+	 */
+	CompletableFuture<Frame> send(Message call) throws IOException {
+		FutureReply reply = new FutureReply();
+		send(call, reply);
+		return reply;
+	}
+
+	/**
+	 * Sends an encoded call on this connection, for a caller that waits for
+	 * the reply on its own thread. This is <code>send</code> without the
+	 * future: the reply is taken with <code>Waiter.await</code>.
+	 *
+	 * @throws IOException
+	 *             If the frame cannot be written, as for <code>send</code>.
+	 */
+	Waiter sendWaiting(Message call) throws IOException {
+		Waiter reply = new Waiter();
+		reply.id = send(call, reply);
+		return reply;
+	}
+
+	/** Writes a call, and returns the identifier it was given. */
+	private int send(Message call, Reply reply) throws IOException {
+		int id = nextId.incrementAndGet();
+		if (id == Frames.PUSH) {
+			id = nextId.incrementAndGet();
+		}
+		Frames.setId(call, id);
+		pending.put(id, reply);
+		if (closed) {
+			pending.remove(id);
+			throw new EOFException("Connection closed");
+		}
+		try {
+			synchronized (out) {
+				Frames.write(out, call, compressor);
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			close();
+			throw e;
+		}
+		return id;
+	}
+
+	/**
+	 * Stops waiting for the reply to a call whose caller has given up. The
+	 * reply is dropped if it arrives later.
+	 *
+	 * @param call
+	 *            The call, as sent.
+	 */
+	void forget(Message call) {
+		forget(Frames.id(call));
+	}
+
+	private void forget(int id) {
+		pending.remove(id);
+		if (pending.isEmpty()) {
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Checks that the skeleton still answers on this connection, by sending a
+	 * ping and waiting for it to come back. The connection is closed if it
+	 * does not.
+	 *
+	 * @param timeout
+	 *            Milliseconds to wait for the ping to come back.
+	 * @return <code>true</code> if the ping came back in time.
+	 * @throws IOException
+	 *             If the thread is interrupted while waiting. The connection
+	 *             is left open.
+	 */
+	boolean alive(int timeout) throws IOException {
+		Message ping = Frames.ping(codec);
+		CompletableFuture<Frame> reply;
+		try {
+			reply = send(ping);
+		} catch (IOException e) {
+			return false;
+		}
+		try {
+			reply.get(timeout, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			forget(ping);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted checking connection");
+		} catch (ExecutionException e) {
+		} catch (TimeoutException e) {
+		}
+		close();
+		return false;
+	}
+
+	/** Returns the number of calls waiting for their replies. */
+	int outstanding() {
+		return pending.size();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes the connection. Calls still waiting for replies fail.
+	 */
+	void close() {
+		closed = true;
+		try {
+			endpoint.close();
+		} catch (IOException e) {
+		}
+		failPending(new EOFException("Connection closed"));
+	}
+
+	private void failPending(IOException cause) {
+		for (Integer id : new ArrayList<Integer>(pending.keySet())) {
+			Reply reply = pending.remove(id);
+			if (reply != null) {
+				reply.completeExceptionally(cause);
+			}
+		}
+	}
+
+	/** A call waiting for its reply, as the reader thread sees it. */
+	private interface Reply {
+		boolean complete(Frame frame);
+
+		boolean completeExceptionally(Throwable failure);
+	}
+
+	/** The reply to a call made with <code>send</code>. */
+	private static class FutureReply extends CompletableFuture<Frame> implements
+			Reply {
+	}
+
+	/** The reply to a call made with <code>sendWaiting</code>. */
+	final class Waiter implements Reply {
+		private int id;
+		private Frame frame = null;
+		private Throwable failure = null;
+
+		@Override
+		public synchronized boolean complete(Frame frame) {
+			if (this.frame != null || failure != null) {
+				return false;
+			}
+			this.frame = frame;
+			notifyAll();
+			return true;
+		}
+
+		@Override
+		public synchronized boolean completeExceptionally(Throwable failure) {
+			if (frame != null || this.failure != null) {
+				return false;
+			}
+			this.failure = failure;
+			notifyAll();
+			return true;
+		}
+
+		/**
+		 * Waits for the reply. Like <code>CompletableFuture.join</code>, this
+		 * is not cut short by interrupts; the thread's interrupt status is set
+		 * again before returning.
+		 *
+		 * @param deadline
+		 *            <code>System.nanoTime</code> after which to give up on
+		 *            the reply, or zero to wait for as long as it takes.
+		 * @return The reply, or <code>null</code> if the deadline passed
+		 *         first. The reply is then dropped if it arrives later.
+		 * @throws IOException
+		 *             If the connection failed before the reply arrived. The
+		 *             skeleton may have run the call.
+		 */
+		Frame await(long deadline) throws IOException {
+			boolean interrupted = false;
+			try {
+				synchronized (this) {
+					while (frame == null && failure == null) {
+						try {
+							if (deadline == 0) {
+								wait();
+								continue;
+							}
+							long left = deadline - System.nanoTime();
+							if (left <= 0) {
+								forget(id);
+								return null;
+							}
+							TimeUnit.NANOSECONDS.timedWait(this, left);
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (failure != null) {
+				throw failure instanceof IOException ? (IOException) failure
+						: new IOException(failure);
+			}
+			return frame;
+		}
+	}
+
+	/** Hands reply frames to the calls waiting for them. */
+	private class Reader implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Frame frame = Frames.readFrame(in, compressor);
+					if (Frames.id(frame.payload) == Frames.PUSH) {
+						Callbacks.deliver(codec, frame);
+						continue;
+					}
+					Reply reply = pending.remove(Frames
+							.id(frame.payload));
+					replies++;
+					if (pending.isEmpty()) {
+						lastUsed = System.currentTimeMillis();
+					}
+					if (reply != null) {
+						reply.complete(frame);
+					}
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per-address pool of connections to skeletons.
+ *
+ * <p>
+ * Connections are multiplexed, so stubs do not take a connection for
+ * themselves: each call is sent on the open connection to the address with
+ * the fewest calls outstanding. Another connection is only opened when every
+ * open one already has <code>PIPELINE_DEPTH</code> calls outstanding, up to
+ * <code>MAX_CONNECTIONS</code> connections per address. Repeated calls to the
+ * same server therefore reuse a warm connection instead of paying for a new
+ * TCP handshake each time.
+ *
+ * <p>
+ * A connection with no outstanding calls that has been idle for
+ * <code>VALIDATE_AFTER</code> milliseconds may have been dropped by the
+ * skeleton or the network without this side noticing. Before such a
+ * connection is handed out again it is pinged (see <code>Frames</code>), and
+ * it is discarded if the ping does not come back within
+ * <code>PING_TIMEOUT</code> milliseconds. The ping is sent outside the pool's
+ * lock.
+ *
+ * <p>
+ * Connections with no outstanding calls are closed after
+ * <code>IDLE_TIMEOUT</code> milliseconds by a background evictor thread,
+ * unless a callback has been sent on them.
+ * Connections that the skeleton closes are noticed by their reader threads and
+ * dropped from the pool.
+ */
+class ConnectionPool {
+	static final int MAX_CONNECTIONS = 4;
+	static final int PIPELINE_DEPTH = 16;
+	static final long IDLE_TIMEOUT = 30000;
+	static final long VALIDATE_AFTER = 1000;
+	static final int PING_TIMEOUT = 1000;
+
+	/** The pool shared by all stubs in this JVM. */
+	static final ConnectionPool shared = new ConnectionPool();
+
+	private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+	private Thread evictor = null;
+
+	/** Open connections to one address. */
+	private static class Entry {
+		final ArrayList<Connection> open = new ArrayList<Connection>();
+		/** Connections being opened right now. */
+		int opening = 0;
+	}
+
+	/**
+	 * Returns a connection to the given address to send a call on, opening a
+	 * new one if needed.
+	 *
+	 * @param localSocket
+	 *            The Unix domain socket file of the skeleton, if it has one,
+	 *            for new connections to use when the skeleton is on this host.
+	 * @param timeout
+	 *            Milliseconds to wait for a connection to be opened, or zero to
+	 *            wait as long as it takes.
+	 * @throws IOException
+	 *             If a new connection cannot be opened in time.
+	 */
+	Connection acquire(InetSocketAddress address, String localSocket,
+			int timeout) throws IOException {
+		long expires = System.nanoTime() + timeout * 1000000L;
+		while (true) {
+			Connection c = choose(address, localSocket, timeout, expires);
+			if (c.outstanding() > 0
+					|| System.currentTimeMillis() - c.lastUsed < VALIDATE_AFTER) {
+				return c;
+			}
+			int wait = PING_TIMEOUT;
+			if (timeout > 0) {
+				wait = (int) Math.max(1, Math.min(wait,
+						(expires - System.nanoTime()) / 1000000));
+			}
+			if (c.alive(wait)) {
+				return c;
+			}
+			discard(c);
+		}
+	}
+
+	/**
+	 * Returns the open connection to send the next call on, or opens a new
+	 * one. See <code>acquire</code>.
+	 */
+	private Connection choose(InetSocketAddress address, String localSocket,
+			int timeout, long expires) throws IOException {
+		Entry e;
+		synchronized (this) {
+			e = entry(address);
+			while (true) {
+				Connection best = null;
+				Iterator<Connection> it = e.open.iterator();
+				while (it.hasNext()) {
+					Connection c = it.next();
+					if (c.isClosed()) {
+						it.remove();
+					} else if (best == null
+							|| c.outstanding() < best.outstanding()) {
+						best = c;
+					}
+				}
+				int total = e.open.size() + e.opening;
+				if (best != null
+						&& (best.outstanding() < PIPELINE_DEPTH || total >= MAX_CONNECTIONS)) {
+					return best;
+				}
+				if (total < MAX_CONNECTIONS) {
+					break;
+				}
+				// Every connection is still being opened; wait for one
+				long left = (expires - System.nanoTime()) / 1000000;
+				if (timeout > 0 && left <= 0) {
+					throw new SocketTimeoutException(
+							"Timed out waiting for connection");
+				}
+				try {
+					wait(timeout > 0 ? left : 0);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for connection");
+				}
+			}
+			e.opening++;
+		}
+
+		Connection c = null;
+		try {
+			int left = timeout;
+			if (timeout > 0) {
+				left = (int) Math.max(1,
+						(expires - System.nanoTime()) / 1000000);
+			}
+			c = new Connection(address, localSocket, left);
+			return c;
+		} finally {
+			synchronized (this) {
+				e.opening--;
+				if (c != null) {
+					e.open.add(c);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Closes and forgets a connection that failed.
+	 */
+	void discard(Connection c) {
+		c.close();
+		synchronized (this) {
+			Entry e = entries.get(c.address);
+			if (e != null) {
+				e.open.remove(c);
+			}
+		}
+	}
+
+	/** Returns the number of open connections in the pool. */
+	synchronized int size() {
+		int size = 0;
+		for (Entry e : entries.values()) {
+			for (Connection c : e.open) {
+				if (!c.isClosed()) {
+					size++;
+				}
+			}
+		}
+		return size;
+	}
+
+	private Entry entry(InetSocketAddress address) {
+		Entry e = entries.get(address);
+		if (e == null) {
+			e = new Entry();
+			entries.put(address, e);
+		}
+		if (evictor == null) {
+			evictor = new Thread(new Evictor(), "rmi-connection-evictor");
+			evictor.setDaemon(true);
+			evictor.start();
+		}
+		return e;
+	}
+
+	/** Closes connections that have been idle for too long. */
+	private synchronized void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> entryIt = entries.values().iterator();
+		while (entryIt.hasNext()) {
+			Entry e = entryIt.next();
+			Iterator<Connection> it = e.open.iterator();
+			while (it.hasNext()) {
+				Connection c = it.next();
+				if (c.isClosed()) {
+					it.remove();
+				} else if (c.outstanding() == 0 && !c.pinned
+						&& now - c.lastUsed >= IDLE_TIMEOUT) {
+					it.remove();
+					c.close();
+				}
+			}
+			if (e.open.isEmpty() && e.opening == 0) {
+				entryIt.remove();
+			}
+		}
+	}
+
+	private class Evictor implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(IDLE_TIMEOUT / 2);
+				} catch (InterruptedException e) {
+					return;
+				}
+				evict();
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package rmi;
+
+/**
+ * Deadline for the remote calls made by one thread.
+ *
+ * <p>
+ * A deadline is set for a block of code with <code>try</code>:
+ *
+ * <pre>
+ * try (Deadline deadline = Deadline.after(500)) {
+ *     storage.read(file, 0, 1024);
+ * }
+ * </pre>
+ *
+ * <p>
+ * Every call the thread makes through a stub inside the block, including the
+ * calls of an <code>AsyncStub</code> or a <code>Batch</code>, fails with a
+ * <code>DeadlineExceededException</code> if it has not completed by the
+ * deadline. Opening a connection for the call counts against it too.
+ * Deadlines nest: a call inside several blocks gets the earliest deadline,
+ * and a stub timeout set with <code>Stub.withTimeouts</code> applies as well.
+ *
+ * <p>
+ * The time left is sent with each call, so that the skeleton can drop the
+ * call unrun if it cannot start it in time.
+ */
+public class Deadline implements AutoCloseable {
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	/** <code>System.nanoTime</code> at which the deadline passes. */
+	private final long expires;
+	/** The deadline this one was opened inside of, if any. */
+	private final Deadline outer;
+	private boolean closed = false;
+
+	private Deadline(long expires, Deadline outer) {
+		this.expires = expires;
+		this.outer = outer;
+	}
+
+	/**
+	 * Sets a deadline for the calls made by the current thread until the
+	 * returned object is closed.
+	 *
+	 * @param millis
+	 *            Milliseconds from now.
+	 * @return The deadline, which must be closed by the same thread.
+	 * @throws IllegalArgumentException
+	 *             If <code>millis</code> is negative.
+	 */
+	public static Deadline after(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Negative deadline");
+		}
+		Deadline outer = current.get();
+		long expires = System.nanoTime() + millis * 1000000;
+		if (outer != null && outer.expires - expires < 0) {
+			expires = outer.expires;
+		}
+		Deadline deadline = new Deadline(expires, outer);
+		current.set(deadline);
+		return deadline;
+	}
+
+	/** Returns the milliseconds left, or zero if the deadline has passed. */
+	public long remaining() {
+		return Math.max(0, (expires - System.nanoTime()) / 1000000);
+	}
+
+	/** Returns whether the deadline has passed. */
+	public boolean expired() {
+		return expires - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Ends the deadline, restoring the one it was opened inside of.
+	 *
+	 * @throws IllegalStateException
+	 *             If the deadline is not the innermost one of the current
+	 *             thread.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		if (current.get() != this) {
+			throw new IllegalStateException("Deadline closed out of order");
+		}
+		closed = true;
+		if (outer == null) {
+			current.remove();
+		} else {
+			current.set(outer);
+		}
+	}
+
+	/**
+	 * Returns the <code>System.nanoTime</code> at which a call made now by the
+	 * current thread must be complete, or <code>0</code> if it has no
+	 * deadline.
+	 *
+	 * @param timeout
+	 *            The timeout of the stub making the call, in milliseconds, or
+	 *            zero for none.
+	 */
+	static long forCall(long timeout) {
+		Deadline deadline = current.get();
+		if (timeout <= 0) {
+			return deadline == null ? 0 : nonZero(deadline.expires);
+		}
+		long expires = System.nanoTime() + timeout * 1000000;
+		if (deadline != null && deadline.expires - expires < 0) {
+			expires = deadline.expires;
+		}
+		return nonZero(expires);
+	}
+
+	/**
+	 * Returns the earlier of two deadlines, as returned by
+	 * <code>forCall</code>; either may be zero for none.
+	 */
+	static long earlier(long deadline, long other) {
+		if (deadline == 0) {
+			return other;
+		}
+		if (other == 0 || deadline - other < 0) {
+			return deadline;
+		}
+		return other;
+	}
+
+	private static long nonZero(long expires) {
+		return expires == 0 ? 1 : expires;
+	}
+}
@@ -0,0 +1,19 @@
+package rmi;
+
+/** Thrown when a call does not complete before its deadline.
+
+    <p>
+    Stubs throw this when the reply does not arrive in time. The call may or
+    may not have run on the server. Skeletons answer with it, instead of
+    running the method, when a call's deadline has already passed by the time
+    it would start.
+ */
+public class DeadlineExceededException extends RMIException
+{
+    /** Creates a <code>DeadlineExceededException</code> with the given
+        message string. */
+    public DeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
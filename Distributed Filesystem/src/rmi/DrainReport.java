@@ -0,0 +1,37 @@
+package rmi;
+
+/**
+ * What became of the calls in progress when a skeleton was stopped with
+ * <code>Skeleton.stop(long)</code>.
+ */
+public class DrainReport {
+	private final long drained;
+	private final int cutOff;
+
+	DrainReport(long drained, int cutOff) {
+		this.drained = drained;
+		this.cutOff = cutOff;
+	}
+
+	/**
+	 * Returns the number of calls that were answered while the skeleton was
+	 * draining.
+	 */
+	public long drained() {
+		return drained;
+	}
+
+	/**
+	 * Returns the number of calls that had not been answered when the drain
+	 * timed out. Calls still running were left to finish, but their replies
+	 * were not sent; calls still waiting to be admitted were refused.
+	 */
+	public int cutOff() {
+		return cutOff;
+	}
+
+	@Override
+	public String toString() {
+		return drained + " calls drained, " + cutOff + " cut off";
+	}
+}
@@ -0,0 +1,87 @@
+package rmi;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handler of stubs made by <code>Stub.failover</code>, which call any one of
+ * several equivalent remote objects.
+ *
+ * <p>
+ * Calls go to the replica that last answered. A call to an
+ * <code>Idempotent</code> method that fails in transport is tried on the next
+ * replica, going round all of them, with a backoff after each full round, as
+ * the <code>RetryPolicy</code> allows. Other calls are made once, on the
+ * current replica, since they may already have run before the failure.
+ */
+class FailoverHandler implements InvocationHandler, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final Class<?> c;
+	final ProxyHandler[] replicas;
+	final RetryPolicy policy;
+	/** Index of the replica calls go to first. */
+	private final AtomicInteger current = new AtomicInteger();
+
+	FailoverHandler(Class<?> c, ProxyHandler[] replicas, RetryPolicy policy) {
+		this.c = c;
+		this.replicas = replicas;
+		this.policy = policy;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeLocal(method, args);
+		}
+		ProxyHandler first = replicas[current.get() % replicas.length];
+		if (!first.idempotent(method)) {
+			return first.call(method, args);
+		}
+		try {
+			return new Retry(replicas, current, policy, method, args).result
+					.join();
+		} catch (CompletionException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Answers <code>equals</code>, <code>hashCode</code> and
+	 * <code>toString</code> without a remote call. Two failover stubs are
+	 * equal if they have the same replicas in the same order. As in
+	 * <code>ProxyHandler</code>, the three are told apart by their parameter
+	 * count and return type.
+	 */
+	private Object invokeLocal(Method method, Object[] args) {
+		if (method.getParameterCount() == 1) {
+			Object s = args[0];
+			if (s == null || !Proxy.isProxyClass(s.getClass())
+					|| !(Proxy.getInvocationHandler(s) instanceof FailoverHandler)) {
+				return false;
+			}
+			FailoverHandler other = (FailoverHandler) Proxy
+					.getInvocationHandler(s);
+			return c.equals(other.c) && addresses().equals(other.addresses());
+		} else if (method.getReturnType() == int.class) {
+			return c.hashCode() + addresses().hashCode();
+		} else {
+			return "Interface " + c.getName() + " @ " + addresses();
+		}
+	}
+
+	private List<String> addresses() {
+		String[] addresses = new String[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			addresses[i] = replicas[i].address + "/" + replicas[i].object;
+		}
+		return Arrays.asList(addresses);
+	}
+}
@@ -0,0 +1,31 @@
+package rmi;
+
+/**
+ * A call or reply as received from a connection: the payload of its head
+ * frame, and the contents of the bulk frames that followed it.
+ */
+class Frame {
+	final byte[] payload;
+	final byte[][] bulk;
+	/** <code>System.nanoTime</code> when the frame had been read. */
+	final long received = System.nanoTime();
+	/**
+	 * Set if the skeleton refused to run the call; it is answered with this
+	 * exception instead.
+	 */
+	RMIException refused = null;
+
+	Frame(byte[] payload, byte[][] bulk) {
+		this.payload = payload;
+		this.bulk = bulk;
+	}
+
+	/** Returns the size of the frames, length prefixes included. */
+	long size() {
+		long size = Frames.HEADER + payload.length;
+		for (byte[] contents : bulk) {
+			size += Frames.HEADER + contents.length;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,627 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of RMI messages.
+ *
+ * <p>
+ * Every message exchanged between a stub and a skeleton is sent as a frame: a
+ * four byte big-endian length followed by that many bytes of payload. The
+ * payload starts with a four byte call identifier chosen by the stub. A call
+ * frame then carries the number of the method in the interface's
+ * <code>MethodTable</code>, the number of the object called among those
+ * exported on the skeleton's listener (zero for the skeleton that owns the
+ * listener), the milliseconds the caller is prepared to wait
+ * for the reply (zero if it has no deadline), and the array of arguments; a
+ * reply frame carries a
+ * success flag and either the result or the exception thrown by the remote
+ * method, and repeats the identifier of the call it answers. Values are
+ * encoded with the <code>Codec</code> agreed on for the connection.
+ *
+ * <p>
+ * Byte arrays of at least <code>BULK_THRESHOLD</code> bytes and byte buffers
+ * that are arguments of a call, or the result of a reply, are not encoded.
+ * The head frame only lists which slots they fill, right after the call
+ * identifier, and their contents follow it as raw bulk frames: a length and
+ * the bytes, with no call identifier. Bulk contents are therefore neither
+ * copied through the codec on the way out nor on the way in. Because
+ * each frame announces its own length, a receiver can collect frames without
+ * blocking, which is what the selector transport relies on. Because replies
+ * name their call, many calls can be outstanding on one connection and the
+ * skeleton can answer them in any order.
+ *
+ * <p>
+ * Skeletons may also send push frames, carrying calls to callbacks that the
+ * stub's JVM passed as arguments. They have the identifier <code>PUSH</code>
+ * and are not answered; see <code>encodePush</code>.
+ *
+ * <p>
+ * A stub checks that a connection it has not used for a while is still
+ * served by sending a ping: a call frame with method number <code>PING</code>.
+ * The skeleton's transport answers it by sending the same frame back, without
+ * admission control, metrics or an executor, so the answer only shows that
+ * the connection is alive.
+ *
+ * <p>
+ * The first frame on a connection is the stub's hello, which lists the names
+ * of the codecs the stub can use. The skeleton answers with a welcome frame
+ * naming the codec it picked, or closes the connection if it knows none of
+ * them.
+ */
+class Frames {
+	/** Size of the length prefix of every frame. */
+	static final int HEADER = 4;
+	/** Size of the call identifier at the start of every payload. */
+	static final int ID = 4;
+	/** Size of the method number following the identifier of a call. */
+	static final int METHOD = 4;
+	/** Size of the object number following the method number of a call. */
+	static final int OBJECT = 4;
+	/** Size of the time budget following the object number of a call. */
+	static final int BUDGET = 4;
+	/** Identifier of push frames, which calls never use. */
+	static final int PUSH = 0;
+	/**
+	 * Method number of a batch call. Its arguments are an array of method
+	 * numbers and an array of argument arrays; its result is an array holding
+	 * each call's success flag followed by its result.
+	 */
+	static final int BATCH = -2;
+	/**
+	 * Method number of a ping, which the skeleton's transport sends back
+	 * unchanged without running anything. See <code>ping</code>.
+	 */
+	static final int PING = -3;
+	/** Size of the bulk frame count following the call identifier. */
+	static final int BULK = 4;
+	/** Byte arrays at least this long are sent as bulk frames. */
+	static final int BULK_THRESHOLD = 8 * 1024;
+	/** Marks a bulk descriptor whose value is a <code>ByteBuffer</code>. */
+	private static final int BUFFER = 0x80000000;
+	/** First word of a hello frame. */
+	static final int MAGIC = 0x524d4906;
+	/**
+	 * Longest frame, head or bulk, that is sent or accepted. A longer length
+	 * word read from a peer is taken to be corrupt, and the connection is
+	 * closed, instead of allocating whatever the peer announced.
+	 */
+	static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	/**
+	 * Encodes the given values into a message. The call identifier is left
+	 * zero; see <code>setId</code>.
+	 */
+	static Message encode(Codec codec, Object... values) throws IOException {
+		return encode(codec, false, 0, 0, values);
+	}
+
+	/**
+	 * Encodes a call message for the given object number, method number and
+	 * arguments. The call identifier is left zero.
+	 */
+	static Message encodeCall(Codec codec, int object, int method,
+			Object[] args) throws IOException {
+		return encode(codec, true, object, method, args);
+	}
+
+	/**
+	 * Encodes a message whose bulk values are taken from <code>slots</code>:
+	 * the values of a reply, or the arguments of a call.
+	 */
+	private static Message encode(Codec codec, boolean call, int object,
+			int method, Object[] slots) throws IOException {
+		Object[] values = slots;
+		int[] descriptors = new int[0];
+		ByteBuffer[] bulk = new ByteBuffer[0];
+
+		int count = 0;
+		if (slots != null) {
+			for (Object value : slots) {
+				if (isBulk(value)) {
+					count++;
+				}
+			}
+		}
+		if (count > 0) {
+			// Leave the bulk values out of the encoded values; the receiver
+			// puts them back
+			values = slots.clone();
+			descriptors = new int[count];
+			bulk = new ByteBuffer[count];
+			for (int i = 0, j = 0; i < slots.length; i++) {
+				Object value = slots[i];
+				if (!isBulk(value)) {
+					continue;
+				}
+				if (value instanceof byte[]) {
+					bulk[j] = ByteBuffer.wrap((byte[]) value);
+					descriptors[j] = i;
+				} else {
+					bulk[j] = ((ByteBuffer) value).duplicate();
+					descriptors[j] = i | BUFFER;
+				}
+				values[i] = null;
+				j++;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[HEADER + ID]);
+		out.writeInt(count);
+		for (int descriptor : descriptors) {
+			out.writeInt(descriptor);
+		}
+		if (call) {
+			out.writeInt(method);
+			out.writeInt(object);
+			out.writeInt(0);
+			codec.write(out, (Object) values);
+		} else {
+			codec.write(out, values);
+		}
+		out.flush();
+
+		byte[] head = bytes.toByteArray();
+		checkLength(head.length - HEADER);
+		for (ByteBuffer contents : bulk) {
+			checkLength(contents.remaining());
+		}
+		putInt(head, 0, head.length - HEADER);
+		return new Message(head, bulk, codec);
+	}
+
+	private static boolean isBulk(Object value) {
+		return value instanceof ByteBuffer
+				|| (value instanceof byte[] && ((byte[]) value).length >= BULK_THRESHOLD);
+	}
+
+	/**
+	 * Decodes <code>count</code> values from a received reply.
+	 */
+	static Object[] decode(Codec codec, Frame frame, int count)
+			throws IOException, ClassNotFoundException {
+		byte[] payload = frame.payload;
+		int offset = bodyOffset(payload);
+		Object[] values = codec.read(new ByteArrayInputStream(payload, offset,
+				payload.length - offset), count);
+		return putBulk(frame, values);
+	}
+
+	/** Returns the method number of a call frame payload. */
+	static int method(byte[] payload) throws IOException {
+		int offset = bodyOffset(payload);
+		if (payload.length < offset + METHOD + OBJECT + BUDGET) {
+			throw new StreamCorruptedException("Truncated call frame");
+		}
+		return getInt(payload, offset);
+	}
+
+	/** Returns the number of the object called by a call frame payload. */
+	static int object(byte[] payload) throws IOException {
+		method(payload);
+		return getInt(payload, bodyOffset(payload) + METHOD);
+	}
+
+	/**
+	 * Returns the milliseconds the caller of a call frame payload is prepared
+	 * to wait, or zero if it has no deadline.
+	 */
+	static int budget(byte[] payload) throws IOException {
+		method(payload);
+		return getInt(payload, bodyOffset(payload) + METHOD + OBJECT);
+	}
+
+	/**
+	 * Encodes a push frame: a call from a skeleton to a callback exported by
+	 * the stub's JVM. It is laid out as a call frame with identifier
+	 * <code>PUSH</code>, whose method number is the number of the callback
+	 * and whose time budget is the number of the method. The object number
+	 * is not used.
+	 */
+	static Message encodePush(Codec codec, int callback, int method,
+			Object[] args) throws IOException {
+		Message push = encode(codec, true, 0, callback, args);
+		setBudget(push, method);
+		return push;
+	}
+
+	/** Encodes a ping. The call identifier is left zero. */
+	static Message ping(Codec codec) throws IOException {
+		return encodeCall(codec, 0, PING, new Object[0]);
+	}
+
+	/**
+	 * Returns whether a call frame payload is a ping.
+	 *
+	 * @throws StreamCorruptedException
+	 *             If the payload is too short to be a call frame.
+	 */
+	static boolean isPing(byte[] payload) throws IOException {
+		return method(payload) == PING;
+	}
+
+	/** Returns the answer to a ping: the same frame, sent back. */
+	static Message pong(Frame ping) {
+		byte[] head = new byte[HEADER + ping.payload.length];
+		putInt(head, 0, ping.payload.length);
+		System.arraycopy(ping.payload, 0, head, HEADER, ping.payload.length);
+		return new Message(head, new ByteBuffer[0], null);
+	}
+
+	/** Returns the callback number of a push frame payload. */
+	static int pushCallback(byte[] payload) throws IOException {
+		return method(payload);
+	}
+
+	/** Returns the method number of a push frame payload. */
+	static int pushMethod(byte[] payload) throws IOException {
+		return budget(payload);
+	}
+
+	/**
+	 * Returns the frame a receiver would read for a message, without sending
+	 * it. Bulk contents are copied, so that the receiver does not share
+	 * memory with the sender.
+	 */
+	static Frame toFrame(Message message) {
+		byte[] payload = new byte[message.head.length - HEADER];
+		System.arraycopy(message.head, HEADER, payload, 0, payload.length);
+		byte[][] bulk = new byte[message.bulk.length][];
+		for (int i = 0; i < bulk.length; i++) {
+			bulk[i] = new byte[message.bulk[i].remaining()];
+			message.bulk[i].duplicate().get(bulk[i]);
+		}
+		return new Frame(payload, bulk);
+	}
+
+	/** Sets the time budget of an encoded call. */
+	static void setBudget(Message call, int millis) {
+		int count = getInt(call.head, HEADER + ID);
+		putInt(call.head, HEADER + ID + BULK + 4 * count + METHOD + OBJECT,
+				millis);
+	}
+
+	/** Decodes the arguments of a received call. */
+	static Object[] decodeArgs(Codec codec, Frame frame) throws IOException,
+			ClassNotFoundException {
+		byte[] payload = frame.payload;
+		int offset = bodyOffset(payload) + METHOD + OBJECT + BUDGET;
+		Object[] values = codec.read(new ByteArrayInputStream(payload, offset,
+				payload.length - offset), 1);
+		return putBulk(frame, (Object[]) values[0]);
+	}
+
+	/**
+	 * Returns the number of bulk frames following a head frame.
+	 *
+	 * @throws StreamCorruptedException
+	 *             If the payload is too short to be a head frame.
+	 */
+	static int bulkCount(byte[] payload) throws IOException {
+		if (payload.length < ID + BULK) {
+			throw new StreamCorruptedException("Truncated frame");
+		}
+		int count = getInt(payload, ID);
+		if (count < 0 || count > (payload.length - ID - BULK) / 4) {
+			throw new StreamCorruptedException("Invalid bulk count");
+		}
+		return count;
+	}
+
+	private static int bodyOffset(byte[] payload) throws IOException {
+		return ID + BULK + 4 * bulkCount(payload);
+	}
+
+	/** Puts the bulk values of a frame back among the decoded values. */
+	private static Object[] putBulk(Frame frame, Object[] values)
+			throws IOException {
+		for (int i = 0; i < frame.bulk.length; i++) {
+			int descriptor = getInt(frame.payload, ID + BULK + 4 * i);
+			int slot = descriptor & ~BUFFER;
+			if (values == null || slot >= values.length) {
+				throw new StreamCorruptedException("Invalid bulk slot");
+			}
+			if ((descriptor & BUFFER) != 0) {
+				values[slot] = ByteBuffer.wrap(frame.bulk[i]);
+			} else {
+				values[slot] = frame.bulk[i];
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Encodes a hello frame offering the given codecs, and compression if
+	 * <code>compress</code> is <code>true</code>.
+	 */
+	static byte[] hello(String[] codecs, boolean compress) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[HEADER + ID]);
+		out.writeInt(MAGIC);
+		out.writeInt(codecs.length);
+		for (String codec : codecs) {
+			out.writeUTF(codec);
+		}
+		out.writeBoolean(compress);
+		out.close();
+
+		byte[] frame = bytes.toByteArray();
+		putInt(frame, 0, frame.length - HEADER);
+		return frame;
+	}
+
+	/**
+	 * Returns the codec names offered by a hello frame payload.
+	 *
+	 * @throws StreamCorruptedException
+	 *             If the payload is not a hello frame.
+	 */
+	static String[] helloCodecs(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload, ID, payload.length - ID));
+		if (payload.length < ID + 8 || in.readInt() != MAGIC) {
+			throw new StreamCorruptedException("Not an RMI hello");
+		}
+		int count = in.readInt();
+		if (count < 0 || count > payload.length) {
+			throw new StreamCorruptedException("Invalid codec count");
+		}
+		String[] codecs = new String[count];
+		for (int i = 0; i < count; i++) {
+			codecs[i] = in.readUTF();
+		}
+		return codecs;
+	}
+
+	/** Returns whether a hello frame payload offers compression. */
+	static boolean helloCompression(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload, ID, payload.length - ID));
+		helloCodecs(payload);
+		in.skipBytes(8);
+		for (int i = getInt(payload, ID + 4); i > 0; i--) {
+			in.readUTF();
+		}
+		return in.readBoolean();
+	}
+
+	/**
+	 * Encodes the welcome frame answering a hello, naming the codec picked
+	 * and whether frames will be compressed.
+	 */
+	static byte[] welcome(String codec, boolean compress) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[HEADER + ID]);
+		out.writeUTF(codec);
+		out.writeBoolean(compress);
+		out.close();
+
+		byte[] frame = bytes.toByteArray();
+		putInt(frame, 0, frame.length - HEADER);
+		return frame;
+	}
+
+	/** Returns the codec name carried by a welcome frame payload. */
+	static String welcomeCodec(byte[] payload) throws IOException {
+		return new DataInputStream(new ByteArrayInputStream(payload, ID,
+				payload.length - ID)).readUTF();
+	}
+
+	/** Returns whether a welcome frame payload accepts compression. */
+	static boolean welcomeCompression(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload, ID, payload.length - ID));
+		in.readUTF();
+		return in.readBoolean();
+	}
+
+	/**
+	 * Picks the codec to use from those offered by a hello frame payload.
+	 *
+	 * @return The first offered codec that is registered here, or
+	 *         <code>null</code> if there is none.
+	 */
+	static Codec negotiate(byte[] hello) throws IOException {
+		for (String name : helloCodecs(hello)) {
+			Codec codec = Codecs.get(name);
+			if (codec != null) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/** Sets the call identifier of an encoded message. */
+	static void setId(Message message, int id) {
+		setId(message.head, id);
+	}
+
+	/** Sets the call identifier of an encoded frame. */
+	static void setId(byte[] frame, int id) {
+		putInt(frame, HEADER, id);
+	}
+
+	/** Returns the call identifier of an encoded message. */
+	static int id(Message message) {
+		return getInt(message.head, HEADER);
+	}
+
+	/** Returns the call identifier of a frame payload. */
+	static int id(byte[] payload) {
+		return getInt(payload, 0);
+	}
+
+	/**
+	 * Checks the length of a frame about to be sent.
+	 *
+	 * @throws IOException
+	 *             If the frame is longer than <code>MAX_FRAME</code>.
+	 */
+	private static void checkLength(int length) throws IOException {
+		if (length > MAX_FRAME) {
+			throw new IOException("Frame of " + length
+					+ " bytes is longer than " + MAX_FRAME);
+		}
+	}
+
+	/**
+	 * Reads the payload of the next frame from a stream.
+	 *
+	 * @throws java.io.EOFException
+	 *             If the stream ends before a complete frame is read.
+	 */
+	static byte[] read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < ID || length > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Reads the next call or reply from a stream: a head frame and the bulk
+	 * frames following it. The contents of each bulk frame are read straight
+	 * into the array that is handed to the receiver.
+	 *
+	 * @param compressor
+	 *            The compressor of the connection, or <code>null</code> if
+	 *            compression was not agreed on.
+	 */
+	static Frame readFrame(DataInputStream in, Compressor compressor)
+			throws IOException {
+		byte[] payload = readContents(in, compressor);
+		if (payload.length < ID) {
+			throw new StreamCorruptedException("Invalid frame length");
+		}
+		byte[][] bulk = new byte[bulkCount(payload)][];
+		for (int i = 0; i < bulk.length; i++) {
+			bulk[i] = readContents(in, compressor);
+		}
+		return new Frame(payload, bulk);
+	}
+
+	private static byte[] readContents(DataInputStream in,
+			Compressor compressor) throws IOException {
+		int length = in.readInt();
+		boolean compressed = false;
+		if (length < 0 && compressor != null) {
+			length &= ~Compressor.COMPRESSED;
+			compressed = true;
+		}
+		if (length < 0 || length > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length");
+		}
+		byte[] contents = new byte[length];
+		in.readFully(contents);
+		return compressed ? compressor.decompress(contents) : contents;
+	}
+
+	/**
+	 * Returns the buffers to write to send a message, in order: the head
+	 * frame, then the length and contents of each bulk frame. Frames are
+	 * compressed if a compressor is given and it finds them worth compressing.
+	 * Bulk values that are not compressed are written from their own memory,
+	 * without being copied.
+	 */
+	static ByteBuffer[] buffers(Message message, Compressor compressor) {
+		ByteBuffer[] buffers = new ByteBuffer[1 + 2 * message.bulk.length];
+		byte[] head = message.head;
+		if (compressor != null) {
+			byte[] packed = compressor.compress(head, HEADER, head.length
+					- HEADER);
+			if (packed != null) {
+				head = packed;
+			}
+		}
+		buffers[0] = ByteBuffer.wrap(head);
+
+		int n = 1;
+		for (ByteBuffer contents : message.bulk) {
+			byte[] packed = null;
+			if (compressor != null
+					&& contents.remaining() >= Compressor.THRESHOLD) {
+				if (contents.hasArray()) {
+					packed = compressor.compress(contents.array(),
+							contents.arrayOffset() + contents.position(),
+							contents.remaining());
+				} else {
+					byte[] copy = new byte[contents.remaining()];
+					contents.duplicate().get(copy);
+					packed = compressor.compress(copy, 0, copy.length);
+				}
+			}
+			if (packed != null) {
+				buffers[n++] = ByteBuffer.wrap(packed, 0, HEADER);
+				buffers[n++] = ByteBuffer.wrap(packed, HEADER, packed.length
+						- HEADER);
+			} else {
+				ByteBuffer length = ByteBuffer.allocate(HEADER);
+				length.putInt(0, contents.remaining());
+				buffers[n++] = length;
+				buffers[n++] = contents.duplicate();
+			}
+		}
+		return buffers;
+	}
+
+	/**
+	 * Writes a message to a stream and flushes it. See <code>buffers</code>.
+	 */
+	static void write(OutputStream out, Message message, Compressor compressor)
+			throws IOException {
+		write(out, buffers(message, compressor));
+	}
+
+	/** Writes buffers returned by <code>buffers</code> and flushes. */
+	static void write(OutputStream out, ByteBuffer[] buffers)
+			throws IOException {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasArray()) {
+				out.write(buffer.array(),
+						buffer.arrayOffset() + buffer.position(),
+						buffer.remaining());
+			} else {
+				ByteBuffer source = buffer.duplicate();
+				byte[] chunk = new byte[Math.min(source.remaining(), 64 * 1024)];
+				while (source.hasRemaining()) {
+					int n = Math.min(chunk.length, source.remaining());
+					source.get(chunk, 0, n);
+					out.write(chunk, 0, n);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	/** Writes an encoded frame to a stream and flushes it. */
+	static void write(OutputStream out, byte[] frame) throws IOException {
+		out.write(frame);
+		out.flush();
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24)
+				| ((bytes[offset + 1] & 0xff) << 16)
+				| ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
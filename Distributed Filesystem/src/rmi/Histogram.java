@@ -0,0 +1,144 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations, in nanoseconds.
+ *
+ * <p>
+ * Durations are counted in buckets whose bounds are powers of two: bucket
+ * <code>i</code> holds durations of at least <code>2<sup>i-1</sup></code> and
+ * less than <code>2<sup>i</sup></code> nanoseconds, and bucket 0 holds zero.
+ * Recording a duration is a few atomic increments, so histograms can be kept
+ * for every call. Percentiles are only as precise as the buckets: they are
+ * reported as the upper bound of the bucket they fall in, which is at most
+ * twice the true value.
+ *
+ * <p>
+ * The histograms in a <code>MetricsSnapshot</code> are copies, and do not
+ * change once the snapshot is taken.
+ */
+public class Histogram {
+	/** Number of buckets; enough for any non-negative <code>long</code>. */
+	public static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {
+	}
+
+	/** Records one duration. Negative durations are recorded as zero. */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long seen = max.get();
+		while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+			seen = max.get();
+		}
+	}
+
+	/** Returns a copy of the histogram as it is now. */
+	Histogram copy() {
+		Histogram copy = new Histogram();
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = buckets.get(i);
+			copy.buckets.set(i, n);
+			total += n;
+		}
+		// Count the buckets rather than reading count, so that the copy is
+		// consistent even while durations are being recorded
+		copy.count.set(total);
+		copy.sum.set(sum.get());
+		copy.max.set(max.get());
+		return copy;
+	}
+
+	/** Returns the bucket a duration is counted in. */
+	static int bucket(long nanos) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+	}
+
+	/** Returns the largest duration counted in a bucket. */
+	public static long bucketBound(int bucket) {
+		if (bucket <= 0) {
+			return 0;
+		}
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	/** Returns the number of durations counted in a bucket. */
+	public long bucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	/** Returns the number of durations recorded. */
+	public long count() {
+		return count.get();
+	}
+
+	/** Returns the sum of the durations recorded. */
+	public long sum() {
+		return sum.get();
+	}
+
+	/** Returns the longest duration recorded, or zero if there are none. */
+	public long max() {
+		return max.get();
+	}
+
+	/** Returns the mean duration, or zero if none were recorded. */
+	public double mean() {
+		long n = count();
+		return n == 0 ? 0 : (double) sum() / n;
+	}
+
+	/**
+	 * Returns an upper bound on the given percentile of the durations.
+	 *
+	 * @param percentile
+	 *            The percentile, from 0 to 100.
+	 * @return The upper bound of the bucket holding the percentile, but no more
+	 *         than the longest duration, or zero if none were recorded.
+	 * @throws IllegalArgumentException
+	 *             If <code>percentile</code> is out of range.
+	 */
+	public long percentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile out of range");
+		}
+		long n = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(bucketBound(i), max());
+			}
+		}
+		return max();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count() + " mean=" + (long) mean() + "ns p50="
+				+ percentile(50) + "ns p99=" + percentile(99) + "ns max="
+				+ max() + "ns";
+	}
+}
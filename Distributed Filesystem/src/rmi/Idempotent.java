@@ -0,0 +1,31 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a remote interface as safe to merge with identical calls.
+ *
+ * <p>
+ * A method may be marked if calling it has no effect on the server, so that
+ * calling it once on behalf of several callers is the same as calling it for
+ * each. When a stub calls such a method while an identical call - the same
+ * method, of the same remote object, with equal arguments - is already in
+ * flight from this JVM, it sends nothing and waits for the reply to the call
+ * in flight instead; every caller then gets that reply. Arrays returned by
+ * the method are copied for each caller, but their elements are shared.
+ *
+ * <p>
+ * A merged call may return a result computed by the server somewhat before
+ * the call was made, up to the time the call it joined was sent. Methods
+ * whose callers cannot accept that should not be marked. Calls passing
+ * callbacks as arguments are never merged.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
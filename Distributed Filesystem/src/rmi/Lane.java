@@ -0,0 +1,26 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Puts a method of a remote interface in a named lane of the skeletons that
+ * serve it.
+ *
+ * <p>
+ * Lanes keep calls that take long, such as bulk data transfers, from holding
+ * up quick ones. A skeleton on which the lane has been set up with
+ * <code>Skeleton.setLane</code> runs calls to the method on the lane's
+ * executor, within the lane's own limit on calls running at once. On
+ * skeletons without the lane set up, the annotation has no effect.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Lane {
+	/** The name of the lane. */
+	String value();
+}
@@ -0,0 +1,135 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Unix domain sockets between stubs and skeletons on the same host.
+ *
+ * <p>
+ * A skeleton given a local socket path listens on it as well as on its TCP
+ * address, and stubs created from the skeleton carry the path. A stub only
+ * uses the path if its TCP address is an address of this host and the socket
+ * file exists; if it cannot connect there, it connects over TCP as usual. The
+ * frames sent are the same on both kinds of connection.
+ */
+class LocalSockets {
+	private LocalSockets() {
+	}
+
+	/**
+	 * Opens a listening channel on a socket file. A file left at the path by a
+	 * skeleton that did not stop cleanly is replaced.
+	 */
+	static ServerSocketChannel listen(Path path) throws IOException {
+		Files.deleteIfExists(path);
+		ServerSocketChannel channel = ServerSocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/** Removes the socket file of a stopped skeleton. */
+	static void unlink(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Connects to a skeleton through its socket file, if it is on this host.
+	 *
+	 * @param address
+	 *            The TCP address of the skeleton.
+	 * @param path
+	 *            The socket file of the skeleton, or <code>null</code>.
+	 * @return A blocking channel, or <code>null</code> if the skeleton cannot
+	 *         be reached this way.
+	 */
+	static SocketChannel connect(InetSocketAddress address, String path) {
+		if (path == null || address.getAddress() == null
+				|| !Loopback.isLocal(address.getAddress())) {
+			return null;
+		}
+		try {
+			Path file = Paths.get(path);
+			if (!Files.exists(file)) {
+				return null;
+			}
+			return SocketChannel.open(UnixDomainSocketAddress.of(file));
+		} catch (IOException | RuntimeException e) {
+			// Not supported here, or nobody listening; use TCP
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a stream reading from a blocking channel.
+	 *
+	 * <p>
+	 * The streams of <code>java.nio.channels.Channels</code> are not used:
+	 * they lock the channel while blocked in a read, which would keep writers
+	 * out for as long as the connection waits for a frame.
+	 */
+	static InputStream input(final SocketChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/** Returns a stream writing to a blocking channel. */
+	static OutputStream output(final SocketChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,173 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * In-memory transport to skeletons running in this JVM.
+ *
+ * <p>
+ * Running skeletons register here by port. A stub whose address is that of a
+ * registered skeleton for its interface - on a local address of this host,
+ * and on the port the skeleton listens on - sends its calls straight to the
+ * skeleton instead of through a socket. Calls and replies are still encoded
+ * with the codec a connection would use, and bulk contents are copied, so the
+ * server and the caller never share argument or result objects, exactly as
+ * over the network. Calls go through the skeleton's admission control and
+ * executor, and are timed in its metrics, as calls from a connection would
+ * be.
+ */
+class Loopback {
+	private static final ConcurrentHashMap<Integer, Registered> skeletons = new ConcurrentHashMap<Integer, Registered>();
+	/** Whether each address seen so far belongs to this host. */
+	private static final ConcurrentHashMap<InetAddress, Boolean> local = new ConcurrentHashMap<InetAddress, Boolean>();
+
+	/** The codec a connection in this JVM would agree on. */
+	static final Codec codec = Codecs.get(Codecs.names()[0]);
+
+	private Loopback() {
+	}
+
+	/** A running skeleton and the address its listening socket is bound to. */
+	private static class Registered {
+		final Skeleton<?> skeleton;
+		final InetAddress bound;
+
+		Registered(Skeleton<?> skeleton, InetAddress bound) {
+			this.skeleton = skeleton;
+			this.bound = bound;
+		}
+	}
+
+	/**
+	 * Registers a skeleton that has started listening.
+	 *
+	 * @param bound
+	 *            The local address of its listening socket.
+	 */
+	static void register(Skeleton<?> skeleton, InetSocketAddress bound) {
+		skeletons.put(bound.getPort(), new Registered(skeleton,
+				bound.getAddress()));
+	}
+
+	/** Removes a skeleton that is stopping. */
+	static void unregister(Skeleton<?> skeleton) {
+		Iterator<Registered> it = skeletons.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().skeleton == skeleton) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the running skeleton for the given interface, exported as the
+	 * given object number at the given address, or <code>null</code> if there
+	 * is none in this JVM.
+	 */
+	static Skeleton<?> find(InetSocketAddress address, int object, Class<?> c) {
+		if (skeletons.isEmpty()) {
+			return null;
+		}
+		Registered r = skeletons.get(address.getPort());
+		if (r == null) {
+			return null;
+		}
+		Skeleton<?> skeleton = r.skeleton.exported(object);
+		if (skeleton == null || skeleton.inter != c) {
+			return null;
+		}
+		InetAddress target = address.getAddress();
+		if (target == null) {
+			// Unresolved
+			return null;
+		}
+		if (r.bound.isAnyLocalAddress()) {
+			return isLocal(target) ? skeleton : null;
+		}
+		if (r.bound.equals(target)
+				|| (r.bound.isLoopbackAddress() && target.isLoopbackAddress())) {
+			return skeleton;
+		}
+		return null;
+	}
+
+	/** Returns whether an address belongs to this host. */
+	static boolean isLocal(InetAddress address) {
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+			return true;
+		}
+		Boolean known = local.get(address);
+		if (known == null) {
+			try {
+				known = NetworkInterface.getByInetAddress(address) != null;
+			} catch (SocketException e) {
+				known = false;
+			}
+			local.put(address, known);
+		}
+		return known;
+	}
+
+	/**
+	 * Hands an encoded call to a skeleton. The returned future completes with
+	 * the reply as it would have been read from a connection.
+	 */
+	static CompletableFuture<Frame> send(final Skeleton<?> skeleton,
+			Message call) throws IOException {
+		Admission admission = skeleton.admission;
+		if (admission == null) {
+			throw new EOFException("Skeleton stopped");
+		}
+		final Frame request = Frames.toFrame(call);
+		final CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+		final Channel channel = new LoopbackChannel(call.codec);
+		try {
+			admission.execute(request, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reply.complete(Frames.toFrame(skeleton.serve(channel,
+								request)));
+					} catch (Throwable t) {
+						reply.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new EOFException("Skeleton stopped");
+		}
+		return reply;
+	}
+
+	/** Delivers pushes to callbacks straight to their listeners. */
+	private static class LoopbackChannel implements Channel {
+		private final Codec codec;
+
+		LoopbackChannel(Codec codec) {
+			this.codec = codec;
+		}
+
+		@Override
+		public Codec codec() {
+			return codec;
+		}
+
+		@Override
+		public void push(Message push) {
+			Callbacks.deliver(codec, Frames.toFrame(push));
+		}
+
+		@Override
+		public void pin() {
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoded call or reply, ready to be written to a connection.
+ *
+ * <p>
+ * The head is a complete frame, length prefix included, carrying the encoded
+ * values. Large byte arrays and byte buffers among the values are not copied
+ * into the head: they are written straight from their own memory as raw bulk
+ * frames following it. See <code>Frames</code>.
+ */
+class Message {
+	final byte[] head;
+	final ByteBuffer[] bulk;
+	/** The codec the values were encoded with. */
+	final Codec codec;
+
+	Message(byte[] head, ByteBuffer[] bulk, Codec codec) {
+		this.head = head;
+		this.bulk = bulk;
+		this.codec = codec;
+	}
+
+	/** Returns the size of the frames, length prefixes included. */
+	long size() {
+		long size = head.length;
+		for (ByteBuffer contents : bulk) {
+			size += Frames.HEADER + contents.remaining();
+		}
+		return size;
+	}
+}
@@ -0,0 +1,186 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbering of the methods of a remote interface.
+ *
+ * <p>
+ * Stubs send the number of the method being called instead of its name and
+ * argument types, and skeletons use the number to find the method without any
+ * reflective lookup. The methods declared by the interface are numbered in
+ * order of their names and parameter types, so a stub and a skeleton built
+ * from the same interface always agree on the numbers.
+ *
+ * <p>
+ * Tables are built once per interface and shared.
+ */
+class MethodTable {
+	private static final ConcurrentHashMap<Class<?>, MethodTable> tables = new ConcurrentHashMap<Class<?>, MethodTable>();
+	private static final MethodType SPREAD_TYPE = MethodType.methodType(
+			Object.class, Object.class, Object[].class);
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private final Method[] methods;
+	private final HashMap<Method, Integer> ids = new HashMap<Method, Integer>();
+	/**
+	 * Numbers of the <code>Method</code> objects already looked up, by
+	 * identity. Proxy classes pass the same objects on every call, so after
+	 * the first call a method is found without comparing signatures. The map
+	 * is replaced, never changed, when a method is added.
+	 */
+	private volatile IdentityHashMap<Method, Integer> seen = new IdentityHashMap<Method, Integer>();
+	/** Whether each method is marked <code>Idempotent</code>. */
+	private final boolean[] idempotent;
+	/** Lane each method is marked with, or <code>null</code>. */
+	private final String[] lanes;
+	/** Handles taking the target and an argument array, built on demand. */
+	private final MethodHandle[] handles;
+
+	private MethodTable(Class<?> c) {
+		this.methods = c.getDeclaredMethods();
+		Arrays.sort(this.methods, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				return signature(a).compareTo(signature(b));
+			}
+		});
+		for (int i = 0; i < methods.length; i++) {
+			ids.put(methods[i], i);
+		}
+		this.handles = new MethodHandle[methods.length];
+		this.idempotent = new boolean[methods.length];
+		this.lanes = new String[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			idempotent[i] = methods[i].isAnnotationPresent(Idempotent.class);
+			Lane lane = methods[i].getAnnotation(Lane.class);
+			lanes[i] = lane == null ? null : lane.value();
+		}
+	}
+
+	/** Returns the table for the given remote interface. */
+	static MethodTable of(Class<?> c) {
+		MethodTable table = tables.get(c);
+		if (table == null) {
+			table = new MethodTable(c);
+			MethodTable raced = tables.putIfAbsent(c, table);
+			if (raced != null) {
+				table = raced;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the number of a method of the interface, or <code>-1</code> if
+	 * the interface does not declare it.
+	 */
+	int id(Method m) {
+		Integer id = seen.get(m);
+		if (id != null) {
+			return id;
+		}
+		id = ids.get(m);
+		if (id == null) {
+			return -1;
+		}
+		synchronized (this) {
+			IdentityHashMap<Method, Integer> copy = new IdentityHashMap<Method, Integer>(
+					seen);
+			copy.put(m, id);
+			seen = copy;
+		}
+		return id;
+	}
+
+	/**
+	 * Returns a readable name for a method of the interface: its name and the
+	 * simple names of its parameter types, such as
+	 * <code>read(Path, long, int)</code>.
+	 */
+	String name(int id) {
+		Method m = methods[id];
+		StringBuilder s = new StringBuilder(m.getName()).append('(');
+		Class<?>[] types = m.getParameterTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) {
+				s.append(", ");
+			}
+			s.append(types[i].getSimpleName());
+		}
+		return s.append(')').toString();
+	}
+
+	/** Returns whether a method is marked <code>Idempotent</code>. */
+	boolean idempotent(int id) {
+		return id >= 0 && id < idempotent.length && idempotent[id];
+	}
+
+	/**
+	 * Returns the lane a method is marked with, or <code>null</code> if it is
+	 * not marked.
+	 */
+	String lane(int id) {
+		return lanes[id];
+	}
+
+	/** Returns the number of methods in the table. */
+	int size() {
+		return methods.length;
+	}
+
+	/**
+	 * Calls a method of the interface on an object.
+	 *
+	 * @param id
+	 *            The number of the method.
+	 * @param target
+	 *            The object implementing the interface.
+	 * @param args
+	 *            The arguments, or <code>null</code> if there are none.
+	 * @return The result of the method, boxed, or <code>null</code> for a
+	 *         <code>void</code> method.
+	 * @throws Throwable
+	 *             Anything thrown by the method itself.
+	 */
+	Object invoke(int id, Object target, Object[] args) throws Throwable {
+		Object[] spread = args == null ? NO_ARGS : args;
+		return (Object) handle(id).invokeExact(target, spread);
+	}
+
+	private MethodHandle handle(int id) throws IllegalAccessException {
+		MethodHandle handle = handles[id];
+		if (handle == null) {
+			Method m = methods[id];
+			MethodHandle direct;
+			try {
+				direct = MethodHandles.publicLookup().unreflect(m);
+			} catch (IllegalAccessException e) {
+				// The interface is not public; reach it as reflection would
+				// once access checks are suppressed
+				m.setAccessible(true);
+				direct = MethodHandles.lookup().unreflect(m);
+			}
+			handle = direct.asSpreader(Object[].class, m.getParameterCount())
+					.asType(SPREAD_TYPE);
+			handles[id] = handle;
+		}
+		return handle;
+	}
+
+	private static String signature(Method m) {
+		StringBuilder s = new StringBuilder(m.getName()).append('(');
+		for (Class<?> type : m.getParameterTypes()) {
+			s.append(type.getName()).append(';');
+		}
+		return s.append(')').toString();
+	}
+}
@@ -0,0 +1,140 @@
+package rmi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live counters and histograms for the calls of one remote interface.
+ *
+ * <p>
+ * Each method of the interface has a slot, numbered as in its
+ * <code>MethodTable</code>, and batches have one more slot after them. A
+ * skeleton keeps one <code>Metrics</code> for the calls it serves; all stubs
+ * for an interface in a JVM share another, returned by <code>client</code>.
+ * Everything is updated with atomic operations, so no locks are taken while
+ * calls are recorded. <code>snapshot</code> copies the current values out for
+ * reporting.
+ */
+class Metrics {
+	private static final ConcurrentHashMap<Class<?>, Metrics> clients = new ConcurrentHashMap<Class<?>, Metrics>();
+
+	private final String[] names;
+	final Histogram[] queueWait;
+	final Histogram[] decode;
+	final Histogram[] invoke;
+	final Histogram[] encode;
+	final Histogram[] total;
+	private final AtomicLongArray calls;
+	private final AtomicLongArray errors;
+	private final AtomicLongArray bytesIn;
+	private final AtomicLongArray bytesOut;
+	/** Calls that could not be attributed to a method. */
+	private final AtomicLong unknown = new AtomicLong();
+	/** Open connections, for a skeleton. */
+	final AtomicInteger connections = new AtomicInteger();
+
+	Metrics(MethodTable methods) {
+		int n = methods.size() + 1;
+		this.names = new String[n];
+		for (int i = 0; i < n - 1; i++) {
+			names[i] = methods.name(i);
+		}
+		names[n - 1] = MetricsSnapshot.BATCH;
+		this.queueWait = histograms(n);
+		this.decode = histograms(n);
+		this.invoke = histograms(n);
+		this.encode = histograms(n);
+		this.total = histograms(n);
+		this.calls = new AtomicLongArray(n);
+		this.errors = new AtomicLongArray(n);
+		this.bytesIn = new AtomicLongArray(n);
+		this.bytesOut = new AtomicLongArray(n);
+	}
+
+	/** Returns the metrics shared by all stubs for an interface. */
+	static Metrics client(Class<?> c) {
+		Metrics metrics = clients.get(c);
+		if (metrics == null) {
+			metrics = new Metrics(MethodTable.of(c));
+			Metrics raced = clients.putIfAbsent(c, metrics);
+			if (raced != null) {
+				metrics = raced;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Returns the slot for a method number sent on the wire, or
+	 * <code>-1</code> if it names no method.
+	 */
+	int slot(int method) {
+		if (method == Frames.BATCH) {
+			return names.length - 1;
+		}
+		return method >= 0 && method < names.length - 1 ? method : -1;
+	}
+
+	/** Records the invocation of a method, or of a whole batch. */
+	void invoked(int slot, long nanos, boolean success) {
+		if (slot < 0) {
+			unknown.incrementAndGet();
+			return;
+		}
+		calls.incrementAndGet(slot);
+		invoke[slot].record(nanos);
+		if (!success) {
+			errors.incrementAndGet(slot);
+		}
+	}
+
+	/**
+	 * Records the other phases of a call whose invocation has been recorded.
+	 * Bytes are counted as encoded, before any compression.
+	 */
+	void completed(int slot, long queueWait, long decode, long encode,
+			long total, long bytesIn, long bytesOut) {
+		if (slot < 0) {
+			return;
+		}
+		this.queueWait[slot].record(queueWait);
+		this.decode[slot].record(decode);
+		this.encode[slot].record(encode);
+		this.total[slot].record(total);
+		this.bytesIn.addAndGet(slot, bytesIn);
+		this.bytesOut.addAndGet(slot, bytesOut);
+	}
+
+	/** Records a call that failed before its method could be invoked. */
+	void failed(int slot) {
+		if (slot < 0) {
+			unknown.incrementAndGet();
+		} else {
+			calls.incrementAndGet(slot);
+			errors.incrementAndGet(slot);
+		}
+	}
+
+	/** Copies the current values out. */
+	MetricsSnapshot snapshot(int connections) {
+		MetricsSnapshot.MethodMetrics[] methods = new MetricsSnapshot.MethodMetrics[names.length];
+		for (int i = 0; i < names.length; i++) {
+			methods[i] = new MetricsSnapshot.MethodMetrics(names[i],
+					calls.get(i), errors.get(i), bytesIn.get(i),
+					bytesOut.get(i), queueWait[i].copy(), decode[i].copy(),
+					invoke[i].copy(), encode[i].copy(), total[i].copy());
+		}
+		return new MetricsSnapshot(System.currentTimeMillis(), connections,
+				unknown.get(), methods);
+	}
+
+	private static Histogram[] histograms(int n) {
+		Histogram[] histograms = new Histogram[n];
+		for (int i = 0; i < n; i++) {
+			histograms[i] = new Histogram();
+		}
+		return histograms;
+	}
+}
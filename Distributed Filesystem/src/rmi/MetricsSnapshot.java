@@ -0,0 +1,227 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Call metrics for one remote interface, as they were at one moment.
+ *
+ * <p>
+ * A snapshot is returned by <code>Skeleton.getMetrics</code> for the calls a
+ * skeleton has served, and by <code>Stub.metrics</code> for the calls all
+ * stubs for an interface in this JVM have made. Counts and histograms are
+ * totals since the skeleton was created or the first stub was used; two
+ * snapshots can be compared to find the rates between them.
+ *
+ * <p>
+ * Each call is timed in phases. On the skeleton:
+ * <ul>
+ * <li><em>queue wait</em> from the moment the call was read from its
+ * connection until it was picked up by the executor,</li>
+ * <li><em>decode</em> while its arguments were decoded,</li>
+ * <li><em>invoke</em> while the method ran on the server object,</li>
+ * <li><em>encode</em> while its reply was encoded, and</li>
+ * <li><em>total</em> from the moment the call was read until its reply was
+ * encoded.</li>
+ * </ul>
+ * On stubs:
+ * <ul>
+ * <li><em>encode</em> while the arguments were encoded,</li>
+ * <li><em>queue wait</em> while a connection was found and the call written to
+ * it,</li>
+ * <li><em>invoke</em> from then until the reply was read, which is the time on
+ * the network and in the skeleton,</li>
+ * <li><em>decode</em> while the reply was decoded, and</li>
+ * <li><em>total</em> from the moment the call was made until its result was
+ * ready.</li>
+ * </ul>
+ * A batch is counted as one call of the pseudo-method <code>BATCH</code>. On
+ * the skeleton, the calls inside it are also counted, with their invoke times,
+ * under their own methods.
+ */
+public class MetricsSnapshot {
+	/** Name under which batches are counted. */
+	public static final String BATCH = "(batch)";
+
+	private final long time;
+	private final int activeConnections;
+	private final long unknownCalls;
+	private final List<MethodMetrics> methods;
+
+	MetricsSnapshot(long time, int activeConnections, long unknownCalls,
+			MethodMetrics[] methods) {
+		this.time = time;
+		this.activeConnections = activeConnections;
+		this.unknownCalls = unknownCalls;
+		this.methods = Collections.unmodifiableList(new ArrayList<MethodMetrics>(
+				Arrays.asList(methods)));
+	}
+
+	/** Returns the time the snapshot was taken, in milliseconds. */
+	public long time() {
+		return time;
+	}
+
+	/**
+	 * Returns the number of open connections: to the skeleton, or, for stubs,
+	 * from this JVM to any skeleton.
+	 */
+	public int activeConnections() {
+		return activeConnections;
+	}
+
+	/**
+	 * Returns the number of calls naming a method the interface does not
+	 * have. These are all errors.
+	 */
+	public long unknownCalls() {
+		return unknownCalls;
+	}
+
+	/** Returns the metrics of every method, followed by those of batches. */
+	public List<MethodMetrics> methods() {
+		return methods;
+	}
+
+	/**
+	 * Returns the metrics of a method.
+	 *
+	 * @param name
+	 *            Either the name of the method, or its name with parameter
+	 *            types as given by <code>MethodMetrics.method</code>. A bare
+	 *            name matches the first overload.
+	 * @return The metrics, or <code>null</code> if there is no such method.
+	 */
+	public MethodMetrics method(String name) {
+		for (MethodMetrics m : methods) {
+			if (m.method.equals(name)) {
+				return m;
+			}
+		}
+		for (MethodMetrics m : methods) {
+			if (m.method.startsWith(name + "(")) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	/** Returns the total number of calls counted over all methods. */
+	public long calls() {
+		long calls = 0;
+		for (MethodMetrics m : methods) {
+			calls += m.calls;
+		}
+		return calls;
+	}
+
+	/** Returns the total number of failed calls over all methods. */
+	public long errors() {
+		long errors = unknownCalls;
+		for (MethodMetrics m : methods) {
+			errors += m.errors;
+		}
+		return errors;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("connections=").append(
+				activeConnections).append('\n');
+		for (MethodMetrics m : methods) {
+			if (m.calls > 0) {
+				s.append(m).append('\n');
+			}
+		}
+		return s.toString();
+	}
+
+	/** Metrics of one method. */
+	public static class MethodMetrics {
+		private final String method;
+		private final long calls;
+		private final long errors;
+		private final long bytesIn;
+		private final long bytesOut;
+		private final Histogram queueWait;
+		private final Histogram decode;
+		private final Histogram invoke;
+		private final Histogram encode;
+		private final Histogram total;
+
+		MethodMetrics(String method, long calls, long errors, long bytesIn,
+				long bytesOut, Histogram queueWait, Histogram decode,
+				Histogram invoke, Histogram encode, Histogram total) {
+			this.method = method;
+			this.calls = calls;
+			this.errors = errors;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+			this.queueWait = queueWait;
+			this.decode = decode;
+			this.invoke = invoke;
+			this.encode = encode;
+			this.total = total;
+		}
+
+		/**
+		 * Returns the method's name and parameter types, such as
+		 * <code>read(Path, long, int)</code>, or <code>BATCH</code>.
+		 */
+		public String method() {
+			return method;
+		}
+
+		/** Returns the number of calls. */
+		public long calls() {
+			return calls;
+		}
+
+		/**
+		 * Returns the number of calls that threw, or that could not be
+		 * completed.
+		 */
+		public long errors() {
+			return errors;
+		}
+
+		/** Returns the bytes received for the calls, uncompressed. */
+		public long bytesIn() {
+			return bytesIn;
+		}
+
+		/** Returns the bytes sent for the calls, uncompressed. */
+		public long bytesOut() {
+			return bytesOut;
+		}
+
+		public Histogram queueWait() {
+			return queueWait;
+		}
+
+		public Histogram decode() {
+			return decode;
+		}
+
+		public Histogram invoke() {
+			return invoke;
+		}
+
+		public Histogram encode() {
+			return encode;
+		}
+
+		public Histogram total() {
+			return total;
+		}
+
+		@Override
+		public String toString() {
+			return method + ": calls=" + calls + " errors=" + errors
+					+ " in=" + bytesIn + " out=" + bytesOut + " total["
+					+ total + "] invoke[" + invoke + "]";
+		}
+	}
+}
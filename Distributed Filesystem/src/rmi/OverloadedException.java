@@ -0,0 +1,18 @@
+package rmi;
+
+/** Thrown when a skeleton refuses a call because it is overloaded.
+
+    <p>
+    The skeleton did not run the method: either too many calls were already
+    waiting for it to admit them, or the call waited longer than the skeleton
+    allows. The call may be tried again later, preferably after backing off.
+ */
+public class OverloadedException extends RMIException
+{
+    /** Creates an <code>OverloadedException</code> with the given message
+        string. */
+    public OverloadedException(String message)
+    {
+        super(message);
+    }
+}
@@ -1,85 +1,626 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 public class ProxyHandler implements InvocationHandler, Serializable {
 	public InetSocketAddress address;
 	public Class<?> c;
-	
+	/**
+	 * Number of the remote object among those exported on the listener at
+	 * <code>address</code>; zero for the skeleton that owns the listener.
+	 */
+	public int object;
+	/**
+	 * Path of the Unix domain socket the skeleton also listens on, or
+	 * <code>null</code>. Connections use it when the skeleton is on the same
+	 * host as the stub.
+	 */
+	public String localSocket;
+	/** Numbering of the methods of <code>c</code>; rebuilt after transfer. */
+	private transient MethodTable methods;
+	/** Metrics shared by the stubs for <code>c</code>. */
+	private transient Metrics metrics;
+	/**
+	 * Milliseconds to wait for a connection to be opened, and for the reply to
+	 * each call, or zero for no limit. These are set by
+	 * <code>Stub.withTimeouts</code> and are not sent with the stub.
+	 */
+	transient long connectTimeout = 0;
+	transient long callTimeout = 0;
+	/**
+	 * How calls to <code>Idempotent</code> methods are retried after a
+	 * transport failure, or <code>null</code> not to retry them. Set by
+	 * <code>Stub.withRetries</code> and not sent with the stub.
+	 */
+	transient RetryPolicy retryPolicy = null;
+
 	public ProxyHandler(InetSocketAddress address,Class<?> c) {
 		this.address = address;
 		this.c = c;
+		this.methods = MethodTable.of(c);
+		this.metrics = Metrics.client(c);
+	}
+
+	/**
+	 * Returns a handler for the same remote object, with the same timeouts and
+	 * retry policy.
+	 */
+	ProxyHandler copy() {
+		ProxyHandler h = new ProxyHandler(address, c);
+		h.object = object;
+		h.localSocket = localSocket;
+		h.connectTimeout = connectTimeout;
+		h.callTimeout = callTimeout;
+		h.retryPolicy = retryPolicy;
+		return h;
 	}
-	
+
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args)
 			throws Throwable {
-		String methodName = method.getName();
-		Class[] argTypes = method.getParameterTypes();
-		Object result = null;
-		boolean success = false;
-		boolean methodException;
-		
-		//Implementing toString
-		if (methodName.equals("equals")) {
-			java.lang.reflect.Proxy s = (java.lang.reflect.Proxy) args[0];
-			if (s == null) {
+		// The proxy class passes the methods of Object as declared by Object,
+		// so remote methods are told apart without comparing names
+		if (method.getDeclaringClass() == Object.class) {
+			return invokeLocal(method, args);
+		}
+		return call(method, args);
+	}
+
+	/**
+	 * Makes a blocking call. A call that may share a flight or be retried
+	 * waits for the future of <code>submit</code>; any other call is made by
+	 * <code>call(int, Object[])</code> on the calling thread.
+	 */
+	Object call(Method method, Object[] args) throws Throwable {
+		if (methods == null) {
+			methods = MethodTable.of(c);
+		}
+		int id = methods.id(method);
+		if (methods.idempotent(id)) {
+			return join(submit(method, args));
+		}
+		return call(id, args);
+	}
+
+	/** Waits for a call made with <code>submit</code>. */
+	private static Object join(CompletableFuture<Object> call)
+			throws Throwable {
+		try {
+			return call.join();
+		} catch (CompletionException e) {
+			// Either the exception thrown by the remote method, or the
+			// RMIException for a failed call
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Answers <code>equals</code>, <code>hashCode</code> and
+	 * <code>toString</code> without a remote call. These are the only methods
+	 * of <code>Object</code> a proxy class passes on, so they are told apart
+	 * by their parameter count and return type alone.
+	 */
+	private Object invokeLocal(Method method, Object[] args) {
+		if (method.getParameterCount() == 1) {
+			Object s = args[0];
+			if (s == null || !Proxy.isProxyClass(s.getClass())
+					|| !(Proxy.getInvocationHandler(s) instanceof ProxyHandler)) {
 				return false;
 			}
 			// Check if c is equal to the proxy's c and the addresses are also equal
-			if (this.c.equals(((ProxyHandler) Proxy.getInvocationHandler(s)).c) && 
-					this.address.equals(((ProxyHandler) Proxy.getInvocationHandler(s)).address)){
-				return true;
-			} else {
-				return false;
-			}
-		} 
-		else if (methodName.equals("toString")) {
+			ProxyHandler other = (ProxyHandler) Proxy.getInvocationHandler(s);
+			return this.c.equals(other.c) && this.address.equals(other.address)
+					&& this.object == other.object;
+		} else if (method.getReturnType() == int.class) {
+			return this.c.hashCode() + this.address.hashCode() + this.object;
+		} else {
 			return "Interface " + c.getClass().toString() + " @ " + address.toString();
-		} else if (methodName.equals("hashCode")) {
-			return this.c.hashCode() + this.address.hashCode();
+		}
+	}
+
+	/**
+	 * Sends a call over a pooled connection to the skeleton, or in memory if
+	 * the skeleton is running in this JVM (see <code>Loopback</code>). A call
+	 * to an <code>Idempotent</code> method joins an identical call already in
+	 * flight, if there is one (see <code>SingleFlight</code>).
+	 *
+	 * <p>
+	 * The returned future completes with the result of the remote method, or
+	 * exceptionally with the exception the remote method threw, or with an
+	 * <code>RMIException</code> if the call could not be completed. It is
+	 * completed on the thread that reads replies from the connection, and the
+	 * calling thread is never blocked waiting for the reply.
+	 *
+	 * <p>
+	 * Connections are shared with other calls to the same skeleton, which may
+	 * be in progress at the same time. A connection that has already carried
+	 * calls may have been closed by the skeleton while it was idle. If such a
+	 * connection fails, it is discarded, and the call is sent again on another
+	 * connection only if the skeleton cannot have run it: either no part of
+	 * the call was written, or the method is <code>Idempotent</code>. Any
+	 * other failure is reported to the caller, unless the method is
+	 * <code>Idempotent</code> and the handler has a <code>RetryPolicy</code>,
+	 * in which case the call is made again after a backoff.
+	 */
+	CompletableFuture<Object> submit(Method method, Object[] args) {
+		if (methods == null) {
+			methods = MethodTable.of(c);
+		}
+		int id = methods.id(method);
+		if (retryPolicy != null && methods.idempotent(id)) {
+			return new Retry(new ProxyHandler[] { this }, new AtomicInteger(),
+					retryPolicy, method, args).result;
+		}
+		return submit(id, args);
+	}
+
+	/**
+	 * Makes a call without applying the retry policy. Used by
+	 * <code>Retry</code> for each of its attempts.
+	 *
+	 * @param deadline
+	 *            <code>System.nanoTime</code> by which the whole retried call
+	 *            must be complete, or zero. The attempt gets the earlier of
+	 *            this and the call timeout of this stub.
+	 */
+	CompletableFuture<Object> submitOnce(Method method, Object[] args,
+			long deadline) {
+		if (methods == null) {
+			methods = MethodTable.of(c);
+		}
+		return submit(methods.id(method), args,
+				Deadline.earlier(deadline, Deadline.forCall(callTimeout)));
+	}
+
+	/** Returns whether a method is marked <code>Idempotent</code>. */
+	boolean idempotent(Method method) {
+		if (methods == null) {
+			methods = MethodTable.of(c);
+		}
+		return methods.idempotent(methods.id(method));
+	}
+
+	/**
+	 * Sends a batch of calls in one frame. The returned future completes with
+	 * an array holding, for each call in turn, its success flag followed by
+	 * its result or exception.
+	 */
+	CompletableFuture<Object> submitBatch(Method[] calls, Object[][] args) {
+		if (methods == null) {
+			methods = MethodTable.of(c);
+		}
+		Object[] ids = new Object[calls.length];
+		for (int i = 0; i < calls.length; i++) {
+			ids[i] = methods.id(calls[i]);
+		}
+		return submit(Frames.BATCH, new Object[] { ids, args });
+	}
+
+	private CompletableFuture<Object> submit(int method, Object[] args) {
+		return submit(method, args, Deadline.forCall(callTimeout));
+	}
+
+	private CompletableFuture<Object> submit(final int method,
+			final Object[] args, long deadline) {
+		if (method != Frames.BATCH && methods.idempotent(method)
+				&& !Callbacks.any(args)) {
+			return SingleFlight.call(new SingleFlight.Key(address, object, c,
+					method, args), deadline,
+					new Supplier<CompletableFuture<Object>>() {
+				@Override
+				public CompletableFuture<Object> get() {
+					// Shared by callers with different deadlines, each of
+					// which SingleFlight applies to its own caller
+					return send(method, args, 0);
+				}
+			});
+		}
+		return send(method, args, deadline);
+	}
+
+	/**
+	 * Sends a call with the given deadline, a <code>System.nanoTime</code>
+	 * or zero. Cancelling the returned future gives up on the call.
+	 */
+	private CompletableFuture<Object> send(int method, Object[] args,
+			long deadline) {
+		if (metrics == null) {
+			metrics = Metrics.client(c);
+		}
+		final Outgoing call = new Outgoing(method, args, deadline);
+		final ScheduledFuture<?> timeout;
+		if (call.deadline != 0) {
+			timeout = Timeouts.schedule(new Runnable() {
+				@Override
+				public void run() {
+					call.timedOut();
+				}
+			}, call.deadline - call.start);
 		} else {
-			Socket clientSocket = new Socket();
+			timeout = null;
+		}
+		call.result.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable failure) {
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+				if (call.result.isCancelled()) {
+					call.abandoned();
+				}
+			}
+		});
+		attempt(call, null, 0);
+		return call.result;
+	}
+
+	/**
+	 * Makes a call on a connection and waits for the reply on the calling
+	 * thread. This is the path of <code>send</code> and <code>attempt</code>
+	 * without the future, the timer and the callbacks: the deadline is kept
+	 * by the wait itself. A call to a skeleton in this JVM goes through
+	 * <code>submit</code>, since <code>Loopback</code> answers with a future.
+	 */
+	private Object call(int method, Object[] args) throws Throwable {
+		if (metrics == null) {
+			metrics = Metrics.client(c);
+		}
+		if (Loopback.find(address, object, c) != null) {
+			return join(submit(method, args));
+		}
+		long start = System.nanoTime();
+		long deadline = Deadline.forCall(callTimeout);
+		Message sent = null;
+		for (int attempt = 0;; attempt++) {
+			Connection conn;
+			try {
+				conn = connect(deadline);
+			} catch (Exception e) {
+				throw counted(method, lost(deadline, "Unable to connect to "
+						+ address, e));
+			}
+
+			long encoded = 0;
+			if (sent == null || sent.codec != conn.codec) {
+				long before = System.nanoTime();
+				try {
+					sent = Frames.encodeCall(conn.codec, object, method, args);
+				} catch (IOException e) {
+					throw counted(method, new RMIException(
+							"Unable to encode call to " + methods.name(method),
+							e));
+				}
+				encoded = System.nanoTime() - before;
+			}
+			try {
+				Frames.setBudget(sent, remaining(deadline));
+			} catch (SocketTimeoutException e) {
+				throw counted(method, lost(deadline,
+						"Deadline passed before sending", e));
+			}
+
+			boolean reused = conn.replies > 0;
+			if (Callbacks.any(args)) {
+				conn.pinned = true;
+			}
+			Connection.Waiter reply;
+			try {
+				reply = conn.sendWaiting(sent);
+			} catch (IOException e) {
+				// The frame never reached the skeleton whole, so it was not
+				// run
+				retry(method, attempt, conn, reused, false, deadline, e);
+				continue;
+			}
+			long written = System.nanoTime();
+			Frame frame;
+			try {
+				frame = reply.await(deadline);
+			} catch (IOException e) {
+				retry(method, attempt, conn, reused, true, deadline, e);
+				continue;
+			}
+			if (frame == null) {
+				throw counted(method, new DeadlineExceededException(
+						"No reply within " + (deadline - start + 999999)
+								/ 1000000 + " ms"));
+			}
+			Object[] values;
 			try {
-				ObjectOutputStream out = null;
-				ObjectInputStream in   = null;
-				
-				clientSocket.connect(this.address);
+				values = received(conn.codec, frame, method, sent, start,
+						encoded, written);
+			} catch (RMIException e) {
+				throw counted(method, e);
+			}
+			if ((Boolean) values[0]) {
+				return values[1];
+			}
+			throw (Throwable) values[1];
+		}
+	}
+
+	/**
+	 * Discards a connection that failed during a blocking call, and throws
+	 * unless the call may be sent again, as <code>failed</code> decides for
+	 * other calls.
+	 */
+	private void retry(int method, int attempt, Connection conn,
+			boolean reused, boolean delivered, long deadline,
+			IOException failure) throws RMIException {
+		ConnectionPool.shared.discard(conn);
+		if (!reused || attempt >= ConnectionPool.MAX_CONNECTIONS
+				|| (delivered && !methods.idempotent(method))) {
+			throw counted(method, lost(deadline, "Connection to " + address
+					+ " failed", failure));
+		}
+	}
+
+	/**
+	 * Takes a connection from the pool, waiting for it no longer than the
+	 * connect timeout or the time left before the deadline.
+	 */
+	private Connection connect(long deadline) throws IOException {
+		int timeout = remaining(deadline);
+		if (connectTimeout > 0 && (timeout == 0 || connectTimeout < timeout)) {
+			timeout = (int) Math.min(Integer.MAX_VALUE, connectTimeout);
+		}
+		return ConnectionPool.shared.acquire(this.address, this.localSocket,
+				timeout);
+	}
+
+	/**
+	 * Returns the milliseconds left before a deadline, or zero if there is
+	 * none.
+	 *
+	 * @throws SocketTimeoutException
+	 *             If the deadline has passed.
+	 */
+	private static int remaining(long deadline) throws SocketTimeoutException {
+		if (deadline == 0) {
+			return 0;
+		}
+		long left = (deadline - System.nanoTime()) / 1000000;
+		if (left <= 0) {
+			throw new SocketTimeoutException("Deadline passed");
+		}
+		return (int) Math.min(Integer.MAX_VALUE, left);
+	}
+
+	/** A call in progress. */
+	private class Outgoing {
+		final int method;
+		final Object[] args;
+		/** <code>System.nanoTime</code> when the call was made. */
+		long start = System.nanoTime();
+		/** <code>System.nanoTime</code> of its deadline, or zero. */
+		final long deadline;
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		/** The connection the call was last sent on, and the call as sent. */
+		private Connection conn = null;
+		private Message sent = null;
+
+		Outgoing(int method, Object[] args, long deadline) {
+			this.method = method;
+			this.args = args;
+			this.deadline = deadline;
+		}
+
+		/** Returns the milliseconds left before the deadline, or zero. */
+		int remaining() throws SocketTimeoutException {
+			return ProxyHandler.remaining(deadline);
+		}
+
+		synchronized void sending(Connection conn, Message sent) {
+			this.conn = conn;
+			this.sent = sent;
+		}
+
+		/** Fails the call at its deadline, if it has not completed. */
+		void timedOut() {
+			if (result.completeExceptionally(new DeadlineExceededException(
+					"No reply within "
+							+ (deadline - start + 999999) / 1000000 + " ms"))) {
+				abandoned();
+			}
+		}
 
-				out = new ObjectOutputStream(clientSocket.getOutputStream());
-				out.flush();
-				in = new ObjectInputStream(clientSocket.getInputStream());
-				
-				out.writeObject(methodName);
+		/**
+		 * Counts a call given up before its reply came, and stops waiting for
+		 * the reply.
+		 */
+		void abandoned() {
+			metrics.failed(metrics.slot(method));
+			synchronized (this) {
+				if (conn != null) {
+					conn.forget(sent);
+				}
+			}
+		}
+	}
 
-				out.writeObject(argTypes);
+	/**
+	 * Makes one attempt at a call.
+	 *
+	 * @param message
+	 *            The call as encoded by an earlier attempt, or
+	 *            <code>null</code>. It is encoded again if the connection
+	 *            uses another codec.
+	 */
+	private void attempt(final Outgoing call, Message message,
+			final int attempt) {
+		if (call.result.isDone()) {
+			// Timed out
+			return;
+		}
+		final Skeleton<?> local = Loopback.find(this.address, this.object,
+				this.c);
+		final Connection conn;
+		if (local != null) {
+			conn = null;
+		} else {
+			try {
+				conn = connect(call.deadline);
+			} catch (Exception e) {
+				fail(call, lost(call.deadline, "Unable to connect to "
+						+ address, e));
+				return;
+			}
+		}
 
-				out.writeObject(args);
-				
-				success = (boolean) in.readObject();
-				result = in.readObject();
-				
-				clientSocket.close();	
+		final Codec codec = local != null ? Loopback.codec : conn.codec;
+		long encoding = 0;
+		if (message == null || message.codec != codec) {
+			long before = System.nanoTime();
+			try {
+				message = Frames.encodeCall(codec, object, call.method,
+						call.args);
+			} catch (IOException e) {
+				fail(call, new RMIException("Unable to encode call to "
+						+ methods.name(call.method), e));
+				return;
 			}
-			catch (Exception e) {
-				clientSocket.close();
-				throw new RMIException("Hey man, you fail!!");
+			encoding = System.nanoTime() - before;
+		}
+		final Message sent = message;
+		final long encoded = encoding;
+
+		try {
+			Frames.setBudget(sent, call.remaining());
+		} catch (SocketTimeoutException e) {
+			fail(call, lost(call.deadline, "Deadline passed before sending", e));
+			return;
+		}
+
+		final boolean reused = conn != null && conn.replies > 0;
+		CompletableFuture<Frame> reply;
+		if (conn != null && Callbacks.any(call.args)) {
+			conn.pinned = true;
+		}
+		try {
+			call.sending(conn, sent);
+			reply = local != null ? Loopback.send(local, sent) : conn
+					.send(sent);
+		} catch (IOException e) {
+			// The frame never reached the skeleton whole, so it was not run
+			failed(call, sent, attempt, conn, reused, false, e);
+			return;
+		}
+		final long written = System.nanoTime();
+		reply.whenComplete(new BiConsumer<Frame, Throwable>() {
+			@Override
+			public void accept(Frame frame, Throwable failure) {
+				if (failure != null) {
+					failed(call, sent, attempt, conn, reused, true, failure);
+					return;
+				}
+				if (call.result.isDone()) {
+					// Timed out
+					return;
+				}
+				Object[] values;
+				try {
+					values = received(codec, frame, call.method, sent,
+							call.start, encoded, written);
+				} catch (RMIException e) {
+					fail(call, e);
+					return;
+				}
+				if ((Boolean) values[0]) {
+					call.result.complete(values[1]);
+				} else {
+					call.result.completeExceptionally((Throwable) values[1]);
+				}
 			}
-			if (success == false) {
-				throw ((Throwable) result);
-			};
-			
+		});
+	}
+
+	/**
+	 * Retries a call whose connection failed, if that is safe.
+	 *
+	 * @param delivered
+	 *            Whether the call was written to the connection, in which case
+	 *            the skeleton may have run it, and it is only sent again if
+	 *            the method is <code>Idempotent</code>.
+	 */
+	private void failed(Outgoing call, Message sent, int attempt,
+			Connection conn, boolean reused, boolean delivered,
+			Throwable failure) {
+		if (conn != null) {
+			ConnectionPool.shared.discard(conn);
+		}
+		if (!reused || attempt >= ConnectionPool.MAX_CONNECTIONS
+				|| (delivered && !methods.idempotent(call.method))) {
+			fail(call, lost(call.deadline, "Connection to " + address
+					+ " failed", failure));
+			return;
+		}
+		attempt(call, sent, attempt + 1);
+	}
+
+	/**
+	 * Decodes a reply, and records the call in the metrics.
+	 *
+	 * @return The success flag of the call, followed by its result or
+	 *         exception.
+	 * @throws RMIException
+	 *             If the reply cannot be decoded.
+	 */
+	private Object[] received(Codec codec, Frame frame, int method,
+			Message sent, long start, long encoded, long written)
+			throws RMIException {
+		long decoding = System.nanoTime();
+		Object[] values;
+		try {
+			values = Frames.decode(codec, frame, 2);
+		} catch (Exception e) {
+			throw new RMIException("Unable to decode reply from " + address, e);
 		}
-	
-		return result;
+		long end = System.nanoTime();
+		int slot = metrics.slot(method);
+		metrics.invoked(slot, frame.received - written, (Boolean) values[0]);
+		metrics.completed(slot, written - start - encoded, end - decoding,
+				encoded, end - start, frame.size(), sent.size());
+		return values;
 	}
 
+	/**
+	 * Returns the exception for a call lost to a transport failure: a
+	 * <code>DeadlineExceededException</code> if it timed out at its deadline,
+	 * or else a <code>TransportException</code>.
+	 */
+	private RMIException lost(long deadline, String message, Throwable failure) {
+		if (failure instanceof SocketTimeoutException && deadline != 0
+				&& deadline - System.nanoTime() < 1000000) {
+			RMIException e = new DeadlineExceededException(message);
+			e.initCause(failure);
+			return e;
+		}
+		return new TransportException(message, failure);
+	}
+
+	/** Fails a call that could not be completed. */
+	private void fail(Outgoing call, RMIException e) {
+		if (call.result.completeExceptionally(e)) {
+			metrics.failed(metrics.slot(call.method));
+		}
+	}
+
+	/** Counts a blocking call that could not be completed. */
+	private RMIException counted(int method, RMIException e) {
+		metrics.failed(metrics.slot(method));
+		return e;
+	}
 }
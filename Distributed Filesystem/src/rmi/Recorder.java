@@ -0,0 +1,101 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Stand-in for a remote object that records the call applied to it.
+ *
+ * <p>
+ * Asynchronous stubs and batches take calls as lambdas applying one method of
+ * the remote interface. The lambda is run against the recorder's object, which
+ * only notes the method and arguments and returns a default value.
+ */
+class Recorder<T> {
+	/** A method applied to the stand-in object, with its arguments. */
+	static class Recorded {
+		final Method method;
+		final Object[] args;
+
+		Recorded(Method method, Object[] args) {
+			this.method = method;
+			this.args = args;
+		}
+	}
+
+	private final T stand_in;
+	private final ThreadLocal<Recorded> recorded = new ThreadLocal<Recorded>();
+
+	Recorder(Class<T> c) {
+		this.stand_in = c.cast(Proxy.newProxyInstance(c.getClassLoader(),
+				new Class[] { c }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getDeclaringClass() == Object.class) {
+							throw new IllegalArgumentException(
+									"Only remote methods can be called");
+						}
+						if (recorded.get() != null) {
+							throw new IllegalArgumentException(
+									"Only one method can be called");
+						}
+						recorded.set(new Recorded(method, args));
+						return defaultValue(method.getReturnType());
+					}
+				}));
+	}
+
+	/**
+	 * Runs a call against the stand-in object and returns what it applied.
+	 *
+	 * @throws NullPointerException
+	 *             If <code>call</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>call</code> does not apply exactly one method of the
+	 *             remote interface.
+	 */
+	Recorded record(AsyncStub.Call<? super T, ?> call) {
+		if (call == null) {
+			throw new NullPointerException("Call is null");
+		}
+		Recorded made;
+		try {
+			call.apply(stand_in);
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Call failed to apply", e);
+		} finally {
+			made = recorded.get();
+			recorded.remove();
+		}
+		if (made == null) {
+			throw new IllegalArgumentException("No remote method was called");
+		}
+		return made;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) {
+			return null;
+		} else if (type == boolean.class) {
+			return false;
+		} else if (type == char.class) {
+			return (char) 0;
+		} else if (type == byte.class) {
+			return (byte) 0;
+		} else if (type == short.class) {
+			return (short) 0;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == float.class) {
+			return 0f;
+		} else {
+			return 0d;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * One call to an <code>Idempotent</code> method made under a
+ * <code>RetryPolicy</code>, possibly over several replicas.
+ *
+ * <p>
+ * Attempts after the first are run on the shared completion pool of
+ * <code>AsyncStub</code>, once their backoff has passed. An attempt may have
+ * to open a connection, which can take as long as the connect timeout, so it
+ * is neither run on the timer thread nor on the thread that saw the last
+ * attempt fail, which may be reading replies for other calls.
+ *
+ * <p>
+ * The whole call, with its attempts and backoffs, must be complete by the
+ * caller's <code>Deadline</code> and within the call timeout of the first
+ * replica tried. That deadline is carried over to the attempts, since the
+ * threads they run on do not have the caller's <code>Deadline</code>, and
+ * each attempt is given no more than the time left.
+ */
+class Retry implements BiConsumer<Object, Throwable>, Runnable {
+	private final ProxyHandler[] replicas;
+	/** Index of the replica to try first; set to the one that answers. */
+	private final AtomicInteger current;
+	private final RetryPolicy policy;
+	private final Method method;
+	private final Object[] args;
+	/** <code>System.nanoTime</code> by which the call must be done, or zero. */
+	private final long deadline;
+	final CompletableFuture<Object> result = new CompletableFuture<Object>();
+	private int attempts = 0;
+	private int index;
+
+	/**
+	 * Makes a call.
+	 * 
+	 * @param replicas
+	 *            Stubs for equivalent remote objects; a single stub to only
+	 *            retry.
+	 * @param current
+	 *            Index of the replica to start with, shared with later calls
+	 *            so that they start at the last replica that answered.
+	 */
+	Retry(ProxyHandler[] replicas, AtomicInteger current, RetryPolicy policy,
+			Method method, Object[] args) {
+		this.replicas = replicas;
+		this.current = current;
+		this.policy = policy;
+		this.method = method;
+		this.args = args;
+		this.index = current.get() % replicas.length;
+		this.deadline = Deadline.forCall(replicas[index].callTimeout);
+		attempt();
+	}
+
+	private void attempt() {
+		attempts++;
+		replicas[index].submitOnce(method, args, deadline).whenComplete(this);
+	}
+
+	@Override
+	public void accept(Object value, Throwable failure) {
+		if (failure == null) {
+			current.set(index);
+			result.complete(value);
+			return;
+		}
+		if (failure instanceof CompletionException
+				&& failure.getCause() != null) {
+			failure = failure.getCause();
+		}
+		if (attempts >= policy.getMaxAttempts()
+				|| !RetryPolicy.retryable(failure)) {
+			result.completeExceptionally(failure);
+			return;
+		}
+		index = (index + 1) % replicas.length;
+		long delay = 0;
+		if (attempts % replicas.length == 0) {
+			// Every replica has failed once more
+			delay = policy.backoff(attempts / replicas.length);
+		}
+		if (deadline != 0 && deadline - System.nanoTime() <= delay * 1000000L) {
+			result.completeExceptionally(failure);
+			return;
+		}
+		if (delay == 0) {
+			retry();
+		} else {
+			// The timer only hands the attempt over
+			Timeouts.schedule(new Runnable() {
+				@Override
+				public void run() {
+					retry();
+				}
+			}, delay * 1000000L);
+		}
+	}
+
+	/** Starts the next attempt on the completion pool. */
+	private void retry() {
+		try {
+			AsyncStub.completions.execute(this);
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(new TransportException(
+					"Unable to retry call", e));
+		}
+	}
+
+	/** Makes the next attempt. */
+	@Override
+	public void run() {
+		attempt();
+	}
+}
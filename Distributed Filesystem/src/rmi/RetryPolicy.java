@@ -0,0 +1,98 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a stub makes a failed call again.
+ *
+ * <p>
+ * Only calls to methods marked <code>Idempotent</code> are made again, and
+ * only when they failed with a <code>TransportException</code> or were
+ * refused with an <code>OverloadedException</code>; exceptions thrown by the
+ * remote method, and missed deadlines, are reported to the caller at once.
+ * A call is made at most <code>maxAttempts</code> times in all.
+ *
+ * <p>
+ * Before each new attempt the stub waits a random time between zero and a
+ * backoff that starts at <code>initialBackoff</code> milliseconds and doubles
+ * with each failure, up to <code>maxBackoff</code>. The randomness keeps
+ * clients that failed together from all coming back at the same moment. A
+ * stub failing over between replicas tries the next replica right away, and
+ * only backs off once it has tried them all. No attempt is made once the
+ * deadline of the call (see <code>Deadline</code>) would pass during the
+ * wait.
+ *
+ * <p>
+ * Policies are attached to stubs with <code>Stub.withRetries</code> and
+ * <code>Stub.failover</code>.
+ */
+public final class RetryPolicy implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int maxAttempts;
+	private final long initialBackoff;
+	private final long maxBackoff;
+
+	/**
+	 * Creates a retry policy.
+	 * 
+	 * @param maxAttempts
+	 *            Maximum number of times a call is made, including the first.
+	 * @param initialBackoff
+	 *            Milliseconds of backoff after the first failure.
+	 * @param maxBackoff
+	 *            Largest backoff, in milliseconds.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxAttempts</code> is less than one, a backoff is
+	 *             negative, or <code>maxBackoff</code> is less than
+	 *             <code>initialBackoff</code>.
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+		if (maxAttempts < 1 || initialBackoff < 0
+				|| maxBackoff < initialBackoff) {
+			throw new IllegalArgumentException("Invalid retry policy");
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * Returns the milliseconds to wait before trying again after the given
+	 * number of failures, counting from one.
+	 */
+	long backoff(int failures) {
+		long ceiling = initialBackoff;
+		for (int i = 1; i < failures && ceiling < maxBackoff; i++) {
+			ceiling *= 2;
+		}
+		ceiling = Math.min(ceiling, maxBackoff);
+		return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(
+				ceiling + 1);
+	}
+
+	/** Returns whether a call that failed this way may be made again. */
+	static boolean retryable(Throwable failure) {
+		return failure instanceof TransportException
+				|| failure instanceof OverloadedException;
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy(" + maxAttempts + " attempts, " + initialBackoff
+				+ "-" + maxBackoff + " ms)";
+	}
+}
@@ -0,0 +1,622 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Selector based transport for a skeleton.
+ *
+ * <p>
+ * A small number of event loop threads each own a <code>Selector</code>. The
+ * first loop also accepts connections, and spreads them over all the loops.
+ * It may accept on several listening channels at once, such as a TCP socket
+ * and a Unix domain socket.
+ * Loops read from their connections without blocking and cut the incoming
+ * bytes into frames. Each complete call frame is handed to the skeleton's
+ * executor; the reply frame is passed back to the loop, which writes it out
+ * when the channel can take it. An idle connection therefore costs no thread
+ * at all.
+ *
+ * <p>
+ * All connection state is only touched by the loop that owns the connection.
+ * Other threads hand work to a loop through its task queue.
+ */
+class SelectorServer {
+	/** Initial size of the read buffer of each connection. */
+	static final int READ_BUFFER = 64 * 1024;
+	/** Milliseconds between checks for idle connections. */
+	static final long SWEEP_INTERVAL = 1000;
+
+	private final Skeleton<?> skeleton;
+	private final Admission admission;
+	private final EventLoop[] loops;
+	private ServerSocketChannel[] channels;
+	private volatile boolean stopping = false;
+	private final CountDownLatch acceptClosed = new CountDownLatch(1);
+	private int next = 0;
+
+	SelectorServer(Skeleton<?> skeleton) {
+		this.skeleton = skeleton;
+		this.admission = skeleton.admission;
+		int processors = Runtime.getRuntime().availableProcessors();
+		this.loops = new EventLoop[Math.max(1, Math.min(4, processors / 2))];
+	}
+
+	/**
+	 * Starts the event loops, accepting connections on listening channels.
+	 *
+	 * @param channels
+	 *            Bound listening channels. They are closed if the server
+	 *            cannot be started, and when it stops.
+	 * @throws IOException
+	 *             If the selectors cannot be opened.
+	 */
+	void start(ServerSocketChannel[] channels) throws IOException {
+		this.channels = channels;
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop();
+			}
+			for (ServerSocketChannel channel : channels) {
+				channel.configureBlocking(false);
+				channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+			}
+		} catch (IOException e) {
+			for (ServerSocketChannel channel : channels) {
+				channel.close();
+			}
+			for (EventLoop loop : loops) {
+				if (loop != null) {
+					loop.selector.close();
+				}
+			}
+			throw e;
+		}
+		for (int i = 0; i < loops.length; i++) {
+			new Thread(loops[i], "rmi-selector-" + i).start();
+		}
+	}
+
+	/**
+	 * Stops the server.
+	 *
+	 * <p>
+	 * The listening channels are closed before this method returns. Idle
+	 * connections are closed right away, connections with calls in progress
+	 * once their replies have been written. The loops exit when they have no
+	 * connections left.
+	 */
+	void stop() {
+		for (ServerSocketChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+		stopping = true;
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+		try {
+			// The channels are only really closed once the accepting selector
+			// has dropped it
+			acceptClosed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Closes every connection now, whether or not its replies have been
+	 * written. Used once a stopped skeleton has drained for as long as it
+	 * may.
+	 */
+	void closeAll() {
+		for (final EventLoop loop : loops) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (SelectionKey key : loop.selector.keys()) {
+						if (key.attachment() instanceof Conn) {
+							((Conn) key.attachment()).close();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		long lastSweep = System.currentTimeMillis();
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/** Runs a task on this loop's thread. */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					selector.select(SWEEP_INTERVAL);
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel());
+							continue;
+						}
+						Conn conn = (Conn) key.attachment();
+						if (key.isReadable()) {
+							conn.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							conn.write();
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if (stopping || now - lastSweep >= SWEEP_INTERVAL) {
+						lastSweep = now;
+						sweep(now);
+					}
+					if (stopping) {
+						selector.selectNow();
+						if (this == loops[0]) {
+							acceptClosed.countDown();
+						}
+						if (selector.keys().isEmpty() && tasks.isEmpty()) {
+							break;
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (!stopping) {
+					skeleton.service_error(new RMIException(
+							"Selector loop failed", e));
+				}
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof Conn) {
+						((Conn) key.attachment()).close();
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+				if (this == loops[0]) {
+					acceptClosed.countDown();
+				}
+			}
+		}
+
+		/**
+		 * Closes connections that have been idle too long, or that are no
+		 * longer busy when the server is stopping.
+		 */
+		private void sweep(long now) {
+			for (SelectionKey key : selector.keys()) {
+				if (!(key.attachment() instanceof Conn)) {
+					continue;
+				}
+				Conn conn = (Conn) key.attachment();
+				if (stopping) {
+					conn.closeWhenDone();
+				} else if (conn.isIdle() && !conn.pinned
+						&& now - conn.lastActive > Skeleton.IDLE_TIMEOUT) {
+					conn.close();
+				}
+			}
+		}
+
+		private void accept(ServerSocketChannel channel) {
+			SocketChannel client;
+			try {
+				client = channel.accept();
+				if (client == null) {
+					return;
+				}
+				client.configureBlocking(false);
+				if (client.supportedOptions().contains(
+						StandardSocketOptions.TCP_NODELAY)) {
+					client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				}
+			} catch (IOException e) {
+				if (stopping || !channel.isOpen()) {
+					return;
+				}
+				if (!skeleton.listen_error(e)) {
+					try {
+						channel.close();
+					} catch (IOException e1) {
+					}
+				}
+				return;
+			}
+
+			final SocketChannel accepted = client;
+			final EventLoop target = loops[next++ % loops.length];
+			target.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Conn conn = new Conn(accepted, target);
+						conn.key = accepted.register(target.selector,
+								SelectionKey.OP_READ, conn);
+						skeleton.metrics.connections.incrementAndGet();
+					} catch (IOException e) {
+						try {
+							accepted.close();
+						} catch (IOException e1) {
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/** State of one connection, owned by one event loop. */
+	private class Conn implements Channel {
+		final SocketChannel ch;
+		final EventLoop loop;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		/** The codec agreed on in the handshake, once the hello has arrived. */
+		Codec codec = null;
+		/** Compresses frames, if agreed on in the handshake. */
+		Compressor compressor = null;
+		/** Head frame of a call whose bulk frames are still arriving. */
+		byte[] head = null;
+		byte[][] bulk = null;
+		int received = 0;
+		/** Array a large bulk frame is being read into, if any. */
+		ByteBuffer filling = null;
+		/** Whether the frame being filled is compressed. */
+		boolean fillingCompressed = false;
+		int inFlight = 0;
+		long lastActive = System.currentTimeMillis();
+		boolean closing = false;
+		volatile boolean closed = false;
+		/** Whether a callback is bound to the connection. */
+		volatile boolean pinned = false;
+
+		Conn(SocketChannel ch, EventLoop loop) {
+			this.ch = ch;
+			this.loop = loop;
+		}
+
+		boolean isIdle() {
+			return inFlight == 0 && out.isEmpty();
+		}
+
+		/** Reads what is available and dispatches every complete call. */
+		void read() {
+			int n;
+			try {
+				n = ch.read(filling != null ? filling : in);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (n < 0) {
+				// The stub has closed the connection
+				close();
+				return;
+			}
+			lastActive = System.currentTimeMillis();
+
+			if (filling != null) {
+				if (!filling.hasRemaining()) {
+					byte[] contents = filling.array();
+					filling = null;
+					frame(contents, fillingCompressed);
+				}
+				return;
+			}
+
+			in.flip();
+			while (in.remaining() >= Frames.HEADER) {
+				int length = in.getInt(in.position());
+				boolean compressed = length < 0 && compressor != null;
+				if (compressed) {
+					length &= ~Compressor.COMPRESSED;
+				}
+				if (length < (head == null && !compressed ? Frames.ID : 0)
+						|| length > Frames.MAX_FRAME) {
+					close();
+					return;
+				}
+				if (in.remaining() < Frames.HEADER + length) {
+					if (head != null) {
+						// Read the rest of a bulk frame straight into the
+						// array that will be handed to the call
+						in.position(in.position() + Frames.HEADER);
+						filling = ByteBuffer.wrap(new byte[length]);
+						fillingCompressed = compressed;
+						filling.put(in);
+						in.clear();
+						return;
+					}
+					break;
+				}
+				in.position(in.position() + Frames.HEADER);
+				byte[] payload = new byte[length];
+				in.get(payload);
+				frame(payload, compressed);
+				if (closed) {
+					return;
+				}
+			}
+
+			// Make room for a frame larger than the buffer, and give the
+			// memory back once such a frame has been read
+			int needed = in.remaining();
+			if (in.remaining() >= Frames.HEADER) {
+				needed = Frames.HEADER
+						+ (in.getInt(in.position()) & ~Compressor.COMPRESSED);
+			}
+			if (needed > in.capacity()
+					|| (in.capacity() > READ_BUFFER && needed <= READ_BUFFER)) {
+				ByteBuffer resized = ByteBuffer.allocate(Math.max(needed,
+						READ_BUFFER));
+				resized.put(in);
+				in = resized;
+			} else {
+				in.compact();
+			}
+		}
+
+		/** Handles the contents of one frame, decompressing it if needed. */
+		private void frame(byte[] contents, boolean compressed) {
+			if (compressed) {
+				try {
+					contents = compressor.decompress(contents);
+				} catch (IOException e) {
+					close();
+					return;
+				}
+			}
+			if (codec == null) {
+				handshake(contents);
+			} else if (head == null) {
+				if (contents.length < Frames.ID) {
+					close();
+					return;
+				}
+				begin(contents);
+			} else {
+				addBulk(contents);
+			}
+		}
+
+		/** Starts a call on its head frame. */
+		private void begin(byte[] payload) {
+			int count;
+			try {
+				count = Frames.bulkCount(payload);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (count == 0) {
+				dispatch(new Frame(payload, new byte[0][]));
+			} else {
+				head = payload;
+				bulk = new byte[count][];
+				received = 0;
+			}
+		}
+
+		/** Adds the contents of a bulk frame to the call being received. */
+		private void addBulk(byte[] contents) {
+			bulk[received++] = contents;
+			if (received == bulk.length) {
+				Frame frame = new Frame(head, bulk);
+				head = null;
+				bulk = null;
+				dispatch(frame);
+			}
+		}
+
+		/** Answers the stub's hello frame, on the loop thread. */
+		private void handshake(byte[] hello) {
+			try {
+				codec = Frames.negotiate(hello);
+				if (codec == null) {
+					close();
+					return;
+				}
+				compressor = skeleton.compressor(hello);
+				out.add(ByteBuffer.wrap(Frames.welcome(codec.name(),
+						compressor != null)));
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Runs one call on the executor of the skeleton it is for. A ping is
+		 * answered on the loop thread instead.
+		 */
+		private void dispatch(final Frame request) {
+			final Skeleton<?> target;
+			try {
+				if (Frames.isPing(request.payload)) {
+					for (ByteBuffer buffer : Frames.buffers(
+							Frames.pong(request), compressor)) {
+						out.add(buffer);
+					}
+					write();
+					return;
+				}
+				target = skeleton.route(request);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			Admission admission = target == skeleton ? SelectorServer.this.admission
+					: target.admission;
+			inFlight++;
+			try {
+				admission.execute(request, new Runnable() {
+					@Override
+					public void run() {
+						ByteBuffer[] reply = null;
+						try {
+							reply = Frames.buffers(
+									target.serve(Conn.this, request), compressor);
+						} catch (IOException e) {
+						} catch (Exception e) {
+							skeleton.service_error(new RMIException(
+									"Error in serving connection", e));
+						}
+						final ByteBuffer[] message = reply;
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								complete(message);
+							}
+						});
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				close();
+			}
+		}
+
+		@Override
+		public Codec codec() {
+			return codec;
+		}
+
+		/** Queues a push frame for writing, from any thread. */
+		@Override
+		public void push(Message push) throws IOException {
+			if (closed) {
+				throw new EOFException("Connection closed");
+			}
+			final ByteBuffer[] buffers = Frames.buffers(push, compressor);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (closed) {
+						return;
+					}
+					for (ByteBuffer buffer : buffers) {
+						out.add(buffer);
+					}
+					write();
+				}
+			});
+		}
+
+		@Override
+		public void pin() {
+			pinned = true;
+		}
+
+		/** Queues a reply for writing, on the loop thread. */
+		void complete(ByteBuffer[] reply) {
+			inFlight--;
+			if (closed) {
+				return;
+			}
+			if (reply == null) {
+				close();
+				return;
+			}
+			for (ByteBuffer buffer : reply) {
+				out.add(buffer);
+			}
+			write();
+		}
+
+		/** Writes as much of the queued replies as the channel accepts. */
+		void write() {
+			try {
+				while (!out.isEmpty()) {
+					ByteBuffer buffer = out.peek();
+					ch.write(buffer);
+					if (buffer.hasRemaining()) {
+						break;
+					}
+					out.poll();
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			lastActive = System.currentTimeMillis();
+			if (closing && isIdle()) {
+				close();
+				return;
+			}
+			int ops = closing ? 0 : SelectionKey.OP_READ;
+			if (!out.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		/** Stops reading calls, and closes once pending replies are sent. */
+		void closeWhenDone() {
+			if (closed) {
+				return;
+			}
+			if (isIdle()) {
+				close();
+				return;
+			}
+			if (!closing) {
+				closing = true;
+				key.interestOps(out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			skeleton.metrics.connections.decrementAndGet();
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				ch.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec that uses Java serialization for every value. This is how all frames
+ * were encoded before codecs could be negotiated, and it is kept for peers that
+ * do not know the binary codec.
+ */
+class SerializationCodec implements Codec {
+	static final String NAME = "java";
+
+	@Override
+	public String name() {
+		return NAME;
+	}
+
+	@Override
+	public void write(OutputStream out, Object... values) throws IOException {
+		ObjectOutputStream objects = new ObjectOutputStream(out);
+		for (Object value : values) {
+			objects.writeObject(value);
+		}
+		objects.flush();
+	}
+
+	@Override
+	public Object[] read(InputStream in, int count) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream objects = new ObjectInputStream(in);
+		Object[] values = new Object[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = objects.readObject();
+		}
+		return values;
+	}
+}
@@ -0,0 +1,222 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Merging of identical calls to <code>Idempotent</code> methods.
+ *
+ * <p>
+ * Calls in flight are kept in a table shared by all stubs in this JVM, keyed
+ * by the remote object called, the method and the arguments. A call finding
+ * an identical call in the table waits for its outcome instead of being sent.
+ * The entry is removed as soon as the call in flight completes, so results
+ * are never cached beyond the round trip that produced them.
+ *
+ * <p>
+ * The shared call is sent without a deadline, and each caller keeps its own:
+ * a caller fails with a <code>DeadlineExceededException</code> when its
+ * deadline passes, while the others go on waiting. Once every caller has
+ * given up, the call is cancelled and a later identical call is sent afresh.
+ */
+class SingleFlight {
+	private static final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<Key, Flight>();
+
+	/** Copies array results, so that callers do not share them. */
+	private static final Function<Object, Object> COPY = new Function<Object, Object>() {
+		@Override
+		public Object apply(Object value) {
+			if (value == null || !value.getClass().isArray()) {
+				return value;
+			}
+			int length = Array.getLength(value);
+			Object copy = Array.newInstance(value.getClass()
+					.getComponentType(), length);
+			System.arraycopy(value, 0, copy, 0, length);
+			return copy;
+		}
+	};
+
+	private SingleFlight() {
+	}
+
+	/** Identity of a call: where it goes, which method, and its arguments. */
+	static class Key {
+		private final InetSocketAddress address;
+		private final int object;
+		private final Class<?> c;
+		private final int method;
+		private final Object[] args;
+		private final int hash;
+
+		Key(InetSocketAddress address, int object, Class<?> c, int method,
+				Object[] args) {
+			this.address = address;
+			this.object = object;
+			this.c = c;
+			this.method = method;
+			this.args = args;
+			this.hash = ((address.hashCode() * 31 + object) * 31 + method)
+					* 31 + Arrays.deepHashCode(args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return hash == k.hash && method == k.method && object == k.object
+					&& c == k.c && address.equals(k.address)
+					&& Arrays.deepEquals(args, k.args);
+		}
+	}
+
+	/** A call in flight, shared by the callers that made it. */
+	private static class Flight {
+		final Key key;
+		/** Completed once the entry is gone; see <code>call</code>. */
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		/** The call as sent, once it has been. */
+		CompletableFuture<Object> sent = null;
+		/** Callers still waiting for the outcome. */
+		int waiting = 1;
+		/** Whether every caller has given up on the call. */
+		boolean abandoned = false;
+
+		Flight(Key key) {
+			this.key = key;
+		}
+
+		/** Adds a caller, unless every earlier caller has given up. */
+		synchronized boolean join() {
+			if (abandoned) {
+				return false;
+			}
+			waiting++;
+			return true;
+		}
+
+		/**
+		 * Removes a caller that has given up. Once none are left, the entry is
+		 * removed and the call is cancelled, so that nobody waits for a reply
+		 * that may never come.
+		 */
+		void leave() {
+			CompletableFuture<Object> cancelled;
+			synchronized (this) {
+				if (--waiting > 0) {
+					return;
+				}
+				abandoned = true;
+				cancelled = sent;
+			}
+			flights.remove(key, this);
+			if (cancelled != null) {
+				cancelled.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Makes a call, or joins an identical call in flight.
+	 *
+	 * <p>
+	 * The call is sent without a deadline, since it is made on behalf of every
+	 * caller that joins it. Each caller's deadline applies only to the future
+	 * returned to that caller.
+	 *
+	 * @param key
+	 *            The identity of the call.
+	 * @param deadline
+	 *            <code>System.nanoTime</code> of the caller's deadline, or
+	 *            zero if it has none.
+	 * @param call
+	 *            Sends the call without a deadline, if none is in flight. The
+	 *            future it returns is cancelled if every caller gives up.
+	 * @return A future of the caller's own, completed with the outcome of the
+	 *         call. Array results are copied for each caller that joined.
+	 */
+	static CompletableFuture<Object> call(final Key key, long deadline,
+			Supplier<CompletableFuture<Object>> call) {
+		final Flight flight = new Flight(key);
+		while (true) {
+			Flight existing = flights.putIfAbsent(key, flight);
+			if (existing == null) {
+				break;
+			}
+			if (existing.join()) {
+				return own(existing, existing.result.thenApply(COPY), deadline);
+			}
+			// Every caller gave up on it; it is about to be removed
+			flights.remove(key, existing);
+		}
+		CompletableFuture<Object> sent;
+		try {
+			sent = call.get();
+		} catch (RuntimeException e) {
+			flights.remove(key, flight);
+			flight.result.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (flight) {
+			flight.sent = sent;
+		}
+		sent.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable failure) {
+				flights.remove(key, flight);
+				if (failure != null) {
+					flight.result.completeExceptionally(failure);
+				} else {
+					flight.result.complete(value);
+				}
+			}
+		});
+		// The caller is only woken once the entry is gone, so that a call it
+		// makes next is sent rather than joined to this one
+		return own(flight, flight.result.thenApply(Function.identity()),
+				deadline);
+	}
+
+	/**
+	 * Returns a caller's future, failed at the caller's own deadline. A caller
+	 * that fails this way leaves the flight.
+	 */
+	private static CompletableFuture<Object> own(final Flight flight,
+			final CompletableFuture<Object> future, final long deadline) {
+		if (deadline == 0) {
+			return future;
+		}
+		final long start = System.nanoTime();
+		final ScheduledFuture<?> timeout = Timeouts.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (future.completeExceptionally(new DeadlineExceededException(
+						"No reply within " + (deadline - start + 999999)
+								/ 1000000 + " ms"))) {
+					flight.leave();
+				}
+			}
+		}, deadline - start);
+		future.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable failure) {
+				timeout.cancel(false);
+			}
+		});
+		return future;
+	}
+}
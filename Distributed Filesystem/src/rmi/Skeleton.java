@@ -1,12 +1,27 @@
 package rmi;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * RMI skeleton
@@ -31,12 +46,70 @@ import java.net.*;
  * <code>service_error</code>.
  */
 public class Skeleton<T> implements Serializable {
+	/** Milliseconds a connection may sit idle before the skeleton closes it. */
+	static final int IDLE_TIMEOUT = 60000;
+	/** Milliseconds between checks of whether a stopping skeleton drained. */
+	static final long DRAIN_POLL = 10;
+	/**
+	 * Runs the readers of connections served by the blocking transport. A
+	 * reader waits on its connection for as long as the connection is open,
+	 * so it is not run on the skeleton's executor: on a bounded pool, as many
+	 * open connections as threads would leave no thread to run calls on.
+	 * Virtual threads are used where the runtime has them.
+	 */
+	private static final CallExecutor readers = CallExecutor.threadPerTask();
+
 	public Method[] methodArray;
 	Class<T> inter;
+	/** Numbering of the methods of <code>inter</code>. */
+	MethodTable methods;
 	InetSocketAddress address;
 	ServerSocket listenSocket;
 	T server;
-	boolean stop = false;
+	volatile boolean stop = false;
+	boolean running = false;
+	/** Whether <code>stop(long)</code> is waiting for calls to drain. */
+	private boolean draining = false;
+	Transport transport = Transport.BLOCKING;
+	SelectorServer selectorServer = null;
+	Thread listener = null;
+	CallExecutor executor = null;
+	/** Whether <code>executor</code> was created by <code>start</code>. */
+	boolean defaultExecutor = false;
+	final Set<ClientService> services = Collections
+			.synchronizedSet(new HashSet<ClientService>());
+	boolean compression = false;
+	/** Admission limits; zero means no limit. */
+	int maxCalls = 0;
+	int queueLength = 0;
+	long queueTimeout = 0;
+	final HashMap<String, Integer> methodLimits = new HashMap<String, Integer>();
+	/** Lanes set up with <code>setLane</code>, in order. */
+	private final LinkedHashMap<String, LaneSettings> lanes = new LinkedHashMap<String, LaneSettings>();
+	/** Lanes given to methods with <code>setMethodLane</code>. */
+	private final HashMap<String, String> methodLanes = new HashMap<String, String>();
+	/** Unix domain socket file to listen on as well, or <code>null</code>. */
+	private Path localSocket = null;
+	/** Whether local stubs may call the skeleton in memory. */
+	private boolean loopback = true;
+	/** Admission control for the calls of the running skeleton. */
+	Admission admission = null;
+	/**
+	 * The skeleton whose listener this one is exported on, or
+	 * <code>null</code> if it listens by itself.
+	 */
+	private volatile Skeleton<?> host = null;
+	/**
+	 * Number of the skeleton among those exported on its listener, carried by
+	 * its stubs; zero for the skeleton that owns the listener.
+	 */
+	volatile int object = 0;
+	/** Skeletons exported on this skeleton's listener, by number. */
+	private final ConcurrentHashMap<Integer, Skeleton<?>> exports = new ConcurrentHashMap<Integer, Skeleton<?>>();
+	private final AtomicInteger nextObject = new AtomicInteger();
+	/** Metrics of the calls served. */
+	final Metrics metrics;
+	final CompressionStats compressionStats = new CompressionStats();
 
 	/**
 	 * Creates a <code>Skeleton</code> with no initial server address. The
@@ -103,12 +176,9 @@ public class Skeleton<T> implements Serializable {
 
 		// Assign the parameters
 		this.inter = c;
-		try {
-			this.listenSocket = new ServerSocket();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
 		this.methodArray = c.getDeclaredMethods();
+		this.methods = MethodTable.of(c);
+		this.metrics = new Metrics(this.methods);
 		this.address = address;
 		this.server = server;
 		String rmiExName = RMIException.class.getName();
@@ -142,6 +212,381 @@ public class Skeleton<T> implements Serializable {
 		return this.address;
 	}
 
+	/**
+	 * Sets the executor on which calls are served.
+	 * 
+	 * <p>
+	 * If no executor is set, <code>start</code> creates one using
+	 * <code>CallExecutor.threadPerTask</code>, and shuts it down when the
+	 * skeleton is stopped. An executor set by this method is not shut down by
+	 * the skeleton.
+	 * 
+	 * @param executor
+	 *            The executor, or <code>null</code> to use the default.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setExecutor(CallExecutor executor) {
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.executor = executor;
+		this.defaultExecutor = false;
+	}
+
+	/**
+	 * Selects the transport the skeleton serves connections with.
+	 * 
+	 * <p>
+	 * The default is <code>Transport.BLOCKING</code>. Stubs work the same with
+	 * either transport.
+	 * 
+	 * @param transport
+	 *            The transport.
+	 * @throws NullPointerException
+	 *             If <code>transport</code> is <code>null</code>.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setTransport(Transport transport) {
+		if (transport == null) {
+			throw new NullPointerException("Transport is null");
+		}
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.transport = transport;
+	}
+
+	/**
+	 * Enables or disables compression of large frames.
+	 * 
+	 * <p>
+	 * Compression is off by default. When it is on, the skeleton agrees to
+	 * compress frames with every stub that offers to, which all stubs do.
+	 * Frames below a size threshold are never compressed. The effect can be
+	 * judged with <code>getCompressionStats</code>.
+	 * 
+	 * @param compression
+	 *            Whether to compress frames on new connections.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setCompression(boolean compression) {
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.compression = compression;
+	}
+
+	/**
+	 * Makes the skeleton also listen on a Unix domain socket.
+	 * 
+	 * <p>
+	 * Stubs created from the skeleton carry the path of the socket file, and
+	 * connect through it rather than over TCP when they run on the same host
+	 * as the skeleton. Stubs elsewhere, or on platforms without Unix domain
+	 * sockets, use the TCP address. Connections on the socket file are always
+	 * served by event loops, as with <code>Transport.SELECTOR</code>. The file
+	 * is created when the skeleton starts, replacing any stale file left at
+	 * the path, and removed when it stops.
+	 * 
+	 * @param path
+	 *            The socket file, or <code>null</code> to listen on TCP only.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setLocalSocket(Path path) {
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.localSocket = path == null ? null : path.toAbsolutePath();
+	}
+
+	/**
+	 * Returns the Unix domain socket file of the skeleton, or
+	 * <code>null</code> if it only listens on TCP.
+	 */
+	public Path getLocalSocket() {
+		Skeleton<?> host = this.host;
+		return host != null ? host.getLocalSocket() : this.localSocket;
+	}
+
+	/**
+	 * Sets whether stubs in this JVM call the skeleton without a socket.
+	 * 
+	 * <p>
+	 * This is on by default. Stubs created in the same JVM as a running
+	 * skeleton, with its address, then pass their calls to it in memory.
+	 * Arguments and results are still copied through the codec, so the
+	 * behaviour seen by the server and the caller is that of a remote call;
+	 * only the sockets and the threads reading them are skipped. Turning it
+	 * off makes local stubs connect over the network like any other.
+	 * 
+	 * @param loopback
+	 *            Whether to accept in-memory calls from local stubs.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setLoopback(boolean loopback) {
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.loopback = loopback;
+	}
+
+	/**
+	 * Returns the compression counters for the connections of this skeleton.
+	 */
+	public CompressionStats getCompressionStats() {
+		return this.compressionStats;
+	}
+
+	/**
+	 * Limits the number of calls the skeleton runs at once.
+	 * 
+	 * <p>
+	 * Calls beyond the limit, or beyond a limit set with
+	 * <code>setMethodLimit</code>, wait in a queue until a running call
+	 * finishes. A call that arrives when the queue is full, or that waits
+	 * longer than <code>queueTimeout</code>, is not run: its stub gets an
+	 * <code>OverloadedException</code> instead. This keeps an overloaded
+	 * server answering promptly, if only to refuse calls, and tells clients
+	 * to back off. By default there are no limits. Calls in lanes set up
+	 * with <code>setLane</code> are limited by their lane instead.
+	 * 
+	 * @param maxCalls
+	 *            Maximum number of calls running at once, or zero for no
+	 *            limit.
+	 * @param queueLength
+	 *            Maximum number of calls waiting to run. If zero, calls over
+	 *            a limit are refused at once.
+	 * @param queueTimeout
+	 *            Milliseconds a call may wait before it is refused, or zero
+	 *            to wait as long as it takes.
+	 * @throws IllegalArgumentException
+	 *             If any argument is negative.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setCallLimit(int maxCalls, int queueLength,
+			long queueTimeout) {
+		if (maxCalls < 0 || queueLength < 0 || queueTimeout < 0) {
+			throw new IllegalArgumentException("Negative limit");
+		}
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.maxCalls = maxCalls;
+		this.queueLength = queueLength;
+		this.queueTimeout = queueTimeout;
+	}
+
+	/**
+	 * Limits the number of calls to one method that the skeleton runs at
+	 * once.
+	 * 
+	 * <p>
+	 * Calls over the limit wait in the queue set up by
+	 * <code>setCallLimit</code>, and are refused the same way. Calls to other
+	 * methods are not held up behind them.
+	 * 
+	 * @param method
+	 *            The name of the method, limiting each of its overloads, or
+	 *            its name and parameter types as reported in
+	 *            <code>MetricsSnapshot</code>, limiting one overload.
+	 * @param maxCalls
+	 *            Maximum number of calls running at once, or zero for no
+	 *            limit.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxCalls</code> is negative, or the interface has
+	 *             no such method.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setMethodLimit(String method, int maxCalls) {
+		if (maxCalls < 0) {
+			throw new IllegalArgumentException("Negative limit");
+		}
+		boolean found = false;
+		for (int i = 0; i < methods.size(); i++) {
+			found |= matches(methods.name(i), method);
+		}
+		if (!found) {
+			throw new IllegalArgumentException("No method " + method + " in "
+					+ inter.getName());
+		}
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.methodLimits.put(method, maxCalls);
+	}
+
+	/**
+	 * Sets up a lane of calls with its own limit and executor.
+	 * 
+	 * <p>
+	 * Calls to the methods in the lane, which are those marked with the
+	 * <code>Lane</code> annotation naming it and those put in it with
+	 * <code>setMethodLane</code>, run on the lane's executor, and no more than
+	 * <code>maxCalls</code> of them run at once. They do not count against the
+	 * limit set by <code>setCallLimit</code>, which only applies to calls
+	 * outside any lane. Calls over the lane's limit wait in the queue set up
+	 * by <code>setCallLimit</code>, and are refused the same way, but calls to
+	 * other lanes are started ahead of them. Putting bulk transfers in a lane
+	 * of their own thus keeps quick calls answered however many transfers
+	 * are in progress.
+	 * 
+	 * <p>
+	 * Setting up a lane that is already set up replaces its limit and
+	 * executor.
+	 * 
+	 * @param lane
+	 *            The name of the lane.
+	 * @param maxCalls
+	 *            Maximum number of calls in the lane running at once, or zero
+	 *            for no limit.
+	 * @param executor
+	 *            The executor to run calls in the lane on, or
+	 *            <code>null</code> to run them on the skeleton's executor.
+	 *            Like an executor given to <code>setExecutor</code>, it is
+	 *            not shut down by the skeleton.
+	 * @throws NullPointerException
+	 *             If <code>lane</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>maxCalls</code> is negative.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setLane(String lane, int maxCalls,
+			CallExecutor executor) {
+		if (lane == null) {
+			throw new NullPointerException("Lane is null");
+		}
+		if (maxCalls < 0) {
+			throw new IllegalArgumentException("Negative limit");
+		}
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.lanes.put(lane, new LaneSettings(maxCalls, executor));
+	}
+
+	/**
+	 * Puts a method in a lane, in place of any lane it is marked with.
+	 * 
+	 * <p>
+	 * The method is served in the lane once the lane has been set up with
+	 * <code>setLane</code>, and in the default lane until then.
+	 * 
+	 * @param method
+	 *            The name of the method, or its name and parameter types, as
+	 *            for <code>setMethodLimit</code>.
+	 * @param lane
+	 *            The name of the lane.
+	 * @throws NullPointerException
+	 *             If <code>lane</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If the interface has no such method.
+	 * @throws IllegalStateException
+	 *             If the skeleton is running.
+	 */
+	public synchronized void setMethodLane(String method, String lane) {
+		if (lane == null) {
+			throw new NullPointerException("Lane is null");
+		}
+		boolean found = false;
+		for (int i = 0; i < methods.size(); i++) {
+			found |= matches(methods.name(i), method);
+		}
+		if (!found) {
+			throw new IllegalArgumentException("No method " + method + " in "
+					+ inter.getName());
+		}
+		if (this.running) {
+			throw new IllegalStateException("Skeleton is running");
+		}
+		this.methodLanes.put(method, lane);
+	}
+
+	/** Limit and executor of a lane. */
+	private static class LaneSettings {
+		final int maxCalls;
+		final CallExecutor executor;
+
+		LaneSettings(int maxCalls, CallExecutor executor) {
+			this.maxCalls = maxCalls;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Returns the lane of each slot of <code>metrics</code>, numbered from one
+	 * in the order the lanes were set up, or zero for the default lane.
+	 */
+	private int[] laneOf(ArrayList<String> names) {
+		int[] laneOf = new int[methods.size() + 1];
+		for (int i = 0; i < methods.size(); i++) {
+			String lane = methods.lane(i);
+			for (String method : methodLanes.keySet()) {
+				if (matches(methods.name(i), method)) {
+					lane = methodLanes.get(method);
+				}
+			}
+			laneOf[i] = names.indexOf(lane) + 1;
+		}
+		return laneOf;
+	}
+
+	/** Returns the limit on each slot of <code>metrics</code>. */
+	private int[] methodLimits() {
+		int[] limits = new int[methods.size() + 1];
+		for (int i = 0; i < methods.size(); i++) {
+			for (String method : methodLimits.keySet()) {
+				if (matches(methods.name(i), method)) {
+					limits[i] = methodLimits.get(method);
+				}
+			}
+		}
+		return limits;
+	}
+
+	private static boolean matches(String name, String method) {
+		return name.equals(method) || name.startsWith(method + "(");
+	}
+
+	/**
+	 * Returns the metrics of the calls this skeleton has served so far.
+	 *
+	 * <p>
+	 * Metrics are kept for every call, whether or not this is ever called, and
+	 * are not reset when the skeleton is restarted. See
+	 * <code>MetricsSnapshot</code> for what is measured.
+	 */
+	public MetricsSnapshot getMetrics() {
+		return metrics.snapshot(metrics.connections.get());
+	}
+
+	/**
+	 * Returns the compressor for a connection whose stub sent the given hello,
+	 * or <code>null</code> if the connection is not to be compressed.
+	 */
+	Compressor compressor(byte[] hello) throws IOException {
+		if (compression && Frames.helloCompression(hello)) {
+			return new Compressor(compressionStats);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the executor on which calls are served, or
+	 * <code>null</code> if the skeleton has not been started and no executor
+	 * has been set.
+	 */
+	public synchronized CallExecutor getExecutor() {
+		return this.executor;
+	}
+
 	/**
 	 * Called when the listening thread exits.
 	 * 
@@ -201,10 +646,13 @@ public class Skeleton<T> implements Serializable {
 	 * Starts the skeleton server.
 	 * 
 	 * <p>
-	 * A thread is created to listen for connection requests, and the method
-	 * returns immediately. Additional threads are created when connections are
-	 * accepted. The network address used for the server is determined by which
-	 * constructor was used to create the <code>Skeleton</code> object.
+	 * With the blocking transport, a thread is created to listen for
+	 * connection requests, and accepted connections are served on the
+	 * skeleton's executor. With the selector transport, a few selector threads
+	 * are created instead, and only calls in progress are run on the executor.
+	 * In both cases the method returns immediately. The network address used
+	 * for the server is determined by which constructor was used to create the
+	 * <code>Skeleton</code> object.
 	 * 
 	 * @throws RMIException
 	 *             When the listening socket cannot be created or bound, when
@@ -212,30 +660,347 @@ public class Skeleton<T> implements Serializable {
 	 *             has already been started and has not since stopped.
 	 */
 	public synchronized void start() throws RMIException {
+		if (this.running || this.draining) {
+			throw new RMIException("Skeleton is already running");
+		}
 		try {
-			this.listenSocket.bind(address);
+			prepare();
+			this.object = 0;
+			InetSocketAddress bound;
+			// Channels served by event loops: the TCP channel with the
+			// selector transport, and the local socket with either transport
+			ArrayList<ServerSocketChannel> accepting = new ArrayList<ServerSocketChannel>();
+			try {
+				if (this.transport == Transport.SELECTOR) {
+					ServerSocketChannel tcp = ServerSocketChannel.open();
+					accepting.add(tcp);
+					tcp.bind(address);
+					bound = (InetSocketAddress) tcp.getLocalAddress();
+				} else {
+					this.listenSocket = new ServerSocket();
+					this.listenSocket.bind(address);
+					bound = (InetSocketAddress) listenSocket
+							.getLocalSocketAddress();
+				}
+				if (this.localSocket != null) {
+					accepting.add(LocalSockets.listen(this.localSocket));
+				}
+				if (!accepting.isEmpty()) {
+					this.selectorServer = new SelectorServer(this);
+					this.selectorServer.start(accepting
+							.toArray(new ServerSocketChannel[accepting.size()]));
+				}
+			} catch (IOException e) {
+				for (ServerSocketChannel channel : accepting) {
+					try {
+						channel.close();
+					} catch (IOException e1) {
+					}
+				}
+				if (this.localSocket != null) {
+					LocalSockets.unlink(this.localSocket);
+				}
+				throw e;
+			}
+			if (this.listenSocket != null) {
+				this.listener = new Thread(new ListeningThread(
+						this.listenSocket, this.admission));
+				this.listener.start();
+			}
 			if (this.address == null) {
-				this.address = (InetSocketAddress) listenSocket
-						.getLocalSocketAddress();
+				this.address = bound;
+			}
+			this.running = true;
+			if (this.loopback) {
+				Loopback.register(this, bound);
 			}
-			Thread t = new Thread(new ListeningThread());
-			t.start();
 		} catch (IOException e) {
 			e.printStackTrace();
-			throw new RMIException("Failed to create the thread!");
+			if (this.listenSocket != null) {
+				try {
+					this.listenSocket.close();
+				} catch (IOException e1) {
+				}
+				this.listenSocket = null;
+			}
+			this.selectorServer = null;
+			throw new RMIException("Failed to create the thread!", e);
 		}
 	}
 
+	/**
+	 * Starts the skeleton on the listener of another, running skeleton,
+	 * instead of opening a listener of its own.
+	 * 
+	 * <p>
+	 * The skeleton is given a number among those exported on the listener,
+	 * and stubs created from it carry that number along with the listener's
+	 * address. Calls to any of the skeletons exported on one listener
+	 * therefore share its port, its accept thread or event loops, and the
+	 * pooled connections of each client, and are sorted out by number as
+	 * they arrive. Each skeleton keeps its own executor, admission limits and
+	 * metrics. The address the skeleton was created with, if any, is not
+	 * used.
+	 * 
+	 * <p>
+	 * Stopping this skeleton withdraws it from the listener; stopping the
+	 * skeleton that owns the listener stops this one too. Stubs created
+	 * before the skeleton was stopped do not reach it once it is started
+	 * again, as it is then given a new number.
+	 * 
+	 * @param host
+	 *            The running skeleton whose listener to share. It must own
+	 *            its listener.
+	 * @throws RMIException
+	 *             If this skeleton is already running.
+	 * @throws IllegalStateException
+	 *             If <code>host</code> is not running, or is itself exported
+	 *             on another skeleton's listener.
+	 * @throws NullPointerException
+	 *             If <code>host</code> is <code>null</code>.
+	 */
+	public synchronized void startOn(Skeleton<?> host) throws RMIException {
+		if (host == null) {
+			throw new NullPointerException("Host skeleton is null");
+		}
+		if (this.running || this.draining) {
+			throw new RMIException("Skeleton is already running");
+		}
+		if (!host.running || host.host != null || host == this) {
+			throw new IllegalStateException(
+					"Host skeleton does not own a running listener");
+		}
+		prepare();
+		this.address = host.address;
+		this.host = host;
+		this.object = host.nextObject.incrementAndGet();
+		host.exports.put(this.object, this);
+		this.running = true;
+	}
+
+	/** Sets up the executor and admission control for a start. */
+	private void prepare() {
+		if (this.executor == null) {
+			this.executor = CallExecutor.threadPerTask();
+			this.defaultExecutor = true;
+		}
+		ArrayList<String> names = new ArrayList<String>(this.lanes.keySet());
+		int[] laneLimits = new int[names.size() + 1];
+		CallExecutor[] executors = new CallExecutor[names.size() + 1];
+		laneLimits[0] = this.maxCalls;
+		executors[0] = this.executor;
+		for (int i = 0; i < names.size(); i++) {
+			LaneSettings lane = this.lanes.get(names.get(i));
+			laneLimits[i + 1] = lane.maxCalls;
+			executors[i + 1] = lane.executor != null ? lane.executor
+					: this.executor;
+		}
+		this.admission = new Admission(this.metrics, methodLimits(),
+				laneOf(names), laneLimits, executors, this.queueLength,
+				this.queueTimeout);
+		this.stop = false;
+	}
+
+	/**
+	 * Returns the skeleton exported on this skeleton's listener with the
+	 * given number, or <code>null</code> if there is none.
+	 */
+	Skeleton<?> exported(int object) {
+		return object == 0 ? this : exports.get(object);
+	}
+
+	/**
+	 * Returns the skeleton a call received on this skeleton's listener is
+	 * for. A call for a number with no skeleton exported is refused, and
+	 * answered by this skeleton.
+	 * 
+	 * @throws IOException
+	 *             If the frame is not a call frame.
+	 */
+	Skeleton<?> route(Frame request) throws IOException {
+		int object = Frames.object(request.payload);
+		Skeleton<?> target = exported(object);
+		if (target == null) {
+			request.refused = new RMIException("No object " + object
+					+ " exported at " + address);
+			return this;
+		}
+		return target;
+	}
+
+	/**
+	 * Serves one call.
+	 * 
+	 * <p>
+	 * The call is decoded with the codec of the connection it came from, the
+	 * method is invoked on the server object, and the encoded reply is
+	 * returned, tagged with the identifier of the call. A batch runs all of
+	 * its calls and answers them in one reply. This is shared by both
+	 * transports.
+	 * 
+	 * <p>
+	 * A call whose caller's deadline has passed by the time it is served is
+	 * answered with a <code>DeadlineExceededException</code> without being
+	 * run, since nobody is waiting for its result. A method already running
+	 * when the deadline passes is not interrupted.
+	 * 
+	 * @throws IOException
+	 *             If the call cannot be decoded or the reply cannot be encoded.
+	 *             The connection the call came from should then be closed.
+	 */
+	Message serve(Channel channel, Frame request) throws IOException,
+			ClassNotFoundException {
+		Codec codec = channel.codec();
+		long start = System.nanoTime();
+		int method = Frames.method(request.payload);
+		int slot = metrics.slot(method);
+		int budget = Frames.budget(request.payload);
+		long deadline = request.received + budget * 1000000L;
+		if (request.refused == null && budget > 0 && start - deadline >= 0) {
+			request.refused = new DeadlineExceededException(
+					"Deadline passed before the call started");
+		}
+		if (request.refused != null) {
+			metrics.failed(slot);
+			Message reply = Frames.encode(codec, false, request.refused);
+			Frames.setId(reply, Frames.id(request.payload));
+			return reply;
+		}
+		Object[] args;
+		// Callbacks among the arguments are bound to the connection
+		Callbacks.decoding.set(channel);
+		try {
+			args = Frames.decodeArgs(codec, request);
+		} catch (IOException | ClassNotFoundException e) {
+			metrics.failed(slot);
+			throw e;
+		} finally {
+			Callbacks.decoding.remove();
+		}
+		long decoded = System.nanoTime();
+
+		boolean success = true;
+		Object result;
+		if (method == Frames.BATCH) {
+			result = serveBatch(args, budget > 0 ? deadline : 0);
+		} else {
+			Object[] outcome = invoke(method, args);
+			success = (Boolean) outcome[0];
+			result = outcome[1];
+		}
+		long invoked = System.nanoTime();
+		metrics.invoked(slot, invoked - decoded, success);
+
+		Message reply = Frames.encode(codec, success, result);
+		Frames.setId(reply, Frames.id(request.payload));
+		long end = System.nanoTime();
+		metrics.completed(slot, start - request.received, decoded - start,
+				end - invoked, end - request.received, request.size(),
+				reply.size());
+		return reply;
+	}
+
+	/**
+	 * Invokes one method on the server object.
+	 *
+	 * @return The success flag, followed by the result or the exception thrown.
+	 */
+	private Object[] invoke(int method, Object[] args) {
+		if (method < 0 || method >= methods.size()) {
+			return new Object[] { false,
+					new RMIException("No such method in remote interface") };
+		}
+		try {
+			return new Object[] { true, methods.invoke(method, server, args) };
+		} catch (Throwable t) {
+			return new Object[] { false, t };
+		}
+	}
+
+	/**
+	 * Runs the calls of a batch one after another, in the order they were
+	 * added. A call that throws does not stop the calls after it. Calls that
+	 * have not started when the deadline passes are answered with a
+	 * <code>DeadlineExceededException</code>.
+	 * 
+	 * <p>
+	 * The batch was admitted as a single call in the default lane. A batch
+	 * holding a call to a method in another lane, or to a method with a limit
+	 * of its own, would get around that lane or limit, so none of its calls
+	 * are run: each is answered with an <code>RMIException</code>.
+	 *
+	 * @param deadline
+	 *            <code>System.nanoTime</code> of the caller's deadline, or
+	 *            zero if it has none.
+	 * @return Each call's success flag followed by its result or exception.
+	 * @throws StreamCorruptedException
+	 *             If the arguments are not those of a batch.
+	 */
+	private Object[] serveBatch(Object[] args, long deadline)
+			throws IOException {
+		if (args == null || args.length != 2 || !(args[0] instanceof Object[])
+				|| !(args[1] instanceof Object[][])) {
+			throw new StreamCorruptedException("Malformed batch");
+		}
+		Object[] ids = (Object[]) args[0];
+		Object[][] calls = (Object[][]) args[1];
+		if (ids.length != calls.length) {
+			throw new StreamCorruptedException("Malformed batch");
+		}
+		Object[] results = new Object[2 * ids.length];
+		Admission admission = this.admission;
+		for (int i = 0; admission != null && i < ids.length; i++) {
+			int method = (Integer) ids[i];
+			if (!admission.separate(metrics.slot(method))) {
+				continue;
+			}
+			RMIException refusal = new RMIException("Call to "
+					+ methods.name(method) + " cannot be batched: it is in a "
+					+ "lane or limited on its own");
+			for (int j = 0; j < ids.length; j++) {
+				results[2 * j] = false;
+				results[2 * j + 1] = refusal;
+				metrics.failed(metrics.slot((Integer) ids[j]));
+			}
+			return results;
+		}
+		for (int i = 0; i < ids.length; i++) {
+			long start = System.nanoTime();
+			if (deadline != 0 && start - deadline >= 0) {
+				results[2 * i] = false;
+				results[2 * i + 1] = new DeadlineExceededException(
+						"Deadline passed before the call started");
+				metrics.failed(metrics.slot((Integer) ids[i]));
+				continue;
+			}
+			Object[] outcome = invoke((Integer) ids[i], calls[i]);
+			metrics.invoked(metrics.slot((Integer) ids[i]), System.nanoTime()
+					- start, (Boolean) outcome[0]);
+			results[2 * i] = outcome[0];
+			results[2 * i + 1] = outcome[1];
+		}
+		return results;
+	}
+
 	private class ListeningThread implements Runnable {
+		private final ServerSocket listenSocket;
+		private final Admission admission;
+
+		ListeningThread(ServerSocket listenSocket, Admission admission) {
+			this.listenSocket = listenSocket;
+			this.admission = admission;
+		}
 
 		@Override
 		public void run() {
 			try {
 				while (!stop) {
 					Socket clientSocket = listenSocket.accept();
-					ClientService client = new ClientService(clientSocket);
-					Thread t = new Thread(client);
-					t.start();
+					ClientService client = new ClientService(clientSocket,
+							admission);
+					services.add(client);
+					metrics.connections.incrementAndGet();
+					readers.execute(client);
 				}
 			} catch (IOException e) {
 				
@@ -243,43 +1008,199 @@ public class Skeleton<T> implements Serializable {
 		}
 	}
 
-	private class ClientService implements Runnable {
+	/**
+	 * Serves calls from one stub connection.
+	 *
+	 * <p>
+	 * A reader thread, which is not taken from the skeleton's executor, takes
+	 * call frames off the connection and runs each call on the skeleton's
+	 * executor, so calls pipelined by a stub are served at the same time and
+	 * answered in whatever order they finish. The connection
+	 * is kept open until the stub closes it, it stays idle for longer than
+	 * <code>IDLE_TIMEOUT</code>, or the skeleton is stopped.
+	 */
+	private class ClientService implements Runnable, Channel {
 		Socket clientSocket;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		final Admission admission;
+		DataInputStream in = null;
+		OutputStream out = null;
+		/** The codec agreed on in the handshake. */
+		Codec codec = null;
+		/** Compresses frames, if agreed on in the handshake. */
+		Compressor compressor = null;
+		/** Number of calls being served. */
+		int inFlight = 0;
+		/** Whether the connection is to be closed after its last call. */
+		boolean closing = false;
+		volatile boolean closed = false;
+		/** Whether a callback is bound to the connection. */
+		volatile boolean pinned = false;
 
-		public ClientService(Socket clientSocket) {
+		public ClientService(Socket clientSocket, Admission admission) {
 			this.clientSocket = clientSocket;
-
+			this.admission = admission;
 		}
 
 		public void run() {
 			try {
-				if (!stop) {
-					this.out = new ObjectOutputStream(
-							this.clientSocket.getOutputStream());
-					this.out.flush();
-					this.in = new ObjectInputStream(
-							this.clientSocket.getInputStream());
-
-					String methodName = (String) in.readObject();
-					Class[] argTypes = (Class[]) in.readObject();
-					Object[] args = (Object[]) in.readObject();
-					Method m = inter.getDeclaredMethod(methodName, argTypes);
-					Object result = m.invoke(server, args);
-					out.writeObject(true);
-					out.writeObject(result);
-					clientSocket.close();
+				this.clientSocket.setTcpNoDelay(true);
+				this.clientSocket.setSoTimeout(IDLE_TIMEOUT);
+				this.out = this.clientSocket.getOutputStream();
+				this.in = new DataInputStream(new BufferedInputStream(
+						this.clientSocket.getInputStream()));
+
+				byte[] hello = Frames.read(in);
+				this.codec = Frames.negotiate(hello);
+				if (this.codec == null) {
+					// None of the stub's codecs are known here
+					return;
 				}
-			} catch (Exception e) {
-				try {
-					out.writeObject(false);
-					out.writeObject(e.getCause());
-					clientSocket.close();
-				} catch (IOException e1) {
-					System.out.println("Error in writing exception to user.");
+				this.compressor = compressor(hello);
+				Frames.write(out, Frames.welcome(this.codec.name(),
+						this.compressor != null));
+
+				while (!stop) {
+					Frame request;
+					try {
+						request = Frames.readFrame(in, compressor);
+					} catch (SocketTimeoutException e) {
+						if (isIdle() && !pinned) {
+							break;
+						}
+						continue;
+					} catch (EOFException e) {
+						// The stub has closed the connection
+						break;
+					}
+					if (Frames.isPing(request.payload)) {
+						// Answered here rather than on the executor, so that a
+						// busy skeleton still shows the connection is alive
+						ByteBuffer[] pong = Frames.buffers(Frames.pong(request),
+								compressor);
+						synchronized (out) {
+							Frames.write(out, pong);
+						}
+						continue;
+					}
+					Skeleton<?> target = route(request);
+					if (!beginCall()) {
+						break;
+					}
+					dispatch(target, request);
 				}
+			} catch (IOException e) {
+				// The stub went away; it will open a new connection for its
+				// next call
+			} finally {
+				closeWhenDone();
+			}
+		}
 
+		/**
+		 * Runs one call on the executor of the skeleton it is for and writes
+		 * its reply.
+		 */
+		private void dispatch(final Skeleton<?> target, final Frame request) {
+			Admission admission = target == Skeleton.this ? this.admission
+					: target.admission;
+			try {
+				admission.execute(request, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Message reply = target.serve(ClientService.this,
+									request);
+							ByteBuffer[] buffers = Frames.buffers(reply,
+									compressor);
+							synchronized (out) {
+								Frames.write(out, buffers);
+							}
+						} catch (IOException e) {
+							close();
+						} catch (Exception e) {
+							if (!stop) {
+								service_error(new RMIException(
+										"Error in serving connection", e));
+							}
+							close();
+						} finally {
+							endCall();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// No room to serve the call; the stub will see the connection
+				// closed
+				close();
+				endCall();
+			}
+		}
+
+		@Override
+		public Codec codec() {
+			return codec;
+		}
+
+		@Override
+		public void push(Message push) throws IOException {
+			if (closed) {
+				throw new EOFException("Connection closed");
+			}
+			ByteBuffer[] buffers = Frames.buffers(push, compressor);
+			try {
+				synchronized (out) {
+					Frames.write(out, buffers);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void pin() {
+			pinned = true;
+		}
+
+		synchronized boolean beginCall() {
+			if (closed || closing) {
+				return false;
+			}
+			inFlight++;
+			return true;
+		}
+
+		synchronized void endCall() {
+			inFlight--;
+			if (closing && inFlight == 0) {
+				close();
+			}
+		}
+
+		synchronized boolean isIdle() {
+			return inFlight == 0;
+		}
+
+		/**
+		 * Stops taking calls from the connection, and closes it now if no call
+		 * is being served on it, or else once the last call has returned.
+		 */
+		synchronized void closeWhenDone() {
+			closing = true;
+			if (inFlight == 0) {
+				close();
+			}
+		}
+
+		synchronized void close() {
+			if (!closed) {
+				metrics.connections.decrementAndGet();
+			}
+			closed = true;
+			services.remove(this);
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
 			}
 		}
 	}
@@ -288,18 +1209,187 @@ public class Skeleton<T> implements Serializable {
 	 * Stops the skeleton server, if it is already running.
 	 * 
 	 * <p>
-	 * The listening thread terminates. Threads created to service connections
+	 * The listening thread terminates, and skeletons exported on the
+	 * skeleton's listener with <code>startOn</code> are stopped as well.
+	 * Threads created to service connections
 	 * may continue running until their invocations of the <code>service</code>
-	 * method return. The server stops at some later time; the method
-	 * <code>stopped</code> is called at that point. The server may then be
-	 * restarted.
+	 * method return. Idle connections are closed immediately, and connections
+	 * with a call in progress are closed once that call returns. The server
+	 * stops at some later time; the method <code>stopped</code> is called at
+	 * that point. The server may then be restarted.
 	 */
 	public synchronized void stop() {
+		for (Skeleton<?> exported : new ArrayList<Skeleton<?>>(exports.values())) {
+			exported.stop();
+		}
+		halt();
+		release();
+	}
+
+	/**
+	 * Stops the skeleton server, first letting the calls it has received
+	 * finish.
+	 * 
+	 * <p>
+	 * New connections are refused at once, and no further calls are read from
+	 * open connections. Calls already received, including those waiting to be
+	 * admitted, are run and answered as usual for up to <code>timeout</code>
+	 * milliseconds, and each connection is closed once its last reply has
+	 * been sent. When the timeout expires, calls still waiting are refused,
+	 * and the connections still open are closed: the calls still running on
+	 * them are cut off, and run to completion without their replies being
+	 * sent. Skeletons exported on the skeleton's listener with
+	 * <code>startOn</code> are drained along with it, within the same
+	 * timeout.
+	 * 
+	 * <p>
+	 * The method returns once the drain is over, after calling
+	 * <code>stopped</code>. Stubs whose calls were refused or cut off see a
+	 * <code>TransportException</code> or an <code>OverloadedException</code>,
+	 * and retry them elsewhere if they may.
+	 * 
+	 * @param timeout
+	 *            Milliseconds to let calls in progress finish.
+	 * @return The number of calls answered during the drain, and the number
+	 *         cut off.
+	 * @throws IllegalArgumentException
+	 *             If <code>timeout</code> is negative.
+	 */
+	public DrainReport stop(long timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Negative timeout");
+		}
+		long deadline = System.nanoTime() + timeout * 1000000;
+		ArrayList<Skeleton<?>> skeletons = new ArrayList<Skeleton<?>>();
+		long[] before;
+		SelectorServer selector;
+		synchronized (this) {
+			if (!this.running) {
+				stop();
+				return new DrainReport(0, 0);
+			}
+			skeletons.add(this);
+			skeletons.addAll(exports.values());
+			selector = this.selectorServer;
+			before = new long[skeletons.size()];
+			for (int i = 0; i < before.length; i++) {
+				Skeleton<?> s = skeletons.get(i);
+				synchronized (s) {
+					before[i] = s.admission.finished();
+					s.draining = true;
+					s.halt();
+				}
+			}
+		}
+
+		while (!drained(skeletons) && deadline - System.nanoTime() > 0) {
+			try {
+				Thread.sleep(DRAIN_POLL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		int cutOff = 0;
+		long drained = 0;
+		for (int i = 0; i < before.length; i++) {
+			Admission admission = skeletons.get(i).admission;
+			cutOff += admission.unfinished();
+			drained += admission.finished() - before[i];
+		}
+		// The drain is over: close what is left, and refuse what is waiting
+		ArrayList<ClientService> open;
+		synchronized (services) {
+			open = new ArrayList<ClientService>(services);
+		}
+		for (ClientService client : open) {
+			client.close();
+		}
+		if (selector != null) {
+			selector.closeAll();
+		}
+		for (Skeleton<?> s : skeletons) {
+			synchronized (s) {
+				s.draining = false;
+				s.release();
+			}
+		}
+		return new DrainReport(drained, cutOff);
+	}
+
+	/**
+	 * Returns whether the given skeletons have answered all their calls and
+	 * closed all their connections.
+	 */
+	private static boolean drained(List<Skeleton<?>> skeletons) {
+		for (Skeleton<?> s : skeletons) {
+			if (s.admission.unfinished() > 0
+					|| s.metrics.connections.get() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting connections and calls. Idle connections are closed
+	 * now, busy ones once their calls in progress have been answered.
+	 */
+	private synchronized void halt() {
 		this.stop = true;
-		try {
-			this.listenSocket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		this.running = false;
+		Loopback.unregister(this);
+		if (this.host != null) {
+			this.host.exports.remove(this.object, this);
+			this.host = null;
+		}
+		if (this.selectorServer != null) {
+			this.selectorServer.stop();
+			this.selectorServer = null;
+			if (this.localSocket != null) {
+				LocalSockets.unlink(this.localSocket);
+			}
+		}
+		if (this.listenSocket != null) {
+			try {
+				this.listenSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			this.listenSocket = null;
+			// The socket is only released once the listening thread has left
+			// accept, so wait for it before the port is reported free
+			if (this.listener != Thread.currentThread()) {
+				try {
+					this.listener.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			this.listener = null;
+		}
+		ArrayList<ClientService> open;
+		synchronized (services) {
+			open = new ArrayList<ClientService>(services);
+		}
+		for (ClientService client : open) {
+			client.closeWhenDone();
+		}
+	}
+
+	/**
+	 * Refuses the calls still waiting to be admitted, shuts down the default
+	 * executor, and reports the skeleton stopped.
+	 */
+	private void release() {
+		if (this.admission != null) {
+			this.admission.refuseAll();
+		}
+		if (this.defaultExecutor) {
+			this.executor.shutdown();
+			this.executor = null;
+			this.defaultExecutor = false;
 		}
 		stopped(null);
 	}
@@ -66,33 +66,12 @@ public abstract class Stub
     		throw new UnknownHostException();
     	}
     	
-    	String rmiExName = RMIException.class.getName();
-    	boolean failure = false;
-    	
-    	// Check if the methods are remote
-    	for (Method m : c.getDeclaredMethods()) {
-    		int exLen = m.getExceptionTypes().length;
-    		int counter = 0;
-    		
-    		for (Class<?> exception : m.getExceptionTypes()){
-    			String exceptionName = exception.getName();    			
-    			if (!exceptionName.equals(rmiExName)) {
-    				counter++;
-                }
-    		}
-    		
-    		// All Exceptions are not RMIException
-    		if (counter == exLen) {
-    			failure = true;
-    		}
-    	}
-    	
-    	if (failure == true) {
-    		throw new Error("c is not remote interface");
-    	}
+    	checkRemote(c);
     	
     	// Create the proxy Handler
     	ProxyHandler h = new ProxyHandler(address,c);
+    	h.object = skeleton.object;
+    	h.localSocket = localSocket(skeleton);
     	
     	@SuppressWarnings("unchecked")
 		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, h);
@@ -143,33 +122,12 @@ public abstract class Stub
     	
     	InetSocketAddress address = new InetSocketAddress(hostname,serverPort);
     	
-    	String rmiExName = RMIException.class.getName();
-    	boolean failure = false;
-    	
-    	// Check if the methods are remote
-    	for (Method m : c.getDeclaredMethods()) {
-    		int exLen = m.getExceptionTypes().length;
-    		int counter = 0;
-    		
-    		for (Class<?> exception : m.getExceptionTypes()){
-    			String exceptionName = exception.getName();    			
-    			if (!exceptionName.equals(rmiExName)) {
-    				counter++;
-                }
-    		}
-    		
-    		// All Exceptions are not RMIException
-    		if (counter == exLen) {
-    			failure = true;
-    		}
-    	}
-    	
-    	if (failure == true) {
-    		throw new Error("c is not remote interface");
-    	}
+    	checkRemote(c);
     	
     	// Create the proxy Handler
     	ProxyHandler h = new ProxyHandler(address,c);
+    	h.object = skeleton.object;
+    	h.localSocket = localSocket(skeleton);
     	
     	@SuppressWarnings("unchecked")
 		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, h);
@@ -199,6 +157,334 @@ public abstract class Stub
     		throw new NullPointerException();
     	}
     	
+    	checkRemote(c);
+    	
+    	// Create the proxy Handler
+    	ProxyHandler h = new ProxyHandler(address,c);
+    	
+    	@SuppressWarnings("unchecked")
+		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, h);
+    	return p;
+    }
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        <p>
+        The asynchronous stub sends calls over the same connections as the
+        stubs created by <code>create</code>, but returns a future for each
+        call instead of waiting for the reply; see <code>AsyncStub</code>.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c,
+                                               InetSocketAddress address)
+    {
+    	if (address == null || c == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	checkRemote(c);
+    	
+    	return new AsyncStub<T>(c, new ProxyHandler(address, c));
+    }
+
+    /** Returns an asynchronous view of an existing stub.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by one of the <code>create</code> methods,
+                    possibly received from another host.
+        @return An asynchronous stub for the same remote object.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub for
+                                         the interface <code>c</code>.
+     */
+    public static <T> AsyncStub<T> async(Class<T> c, T stub)
+    {
+    	if (c == null || stub == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	return new AsyncStub<T>(c, handler(c, stub));
+    }
+
+    /** Returns a stub for the same remote object whose calls time out.
+
+        <p>
+        Every call through the returned stub fails with a
+        <code>DeadlineExceededException</code> if its reply has not arrived
+        within <code>callTimeout</code> milliseconds. Opening a connection for
+        a call fails after <code>connectTimeout</code> milliseconds, or sooner
+        if the call's deadline comes first. The time left is sent with each
+        call, so that the skeleton does not start calls whose caller has given
+        up. A <code>Deadline</code> set by the calling thread also applies.
+
+        <p>
+        The timeouts belong to the returned stub object only. They are not
+        sent along when the stub is passed to another host.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by one of the <code>create</code> methods,
+                    possibly received from another host.
+        @param connectTimeout Milliseconds to wait for a connection, or zero
+                              for no limit.
+        @param callTimeout Milliseconds to wait for each reply, or zero for no
+                           limit.
+        @return A stub with the given timeouts.
+        @throws NullPointerException If <code>c</code> or <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub for
+                                         the interface <code>c</code>, or a
+                                         timeout is negative.
+     */
+    public static <T> T withTimeouts(Class<T> c, T stub, long connectTimeout,
+                                     long callTimeout)
+    {
+    	if (c == null || stub == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	if (connectTimeout < 0 || callTimeout < 0) {
+    		throw new IllegalArgumentException("Negative timeout");
+    	}
+    	
+    	ProxyHandler h = handler(c, stub).copy();
+    	h.connectTimeout = connectTimeout;
+    	h.callTimeout = callTimeout;
+    	
+    	@SuppressWarnings("unchecked")
+		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, h);
+    	return p;
+    }
+
+    /** Returns a stub for the same remote object that retries idempotent
+        calls.
+
+        <p>
+        A call through the returned stub to a method marked
+        <code>Idempotent</code> that fails with a
+        <code>TransportException</code>, or that the skeleton refuses with an
+        <code>OverloadedException</code>, is made again after a random backoff
+        that grows exponentially with each failure, up to the number of
+        attempts the policy allows. The exception from the last attempt is
+        thrown if none succeeds. The call timeout of the stub, like a
+        <code>Deadline</code>, bounds the whole call with all its attempts,
+        and no attempt is started that could not finish before that deadline.
+        Calls to other methods are never
+        retried, since they may have run on the server before the failure.
+
+        <p>
+        Like timeouts, the policy belongs to the returned stub object only,
+        and is kept by <code>withTimeouts</code>.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by one of the <code>create</code> methods,
+                    possibly received from another host.
+        @param policy The retry policy.
+        @return A stub with the given retry policy.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub for
+                                         the interface <code>c</code>.
+     */
+    public static <T> T withRetries(Class<T> c, T stub, RetryPolicy policy)
+    {
+    	if (c == null || stub == null || policy == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	ProxyHandler h = handler(c, stub).copy();
+    	h.retryPolicy = policy;
+    	
+    	@SuppressWarnings("unchecked")
+		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, h);
+    	return p;
+    }
+
+    /** Returns a stub that calls any one of several equivalent remote
+        objects.
+
+        <p>
+        Calls go to the first replica until one fails in transport, and then
+        stay with whichever replica answered last. A call to a method marked
+        <code>Idempotent</code> that fails with a
+        <code>TransportException</code> or an <code>OverloadedException</code>
+        is made again on the next replica straight away, and, once every
+        replica has failed it, after a backoff as described for
+        <code>withRetries</code>. The policy bounds the total number of
+        attempts across all replicas. Calls to other methods are made on one
+        replica only.
+
+        <p>
+        The timeouts of each replica stub apply to the attempts made on it.
+        The returned stub is not a stub for a single remote object: it cannot
+        be passed to <code>withTimeouts</code> or <code>async</code>, and it is
+        only equal to another failover stub for the same replicas in the same
+        order.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote objects.
+        @param replicas Stubs for the remote objects, in order of preference.
+        @param policy The retry policy.
+        @return A stub for all of the replicas.
+        @throws NullPointerException If any argument or replica is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>replicas</code> is empty, or
+                                         one of them is not a stub for the
+                                         interface <code>c</code>.
+     */
+    public static <T> T failover(Class<T> c, java.util.List<T> replicas,
+                                 RetryPolicy policy)
+    {
+    	if (c == null || replicas == null || policy == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	if (replicas.isEmpty()) {
+    		throw new IllegalArgumentException("No replicas");
+    	}
+    	
+    	ProxyHandler[] handlers = new ProxyHandler[replicas.size()];
+    	for (int i = 0; i < handlers.length; i++) {
+    		if (replicas.get(i) == null) {
+    			throw new NullPointerException();
+    		}
+    		// Retries are made across the replicas, not on each of them
+    		handlers[i] = handler(c, replicas.get(i)).copy();
+    		handlers[i].retryPolicy = null;
+    	}
+    	
+    	@SuppressWarnings("unchecked")
+		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c},
+				new FailoverHandler(c, handlers, policy));
+    	return p;
+    }
+
+    /** Returns the local socket path stubs for a skeleton carry, if any. */
+    private static String localSocket(Skeleton<?> skeleton)
+    {
+    	java.nio.file.Path path = skeleton.getLocalSocket();
+    	return path == null ? null : path.toString();
+    }
+
+    /** Returns the handler of a stub for the interface <code>c</code>.
+
+        @throws IllegalArgumentException If <code>stub</code> is not a stub for
+                                         the interface <code>c</code>.
+     */
+    private static ProxyHandler handler(Class<?> c, Object stub)
+    {
+    	if (!Proxy.isProxyClass(stub.getClass())
+    			|| !(Proxy.getInvocationHandler(stub) instanceof ProxyHandler)) {
+    		throw new IllegalArgumentException("Not a stub");
+    	}
+    	
+    	ProxyHandler h = (ProxyHandler) Proxy.getInvocationHandler(stub);
+    	if (h.c != c) {
+    		throw new IllegalArgumentException("Stub does not implement "
+    				+ c.getName());
+    	}
+    	
+    	return h;
+    }
+
+    /** Exports a listener, so that skeletons can call it back.
+
+        <p>
+        The returned callback object may be passed as an argument in a call
+        through any stub. The skeleton receives a copy bound to the connection
+        the call was sent on, and each call it makes on that copy is pushed
+        back over the connection and run on the listener in this JVM. Pushed
+        calls are one-way: the skeleton does not wait for them to run, and
+        learns nothing of their outcome. They are run on a pool of daemon
+        threads, one at a time for each listener, in the order they were
+        pushed. In the skeleton, a call on the copy fails with an
+        <code>RMIException</code> once the connection has closed.
+
+        <p>
+        A connection that a callback has been sent on is kept open while
+        idle, on both sides, so that pushed calls can still reach this JVM.
+
+        @param c The listener interface. Like a remote interface, each of its
+                 methods must be marked as throwing <code>RMIException</code>,
+                 and must also return <code>void</code>.
+        @param listener The object to run pushed calls on.
+        @return The callback object to pass to skeletons.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> is not a listener interface.
+     */
+    public static <L> L export(Class<L> c, L listener)
+    {
+    	if (c == null || listener == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	if (!c.isInterface()) {
+    		throw new Error("c is not an interface");
+    	}
+    	
+    	checkRemote(c);
+    	for (Method m : c.getDeclaredMethods()) {
+    		if (m.getReturnType() != void.class) {
+    			throw new Error("Listener method " + m.getName()
+    					+ " does not return void");
+    		}
+    	}
+    	
+    	return Callbacks.export(c, listener);
+    }
+
+    /** Stops running pushed calls on a listener.
+
+        <p>
+        Calls pushed to the callback afterwards are dropped. Skeletons are not
+        told, and may go on pushing calls until the connection closes.
+
+        @param callback A callback object returned by <code>export</code>.
+        @return <code>true</code> if the callback was exported, and
+                <code>false</code> otherwise.
+     */
+    public static boolean unexport(Object callback)
+    {
+    	return Callbacks.unexport(callback);
+    }
+
+    /** Returns the metrics of the calls made by all stubs for an interface
+        in this JVM.
+
+        <p>
+        See <code>MetricsSnapshot</code> for what is measured. The number of
+        active connections reported is that of all connections from this JVM
+        to any skeleton.
+
+        @param c A <code>Class</code> object representing a remote interface.
+        @return A snapshot of the metrics as they are now.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+     */
+    public static MetricsSnapshot metrics(Class<?> c)
+    {
+    	if (c == null) {
+    		throw new NullPointerException();
+    	}
+    	
+    	return Metrics.client(c).snapshot(ConnectionPool.shared.size());
+    }
+
+    /** Checks that every method of <code>c</code> is marked as throwing
+        <code>RMIException</code>.
+
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    private static void checkRemote(Class<?> c)
+    {
     	String rmiExName = RMIException.class.getName();
     	boolean failure = false;
     	
@@ -207,7 +493,7 @@ public abstract class Stub
     		int exLen = m.getExceptionTypes().length;
     		int counter = 0;
     		
-    		for (Class<?> exception : m.getExceptionTypes()) {
+    		for (Class<?> exception : m.getExceptionTypes()){
     			String exceptionName = exception.getName();    			
     			if (!exceptionName.equals(rmiExName)) {
     				counter++;
@@ -223,12 +509,5 @@ public abstract class Stub
     	if (failure == true) {
     		throw new Error("c is not remote interface");
     	}
-    	
-    	// Create the proxy Handler
-    	ProxyHandler h = new ProxyHandler(address,c);
-    	
-    	@SuppressWarnings("unchecked")
-		T p = (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, h);
-    	return p;
     }
 }
@@ -0,0 +1,39 @@
+package rmi;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer shared by the RMI library, for call deadlines and admission queue
+ * expiry.
+ *
+ * <p>
+ * A single daemon thread runs the expired tasks, which must therefore be
+ * short. Cancelled tasks are removed at once, so that calls which complete in
+ * time leave nothing behind.
+ */
+class Timeouts {
+	private static final ScheduledThreadPoolExecutor timer;
+
+	static {
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "rmi-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private Timeouts() {
+	}
+
+	/** Runs a task after the given number of nanoseconds. */
+	static ScheduledFuture<?> schedule(Runnable task, long nanos) {
+		return timer.schedule(task, nanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,25 @@
+package rmi;
+
+/**
+ * Server side transports available to a <code>Skeleton</code>.
+ *
+ * <p>
+ * Both transports speak the same framed protocol, so a stub does not need to
+ * know which one the skeleton it talks to uses.
+ */
+public enum Transport {
+	/**
+	 * Blocking sockets. Each open connection has a reader thread of its own,
+	 * which waits for the next call between calls; the calls themselves run
+	 * on the skeleton's executor.
+	 */
+	BLOCKING,
+
+	/**
+	 * Non-blocking channels multiplexed by a small number of selector threads.
+	 * Connections cost no thread while they are idle; only calls in progress
+	 * occupy a task on the skeleton's executor. This suits servers with many
+	 * idle or slow clients.
+	 */
+	SELECTOR
+}
@@ -0,0 +1,20 @@
+package rmi;
+
+/** Thrown when a stub cannot deliver a call or cannot receive its reply.
+
+    <p>
+    Either no connection to the skeleton could be opened, in which case the
+    method did not run, or the connection failed while the call was in
+    flight, in which case it may or may not have run. Calls to
+    <code>Idempotent</code> methods may be made again safely; stubs do so
+    themselves when they are given a <code>RetryPolicy</code>.
+ */
+public class TransportException extends RMIException
+{
+    /** Creates a <code>TransportException</code> with a message string and
+        the network error that caused it. */
+    public TransportException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
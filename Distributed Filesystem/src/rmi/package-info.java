@@ -1,74 +1,153 @@
-/** Remote method invocation (RMI) library.
-
-    <p>
-    This package contains two major classes, <code>Skeleton</code> and
-    <code>Stub</code>, which can be used to implement <em>remote method
-    invocation</em> (RMI). In RMI, a client possesses a <em>stub object</em>.
-    The stub object purports to implement a certain functionality. In fact, the
-    functionality is implemented remotely by a server. The stub object merely
-    marshals the arguments given to its methods and transmits them over a
-    network to the server. It then waits for the server to provide the result,
-    which is returned to the client. RMI hides the network communication from
-    the client. Network requests and responses appear to the client as regular
-    method calls on the stub object.
-
-    <p>
-    The <em>skeleton</em> is an object on the server that is responsible for
-    maintaining network connections and unmarshaling arguments. It is the
-    server's counterpart to the client's stub.
-
-    <p>
-    The <code>Skeleton</code> class includes a multithreaded server which
-    communicates with stubs over TCP connections. The <code>Stub</code> class
-    provides methods for creating stubs. Each stub object is given the network
-    address of the skeleton with which it is to communicate when it is created.
-
-    <p>
-    To use the library, first define a <em>remote interface</em>: an interface
-    in which all public methods are marked as throwing
-    <code>RMIException</code>. Skeletons can be created using the
-    <code>Skeleton</code> constructors, and stubs with one of the
-    <code>create</code> methods in <code>Stub</code>. For example, with the
-    following definitions:
-
-    <pre>
-    public interface TestInterface
-    {
-        public void testMethod() throws RMIException;
-    }
-
-    public class TestClass implements TestInterface
-    {
-        ...
-    }
-    </pre>
-
-    An RMI skeleton and stub can be created as follows:
-
-    <pre>
-    TestClass               object = new TestClass();
-
-    Skeleton&lt;TestInterface&gt; skeleton =
-                new Skeleton&lt;TestInterface&gt;(TestInterface.class, object);
-    skeleton.start();
-
-    TestInterface           stub = Stub.create(TestInterface.class, skeleton);
-    </pre>
-
-    <p>
-    The methods declared in the remote interface may throw their own exceptions.
-    In case an exception is thrown remotely, it is transmitted back to the
-    client.
-
-    <p>
-    In the typical case, the server will create both the skeleton and the
-    corresponding stub, as above. The stub will then be transmitted to any
-    clients that wish to use the services provided by the server. Stubs may also
-    be created directly by the client - this is provided primarily to bootstrap
-    RMI. If all stubs were created by the server, then it would be necessary to
-    use a means other than the RMI library to transmit an initial stub to the
-    client. To avoid this, the RMI library allows the client to create an
-    initial stub by directly providing a network address to a version of
-    <code>create</code>. This network address is the address of a well-known server which is the naming server in this project.
- */
-package rmi;
+/** Remote method invocation (RMI) library.
+
+    <p>
+    This package contains two major classes, <code>Skeleton</code> and
+    <code>Stub</code>, which can be used to implement <em>remote method
+    invocation</em> (RMI). In RMI, a client possesses a <em>stub object</em>.
+    The stub object purports to implement a certain functionality. In fact, the
+    functionality is implemented remotely by a server. The stub object merely
+    marshals the arguments given to its methods and transmits them over a
+    network to the server. It then waits for the server to provide the result,
+    which is returned to the client. RMI hides the network communication from
+    the client. Network requests and responses appear to the client as regular
+    method calls on the stub object.
+
+    <p>
+    The <em>skeleton</em> is an object on the server that is responsible for
+    maintaining network connections and unmarshaling arguments. It is the
+    server's counterpart to the client's stub.
+
+    <p>
+    The <code>Skeleton</code> class includes a multithreaded server which
+    communicates with stubs over TCP connections. The <code>Stub</code> class
+    provides methods for creating stubs. Each stub object is given the network
+    address of the skeleton with which it is to communicate when it is created.
+    Connections are kept open between calls and shared by all stubs for the
+    same address. Calls are tagged with an identifier, so several calls can be
+    in progress on one connection at once and the skeleton may answer them in
+    any order. Skeletons serve their connections with either
+    blocking sockets or a selector-based transport; see
+    <code>Transport</code>.
+
+    <p>
+    To use the library, first define a <em>remote interface</em>: an interface
+    in which all public methods are marked as throwing
+    <code>RMIException</code>. Skeletons can be created using the
+    <code>Skeleton</code> constructors, and stubs with one of the
+    <code>create</code> methods in <code>Stub</code>. For example, with the
+    following definitions:
+
+    <pre>
+    public interface TestInterface
+    {
+        public void testMethod() throws RMIException;
+    }
+
+    public class TestClass implements TestInterface
+    {
+        ...
+    }
+    </pre>
+
+    An RMI skeleton and stub can be created as follows:
+
+    <pre>
+    TestClass               object = new TestClass();
+
+    Skeleton&lt;TestInterface&gt; skeleton =
+                new Skeleton&lt;TestInterface&gt;(TestInterface.class, object);
+    skeleton.start();
+
+    TestInterface           stub = Stub.create(TestInterface.class, skeleton);
+    </pre>
+
+    <p>
+    <code>Stub.createAsync</code> creates an <code>AsyncStub</code> instead,
+    whose calls return a <code>CompletableFuture</code> rather than waiting for
+    the reply. Its <code>batch</code> method starts a <code>Batch</code>, which
+    sends many calls to the skeleton in one frame and receives all of their
+    results in one reply.
+
+    <p>
+    <code>Skeleton.setCompression</code> makes a skeleton compress large frames
+    on its connections. Stubs always offer compression, so the skeleton alone
+    decides. <code>CompressionStats</code> reports how much it saved.
+
+    <p>
+    Skeletons and stubs time every call, per method and per phase, and count
+    its bytes. <code>Skeleton.getMetrics</code> and <code>Stub.metrics</code>
+    return a <code>MetricsSnapshot</code> of these measurements.
+
+    <p>
+    <code>Skeleton.setCallLimit</code> and <code>Skeleton.setMethodLimit</code>
+    bound the calls a skeleton runs at once. Calls over the limits wait in a
+    bounded queue; when it is full, or a call waits too long, the call is
+    refused with an <code>OverloadedException</code>.
+
+    <p>
+    Calls can be given deadlines, per stub with <code>Stub.withTimeouts</code>
+    or per block of code with <code>Deadline</code>. A call that misses its
+    deadline fails with a <code>DeadlineExceededException</code>. The time
+    left travels with the call, and skeletons do not start calls whose
+    deadline has passed.
+
+    <p>
+    Skeletons can also call clients back. <code>Stub.export</code> turns a
+    local listener into a callback object that can be passed to a skeleton as
+    an argument; calls the skeleton makes on it are pushed back over the same
+    connection and run on the listener.
+
+    <p>
+    A stub whose skeleton is running in the same JVM skips the network: its
+    calls are handed to the skeleton in memory, still encoded and decoded so
+    that neither side can see the other's objects.
+
+    <p>
+    A skeleton may also listen on a Unix domain socket file, set with
+    <code>Skeleton.setLocalSocket</code>. Stubs created from it carry the path
+    and use it instead of TCP when they run on the same host.
+
+    <p>
+    Several skeletons can share one listener: <code>Skeleton.startOn</code>
+    exports a skeleton on the listener of a running one under a number, which
+    its stubs carry. Clients then need one pool of connections for all of
+    them.
+
+    <p>
+    Methods of a remote interface marked <code>Idempotent</code> are called
+    once for all identical calls in flight from one JVM at a time; the callers
+    share the reply.
+
+    <p>
+    Those methods may also be retried. <code>Stub.withRetries</code> gives a
+    stub a <code>RetryPolicy</code> for calls lost to network failures, and
+    <code>Stub.failover</code> makes one stub out of several for equivalent
+    servers, moving on to the next server when one cannot be reached.
+
+    <p>
+    A server being restarted can stop its skeleton with
+    <code>stop(long)</code>, which turns new calls away but lets the calls
+    already received finish for a while before closing the connections.
+
+    <p>
+    Methods that take long, such as bulk transfers, can be marked with
+    <code>Lane</code> and given a lane of their own on the skeleton, with its
+    own limit and executor, so that quick calls are not held up behind them.
+
+    <p>
+    The methods declared in the remote interface may throw their own exceptions.
+    In case an exception is thrown remotely, it is transmitted back to the
+    client.
+
+    <p>
+    In the typical case, the server will create both the skeleton and the
+    corresponding stub, as above. The stub will then be transmitted to any
+    clients that wish to use the services provided by the server. Stubs may also
+    be created directly by the client - this is provided primarily to bootstrap
+    RMI. If all stubs were created by the server, then it would be necessary to
+    use a means other than the RMI library to transmit an initial stub to the
+    client. To avoid this, the RMI library allows the client to create an
+    initial stub by directly providing a network address to a version of
+    <code>create</code>. This network address is the address of a well-known server which is the naming server in this project.
+ */
+package rmi;
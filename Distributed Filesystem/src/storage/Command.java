@@ -3,6 +3,7 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Lane;
 import rmi.RMIException;
 
 /** Storage server command interface.
@@ -60,6 +61,7 @@ public interface Command
                              error, whether between the caller and this storage
                              server, or between the two storage servers.
      */
+    @Lane("bulk")
     public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException;
 }
@@ -3,6 +3,8 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Idempotent;
+import rmi.Lane;
 import rmi.RMIException;
 
 /** Storage server client interface.
@@ -23,6 +25,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
@@ -43,6 +46,8 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
+    @Lane("bulk")
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
@@ -58,6 +63,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Lane("bulk")
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
 }
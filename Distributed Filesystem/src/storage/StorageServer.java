@@ -4,6 +4,11 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import common.*;
 import rmi.*;
@@ -21,6 +26,20 @@ public class StorageServer implements Storage, Command
 	public File root;
 	Skeleton<Storage> storageSkeleton;
 	Skeleton<Command> commandSkeleton;
+	/** Number of bytes fetched by each read when copying a file. */
+	static final int COPY_CHUNK = 1024 * 1024;
+	/** Number of reads kept in flight when copying a file. */
+	static final int COPY_PIPELINE = 4;
+	/** Number of client reads and writes served at once. */
+	static final int MAX_CALLS = 64;
+	/** Number of client calls that may wait for one of those to finish. */
+	static final int ADMISSION_QUEUE = 256;
+	/** Milliseconds a client call may wait before it is refused. */
+	static final long ADMISSION_TIMEOUT = 10000;
+	/** Lane of the calls that move file data: reads, writes and copies. */
+	static final String BULK_LANE = "bulk";
+	/** Number of copies from other storage servers run at once. */
+	static final int MAX_COPIES = 4;
 	
     /** Creates a storage server, given a directory on the local filesystem.
 
@@ -36,10 +55,39 @@ public class StorageServer implements Storage, Command
     	
     	this.root = root;
     	storageSkeleton = new Skeleton<Storage>(Storage.class, this);
+    	// Refuse client calls beyond what the disk can keep up with, rather
+    	// than letting every client slow down
+    	storageSkeleton.setCallLimit(MAX_CALLS, ADMISSION_QUEUE,
+    			ADMISSION_TIMEOUT);
+    	// Reads and writes of large blocks get a lane of their own, so that
+    	// size queries are not held up behind them. File access methods take
+    	// no lock, so a lane's calls run side by side, and never wait for
+    	// creation and deletion commands or for each other
+    	storageSkeleton.setLane(BULK_LANE, MAX_CALLS, null);
     	commandSkeleton = new Skeleton<Command>(Command.class,this);
+    	// Likewise, copies wait for each other but not for creation and
+    	// deletion commands
+    	commandSkeleton.setCallLimit(0, ADMISSION_QUEUE, 0);
+    	commandSkeleton.setLane(BULK_LANE, MAX_COPIES, null);
     	
     }
 
+    /** Makes the storage interface also listen on a Unix domain socket.
+
+        <p>
+        Clients running on the same host as the storage server then read and
+        write through the socket file instead of loopback TCP, which is much
+        cheaper for large blocks. Clients on other hosts are not affected.
+        This must be called before <code>start</code>.
+
+        @param socket The socket file, or <code>null</code> to use TCP only.
+        @throws IllegalStateException If the server has been started.
+     */
+    public void setLocalSocket(File socket)
+    {
+    	storageSkeleton.setLocalSocket(socket == null ? null : socket.toPath());
+    }
+
     /** Starts the storage server and registers it with the given naming
         server.
 
@@ -70,7 +118,9 @@ public class StorageServer implements Storage, Command
     	}
     	
     	storageSkeleton.start();
-    	commandSkeleton.start();
+    	// The naming server reaches the command interface through the storage
+    	// interface's listener and pooled connections
+    	commandSkeleton.startOn(storageSkeleton);
     	
     	Storage storageStub = (Storage) Stub.create(Storage.class, storageSkeleton, hostname);
     	Command commandStub = (Command) Stub.create(Command.class, commandSkeleton, hostname);
@@ -104,9 +154,33 @@ public class StorageServer implements Storage, Command
      */
     public void stop()
     {
-        storageSkeleton.stop();
         commandSkeleton.stop();
+        storageSkeleton.stop();
+        this.stopped(null);
+    }
+
+    /** Stops the storage server, first letting the calls it has received
+        finish.
+
+        <p>
+        No new calls are accepted. Reads, writes and commands already received
+        run to completion and are answered for up to <code>timeout</code>
+        milliseconds; calls still unanswered after that are cut off. This is
+        meant for rolling restarts, so that clients do not have to retry every
+        call that was in flight. The server should not be restarted.
+
+        @param timeout Milliseconds to let calls in progress finish.
+        @return The number of calls answered while draining, and the number cut
+                off.
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+     */
+    public DrainReport stop(long timeout)
+    {
+        // The command skeleton shares the storage skeleton's listener, and is
+        // drained along with it
+        DrainReport report = storageSkeleton.stop(timeout);
         this.stopped(null);
+        return report;
     }
 
     /** Called when the storage server has shut down.
@@ -118,9 +192,12 @@ public class StorageServer implements Storage, Command
     {
     }
 
-    // The following methods are documented in Storage.java.
+    // The following methods are documented in Storage.java. They are not
+    // synchronized: each opens its own channel and reads or writes at a given
+    // position, so calls do not interfere with one another. The naming
+    // server's locks keep a file from being deleted while a client uses it.
     @Override
-    public synchronized long size(Path file) throws FileNotFoundException
+    public long size(Path file) throws FileNotFoundException
     {
         File f = file.toFile(root);
         if (f.isDirectory() || !f.exists()) {
@@ -130,7 +207,7 @@ public class StorageServer implements Storage, Command
     }
 
     @Override
-    public synchronized byte[] read(Path file, long offset, int length)
+    public byte[] read(Path file, long offset, int length)
         throws FileNotFoundException, IOException
     {
     	File f = file.toFile(root);
@@ -145,21 +222,26 @@ public class StorageServer implements Storage, Command
         			+ "given the length of the file or they are negative!");
         }
         
-        // Learnt a lot from the following link :D
-        //http://www.java-examples.com/read-file-byte-array-using-fileinputstream
-        InputStream fin = new FileInputStream(f);
-    	byte[] fileContent = new byte[length];
-    	fin.read(fileContent, ((int) offset), length);
-    	
-    	if (fin != null) {    		
-    		fin.close();
-    	}
+        // Read straight into the array that is returned; the RMI layer sends
+        // it to the client as a bulk frame without copying it again
+        byte[] fileContent = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(fileContent);
+        FileChannel ch = open(file, f, StandardOpenOption.READ);
+        try {
+        	while (buffer.hasRemaining()) {
+        		if (ch.read(buffer, offset + buffer.position()) < 0) {
+        			throw new IOException("File shrank while being read");
+        		}
+        	}
+        } finally {
+        	ch.close();
+        }
     	
     	return fileContent;
     }
 
     @Override
-    public synchronized void write(Path file, long offset, byte[] data)
+    public void write(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
     {
     	File f = file.toFile(root);
@@ -173,23 +255,33 @@ public class StorageServer implements Storage, Command
         	throw new IndexOutOfBoundsException("Offset is negative!");
         }
     	
-    	// Once again...
-    	// http://stackoverflow.com/questions/4350084/byte-to-file-in-java
-    	// http://www.tutorialspoint.com/java/io/fileoutputstream_write_byte_len.htm
-    	// So you don't think I'm cheating 
-    	
-    	FileOutputStream fos = new FileOutputStream(f);
-    	FileChannel ch = fos.getChannel();
-    	ch.position(offset);
-    	ch.write(ByteBuffer.wrap(data));
-    	
-    	if(fos != null) {    		
-    		fos.close();
+    	// Positional write: the rest of the file is left as it is
+    	FileChannel ch = open(file, f, StandardOpenOption.WRITE);
+    	try {
+    		ByteBuffer buffer = ByteBuffer.wrap(data);
+    		while (buffer.hasRemaining()) {
+    			ch.write(buffer, offset + buffer.position());
+    		}
+    	} finally {
+    		ch.close();
     	}
-    	
     }
 
-    // The following methods are documented in Command.java.
+    /** Opens a file for a read or a write, reporting a file deleted since it
+        was checked as not found. */
+    private static FileChannel open(Path file, File f, StandardOpenOption mode)
+        throws IOException
+    {
+        try {
+        	return FileChannel.open(f.toPath(), mode);
+        } catch (NoSuchFileException e) {
+        	throw new FileNotFoundException("File " + file + " was deleted");
+        }
+    }
+
+    // The following methods are documented in Command.java. Creation and
+    // deletion are synchronized with each other, since they change the
+    // directories on the way to a file.
     @Override
     public synchronized boolean create(Path file)
     {
@@ -258,20 +350,71 @@ public class StorageServer implements Storage, Command
 			FileNotFoundException, IOException {
 		File f = file.toFile(root);
 		long fileSize = server.size(file);
-		byte[] bytesToCopy;
-		int readby = Integer.MAX_VALUE;
 		
 		if (f.exists()) {
 			f.delete();
 		}
 		create(file);
 		
-		for(long offset = 0; offset < fileSize; offset+=readby) {
-			readby = (int) Math.min(readby, fileSize-offset);
-			bytesToCopy = server.read(file, offset, readby);
-			write(file, offset, bytesToCopy);
+		AsyncStub<Storage> remote;
+		try {
+			remote = Stub.async(Storage.class, server);
+		} catch (IllegalArgumentException e) {
+			remote = null;
+		}
+		
+		if (remote == null) {
+			// Not a stub, so reads cannot be overlapped
+			for (long offset = 0; offset < fileSize; offset += COPY_CHUNK) {
+				int readby = (int) Math.min(COPY_CHUNK, fileSize - offset);
+				write(file, offset, server.read(file, offset, readby));
+			}
+			return true;
+		}
+		
+		// Keep several reads in flight, and write each chunk as it arrives
+		ArrayDeque<CompletableFuture<byte[]>> reads =
+				new ArrayDeque<CompletableFuture<byte[]>>();
+		long requested = 0;
+		long written = 0;
+		try {
+			while (written < fileSize) {
+				while (requested < fileSize && reads.size() < COPY_PIPELINE) {
+					final long offset = requested;
+					final int readby = (int) Math.min(COPY_CHUNK,
+							fileSize - offset);
+					reads.add(remote.call(s -> s.read(file, offset, readby)));
+					requested += readby;
+				}
+				byte[] bytesToCopy = await(reads.poll());
+				write(file, written, bytesToCopy);
+				written += bytesToCopy.length;
+			}
+		} finally {
+			for (CompletableFuture<byte[]> read : reads) {
+				read.cancel(false);
+			}
 		}
 		
 		return true;
 	}
+	
+	/** Waits for a read started by <code>copy</code>, and rethrows its
+	    failure as thrown by the read itself. */
+	private static byte[] await(CompletableFuture<byte[]> read)
+			throws RMIException, IOException {
+		try {
+			return read.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RMIException) {
+				throw (RMIException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RMIException(cause);
+		}
+	}
 }